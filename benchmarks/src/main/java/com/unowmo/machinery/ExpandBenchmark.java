@@ -0,0 +1,59 @@
+package com.unowmo.machinery;
+
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures rendering ((var)) references in axion text against a layer's
+ * frames, with text compiled once ahead as the library does, and compiling
+ * text alone.
+ *
+ * @author Kirk Bulis
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ExpandBenchmark {
+
+	@Param({ "0", "1", "8" })
+	public int references;
+
+	@Param({ "1", "100" })
+	public int library;
+
+	private StackOfMachinery.Layer layer;
+	private CompiledLibrary.Template template;
+	private String text;
+
+	@Setup
+	public void setup() {
+		final StringBuilder text = new StringBuilder("expanding");
+
+		this.layer = new StackOfMachinery.Layer(new CompiledLibrary(SyntheticLibrary.single(this.library)).machineOf("default"));
+
+		for (int i = 0; i < this.references; ++i)
+		{
+			this.layer.write("var" + i, "value" + i);
+
+			text.append(" ((var").append(i).append("))");
+		}
+
+		this.text = text.toString();
+		this.template = new CompiledLibrary.Template(this.text);
+	}
+
+	@Benchmark
+	public String expand() {
+		return this.layer.expand(this.template);
+	}
+
+	@Benchmark
+	public CompiledLibrary.Template compile() {
+		return new CompiledLibrary.Template(this.text);
+	}
+
+}
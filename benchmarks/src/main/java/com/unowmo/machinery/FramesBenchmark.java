@@ -0,0 +1,68 @@
+package com.unowmo.machinery;
+
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures looking up values in a layer's frames, from the top frame down
+ * (as axions read values) and from the bottom frame up (as counts and tuples
+ * match), with the value looked for in the bottom frame.
+ *
+ * @author Kirk Bulis
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FramesBenchmark {
+
+	@Param({ "1", "8" })
+	public int frames;
+
+	@Param({ "4", "64" })
+	public int values;
+
+	private StackOfMachinery.Frames stacked;
+
+	@Setup
+	public void setup() {
+		this.stacked = new StackOfMachinery.Frames();
+
+		for (int f = 0; f < this.frames; ++f)
+		{
+			if (f > 0)
+			{
+				this.stacked.push();
+			}
+
+			for (int v = 0; v < this.values; ++v)
+			{
+				this.stacked.write("frame" + f + "value" + v, "value" + v);
+			}
+		}
+	}
+
+	@Benchmark
+	public StackOfMachinery.Value lookUp() {
+		return this.stacked.lookUp("frame0value0");
+	}
+
+	@Benchmark
+	public String matchUp() {
+		return this.stacked.matchUp("frame0value0", "");
+	}
+
+	@Benchmark
+	public boolean isMatching() {
+		return this.stacked.isMatching("frame0value0", "value0");
+	}
+
+	@Benchmark
+	public String fetchIt() {
+		return this.stacked.fetchIt("frame" + (this.frames - 1) + "value0", "");
+	}
+
+}
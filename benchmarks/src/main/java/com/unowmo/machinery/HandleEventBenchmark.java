@@ -0,0 +1,111 @@
+package com.unowmo.machinery;
+
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures handling one external event across stacks of synthetic machines:
+ * a single layer, a chain of layers each following on the event, a wide
+ * stack where the default layer blasts the event to its children, and a
+ * single layer walking a chain of automatic transitions.
+ *
+ * @author Kirk Bulis
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HandleEventBenchmark {
+
+	@State(Scope.Thread)
+	public static class Single {
+
+		@Param({ "1", "100" })
+		public int library;
+
+		StackOfMachinery stacked;
+
+		@Setup
+		public void setup() {
+			this.stacked = new StackOfMachinery(SyntheticLibrary.single(this.library)).handleEvent("started");
+		}
+
+	}
+
+	@State(Scope.Thread)
+	public static class Deep {
+
+		@Param({ "1", "100" })
+		public int library;
+
+		@Param({ "4", "64" })
+		public int layers;
+
+		StackOfMachinery stacked;
+
+		@Setup
+		public void setup() {
+			this.stacked = new StackOfMachinery(SyntheticLibrary.deep(this.library, this.layers)).handleEvent("started");
+		}
+
+	}
+
+	@State(Scope.Thread)
+	public static class Wide {
+
+		@Param({ "1", "100" })
+		public int library;
+
+		@Param({ "4", "64" })
+		public int layers;
+
+		StackOfMachinery stacked;
+
+		@Setup
+		public void setup() {
+			this.stacked = new StackOfMachinery(SyntheticLibrary.wide(this.library, this.layers)).handleEvent("started");
+		}
+
+	}
+
+	@State(Scope.Thread)
+	public static class Chained {
+
+		@Param({ "1", "100" })
+		public int library;
+
+		@Param({ "4", "64" })
+		public int hops;
+
+		StackOfMachinery stacked;
+
+		@Setup
+		public void setup() {
+			this.stacked = new StackOfMachinery(SyntheticLibrary.chained(this.library, this.hops)).handleEvent("started");
+		}
+
+	}
+
+	@Benchmark
+	public StackOfMachinery singleLayer(final Single state) {
+		return state.stacked.handleEvent("ping");
+	}
+
+	@Benchmark
+	public StackOfMachinery deepStack(final Deep state) {
+		return state.stacked.handleEvent("ping");
+	}
+
+	@Benchmark
+	public StackOfMachinery wideBlast(final Wide state) {
+		return state.stacked.handleEvent("ping");
+	}
+
+	@Benchmark
+	public StackOfMachinery chainedHops(final Chained state) {
+		return state.stacked.handleEvent("ping");
+	}
+
+}
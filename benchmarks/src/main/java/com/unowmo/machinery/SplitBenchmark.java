@@ -0,0 +1,43 @@
+package com.unowmo.machinery;
+
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures parsing axion strings into label and named-value pairs, as done
+ * once per axion when a library is compiled.
+ *
+ * @author Kirk Bulis
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SplitBenchmark {
+
+	@Param({ "0", "4", "16" })
+	public int pairs;
+
+	private String axion;
+
+	@Setup
+	public void setup() {
+		final StringBuilder axion = new StringBuilder("dosomething");
+
+		for (int i = 0; i < this.pairs; ++i)
+		{
+			axion.append(i == 0 ? ':' : ',').append("label").append(i).append('=').append("value").append(i);
+		}
+
+		this.axion = axion.toString();
+	}
+
+	@Benchmark
+	public AxionTaskResolve.Part parse() {
+		return AxionTaskResolve.parse(this.axion);
+	}
+
+}
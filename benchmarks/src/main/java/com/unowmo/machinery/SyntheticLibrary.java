@@ -0,0 +1,186 @@
+package com.unowmo.machinery;
+
+import java.util.*;
+
+/**
+ * Builds libraries of generated machines for benchmarking. Every library is
+ * padded with filler machines, each transitioning on events of its own, so
+ * that event tables and machine lookups grow with the library size.
+ *
+ * Layers of the generated "default" machine and its children start out in the
+ * "start" state, spawn any children on "started", then settle in "idle". On
+ * "ping", a layer counts the ping in its frame (and blasts it to children
+ * when fanning out) before settling back in "idle".
+ *
+ * @author Kirk Bulis
+ *
+ */
+final class SyntheticLibrary {
+
+	/**
+	 * Library holding only a default machine that counts pings.
+	 *
+	 * @param library number of filler machines
+	 */
+	static AxionTaskLibrary single(final int library) {
+		final List<TransitionStates> machines = new ArrayList<TransitionStates>();
+
+		machines.add
+			( machine
+				( "default"
+				, state("start", "", trans("started", "idle"))
+				, state("idle", "", trans("ping", "work"))
+				, state("work", "inc:label=count,value=1", trans("", "idle"))
+				)
+			);
+
+		return pad(machines, library);
+	}
+
+	/**
+	 * Library whose default machine starts a chain of layers, each layer the
+	 * parent of the next, so that the stack is layers deep.
+	 *
+	 * @param library number of filler machines
+	 * @param layers number of layers in the chain
+	 */
+	static AxionTaskLibrary deep(final int library, final int layers) {
+		final List<TransitionStates> machines = new ArrayList<TransitionStates>();
+
+		for (int i = 0; i < layers; ++i)
+		{
+			machines.add
+				( machine
+					( i == 0 ? "default" : "link" + i
+					, state("start", "", trans("started", i + 1 < layers ? "spawn" : "idle"))
+					, state("spawn", "start:machine=link" + (i + 1), trans("", "idle"))
+					, state("idle", "", trans("ping", "work"))
+					, state("work", "inc:label=count,value=1", trans("", "idle"))
+					)
+				);
+		}
+
+		return pad(machines, library);
+	}
+
+	/**
+	 * Library whose default machine starts layers - 1 children of its own and
+	 * blasts pings to them, so that pings fan out across the whole stack.
+	 *
+	 * @param library number of filler machines
+	 * @param layers number of layers, counting the default layer
+	 */
+	static AxionTaskLibrary wide(final int library, final int layers) {
+		final List<TransitionStates> machines = new ArrayList<TransitionStates>();
+		final List<TransitionStates.State> states = new ArrayList<TransitionStates.State>();
+
+		states.add(state("start", "", trans("started", layers > 1 ? "spawn1" : "idle")));
+
+		for (int i = 1; i < layers; ++i)
+		{
+			states.add(state("spawn" + i, "start:machine=leaf", trans("", i + 1 < layers ? "spawn" + (i + 1) : "idle")));
+		}
+
+		states.add(state("idle", "", trans("ping", "work")));
+		states.add(state("work", "blast:event=ping", trans("", "idle")));
+
+		machines.add
+			( machine
+				( "default"
+				, states.toArray(new TransitionStates.State [states.size()])
+				)
+			);
+
+		machines.add
+			( machine
+				( "leaf"
+				, state("start", "", trans("started", "idle"))
+				, state("idle", "", trans("ping", "work"))
+				, state("work", "inc:label=count,value=1", trans("", "idle"))
+				)
+			);
+
+		return pad(machines, library);
+	}
+
+	/**
+	 * Library whose default machine, on "ping", walks a chain of states each
+	 * setting a value in its frame before settling back in "idle".
+	 *
+	 * @param library number of filler machines
+	 * @param hops number of states in the chain
+	 */
+	static AxionTaskLibrary chained(final int library, final int hops) {
+		final List<TransitionStates> machines = new ArrayList<TransitionStates>();
+		final List<TransitionStates.State> states = new ArrayList<TransitionStates.State>();
+
+		states.add(state("start", "", trans("started", "idle")));
+		states.add(state("idle", "", trans("ping", hops > 0 ? "step1" : "idle")));
+
+		for (int i = 1; i <= hops; ++i)
+		{
+			states.add(state("step" + i, "set:label=step" + i + ",value=" + i, trans("", i < hops ? "step" + (i + 1) : "idle")));
+		}
+
+		machines.add
+			( machine
+				( "default"
+				, states.toArray(new TransitionStates.State [states.size()])
+				)
+			);
+
+		return pad(machines, library);
+	}
+
+	private static AxionTaskLibrary pad(final List<TransitionStates> machines, final int library) {
+		final AxionTaskLibrary padded = new AxionTaskLibrary();
+
+		for (int i = 0; i < library; ++i)
+		{
+			machines.add
+				( machine
+					( "filler" + i
+					, state("start", "", trans("filler" + i + "-go", "work"))
+					, state("work", "write:label=filler,value=" + i, trans("", "done"))
+					, state("done", "", trans("filler" + i + "-reset", "start"))
+					)
+				);
+		}
+
+		padded.machines = machines.toArray(new TransitionStates [machines.size()]);
+
+		return padded;
+	}
+
+	private static TransitionStates machine(final String name, final TransitionStates.State ... states) {
+		final TransitionStates machine = new TransitionStates();
+
+		machine.name = name;
+		machine.states = states;
+
+		return machine;
+	}
+
+	private static TransitionStates.State state(final String label, final String entry, final TransitionStates.State.Trans ... trans) {
+		final TransitionStates.State state = new TransitionStates.State();
+
+		state.label = label;
+		state.entry = entry;
+		state.trans = trans;
+
+		return state;
+	}
+
+	private static TransitionStates.State.Trans trans(final String event, final String target) {
+		final TransitionStates.State.Trans trans = new TransitionStates.State.Trans();
+
+		trans.event = event;
+		trans.state = target;
+
+		return trans;
+	}
+
+	private SyntheticLibrary() {
+	}
+
+}
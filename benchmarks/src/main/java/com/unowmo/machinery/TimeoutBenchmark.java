@@ -0,0 +1,62 @@
+package com.unowmo.machinery;
+
+import java.util.*;
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures registering timers with a scheduler already holding a number of
+ * pending timers. Timers are set an hour out so none expire while measuring,
+ * and each registration replaces an earlier timer for the same target.
+ *
+ * @author Kirk Bulis
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TimeoutBenchmark {
+
+	@Param({ "16", "4096" })
+	public int pending;
+
+	private MachineryScheduler scheduler;
+	private MachineryTimeout timeout;
+	private long [] targets;
+	private int next;
+
+	@Setup
+	public void setup() {
+		this.scheduler = new MachineryScheduler(1);
+		this.timeout = new MachineryTimeout(this.scheduler) {
+			protected void onTimeout(final long target, final String event) {
+			}
+			protected void onAllDone() {
+			}
+		};
+		this.targets = new long [this.pending];
+
+		for (int i = 0; i < this.pending; ++i)
+		{
+			this.targets[i] = i + 1;
+
+			this.timeout.register(this.targets[i], "expired", new Date().getTime() + 3600000 + i);
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		this.scheduler.shutdown();
+	}
+
+	@Benchmark
+	public void register() {
+		this.next = (this.next + 1) % this.targets.length;
+
+		this.timeout.register(this.targets[this.next], "expired", new Date().getTime() + 3600000);
+	}
+
+}
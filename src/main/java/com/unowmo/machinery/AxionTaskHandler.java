@@ -0,0 +1,48 @@
+package com.unowmo.machinery;
+
+import java.util.concurrent.*;
+
+/**
+ * Contract for a direct handler of one or more application-defined axions.
+ * Registered with an {@link AxionTaskRegistry} so that frequently executed
+ * axions are dispatched straight to their handler rather than through the
+ * resolver's execute hook.
+ * 
+ * @author Kirk Bulis
+ *
+ */
+public abstract class AxionTaskHandler {
+
+	/**
+	 * Handles labeled axion and produces result event (or empty if no event
+	 * intended).
+	 * 
+	 * @param axionLabel label of axion to execute
+	 * @param axionValue value container for frame
+	 * @param axionPairs pairs of named-value args
+	 * 
+	 * @return string response for follow on
+	 */
+	protected abstract String execute(final String axionLabel, final AxionTaskResolve.Update axionValue, final LabeledValuePair ... axionPairs);
+
+	/**
+	 * Starts labeled axion that completes later, such as one waiting on a
+	 * database or service, rather than blocking the stack. The layer parks in
+	 * its state until the stage completes, deferring its events while other
+	 * layers carry on, then follows on the result; updates added to the value
+	 * container by then are applied to the frame first. Nothing is started by
+	 * default, so the axion is executed synchronously instead. Journaled and
+	 * recovering stacks never call this, executing every axion synchronously
+	 * so its result is journaled along with the event that led to it.
+	 * 
+	 * @param axionLabel label of axion to execute
+	 * @param axionValue value container for frame
+	 * @param axionPairs pairs of named-value args
+	 * 
+	 * @return stage of string response for follow on, or null to execute
+	 */
+	protected CompletionStage<String> executeAsync(final String axionLabel, final AxionTaskResolve.Update axionValue, final LabeledValuePair ... axionPairs) {
+		return null;
+	}
+
+}
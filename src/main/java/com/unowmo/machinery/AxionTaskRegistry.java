@@ -0,0 +1,56 @@
+package com.unowmo.machinery;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Registry of direct handlers for application-defined axions, keyed by axion
+ * label ignoring case. Built-in axions (start, set, inc and so on) are bound
+ * when the library is compiled and can't be replaced.
+ * 
+ * @author Kirk Bulis
+ *
+ */
+public class AxionTaskRegistry {
+	private final Map<String, AxionTaskHandler> handlers = new ConcurrentHashMap<String, AxionTaskHandler>();
+
+	/**
+	 * Registers handler for axion label, replacing any prior handler.
+	 * 
+	 * @param axionLabel label of axion to handle
+	 * @param handler handler to execute axion
+	 * 
+	 * @return this instance
+	 */
+	public AxionTaskRegistry register(final String axionLabel, final AxionTaskHandler handler) {
+		if (StackOfMachinery.Opcode.of(axionLabel) != StackOfMachinery.Opcode.EXECUTE)
+		{
+			throw new IllegalArgumentException("Axion '" + axionLabel + "' is built in");
+		}
+
+		if (handler != null)
+		{
+			this.handlers.put(CompiledLibrary.fold(axionLabel), handler);
+		}
+		
+		return this;
+	}
+
+	/**
+	 * Removes handler for axion label, if any.
+	 * 
+	 * @param axionLabel label of axion to stop handling
+	 * 
+	 * @return this instance
+	 */
+	public AxionTaskRegistry unregister(final String axionLabel) {
+		this.handlers.remove(CompiledLibrary.fold(axionLabel));
+		
+		return this;
+	}
+
+	AxionTaskHandler handlerOf(final String folded) {
+		return this.handlers.get(folded);
+	}
+
+}
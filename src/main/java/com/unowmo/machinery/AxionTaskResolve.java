@@ -1,6 +1,8 @@
 package com.unowmo.machinery;
 
+import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * Contract for machine stack container that is executed when machine activity
@@ -65,6 +67,110 @@ public abstract class AxionTaskResolve {
 
 	}
 
+	/**
+	 * Report of an event whose processing ran over one of the stack's budgets
+	 * and was cut short.
+	 */
+	public static class Runaway {
+
+		/**
+		 * Budget run over: transitions followed, or events queued.
+		 */
+		public static enum Budget {
+			STEPS, QUEUED
+		}
+
+		/**
+		 * Budget run over.
+		 */
+		public final Budget budget;
+
+		/**
+		 * Event followed on by the layer running over.
+		 */
+		public final String event;
+
+		/**
+		 * Id of layer running over.
+		 */
+		public final String layer;
+
+		/**
+		 * Name of layer's machine.
+		 */
+		public final String machine;
+
+		/**
+		 * State layer was left in.
+		 */
+		public final String state;
+
+		/**
+		 * Number of transitions followed handling the event.
+		 */
+		public final int steps;
+
+		/**
+		 * Number of events queued handling the event.
+		 */
+		public final int queued;
+
+		public String toString() {
+			return String.format
+				( "(%s) state '%s' of %s on '%s' ran over %s budget after %d steps and %d queued events"
+				, this.layer
+				, this.state
+				, this.machine
+				, this.event
+				, this.budget
+				, this.steps
+				, this.queued
+				);
+		}
+
+		Runaway(final Budget budget, final String event, final String layer, final String machine, final String state, final int steps, final int queued) {
+			this.budget = budget;
+			this.event = event;
+			this.layer = layer;
+			this.machine = machine;
+			this.state = state;
+			this.steps = steps;
+			this.queued = queued;
+		}
+
+	}
+
+	/**
+	 * Report of events left unapplied because the journal failed to record
+	 * them ahead of being applied.
+	 */
+	public static class Unjournaled {
+
+		/**
+		 * Events dropped, in the order posted; timeouts among them included.
+		 */
+		public final List<String> events;
+
+		/**
+		 * Failure writing or forcing the journal.
+		 */
+		public final IOException failure;
+
+		public String toString() {
+			return String.format
+				( "Failed journaling %d events, none applied: %s"
+				, this.events.size()
+				, this.failure
+				);
+		}
+
+		Unjournaled(final List<String> events, final IOException failure) {
+			this.events = Collections.unmodifiableList(events);
+			this.failure = failure;
+		}
+
+	}
+
 	/**
 	 * Handles labeled axion and produces result event (or empty if no event
 	 * intended).
@@ -77,6 +183,26 @@ public abstract class AxionTaskResolve {
 	 */
 	protected abstract String execute(final String axionLabel, final Update axionValue, final LabeledValuePair ... axionPairs);
 
+	/**
+	 * Starts labeled axion that completes later, such as one waiting on a
+	 * database or service, rather than blocking the stack. The layer parks in
+	 * its state until the stage completes, deferring its events while other
+	 * layers carry on, then follows on the result; updates added to the value
+	 * container by then are applied to the frame first. Nothing is started by
+	 * default, so the axion is executed synchronously instead. Journaled and
+	 * recovering stacks never call this, executing every axion synchronously
+	 * so its result is journaled along with the event that led to it.
+	 * 
+	 * @param axionLabel label of axion to execute
+	 * @param axionValue value container for frame
+	 * @param axionPairs pairs of named-value args
+	 * 
+	 * @return stage of string response for follow on, or null to execute
+	 */
+	protected CompletionStage<String> executeAsync(final String axionLabel, final Update axionValue, final LabeledValuePair ... axionPairs) {
+		return null;
+	}
+
 	/**
 	 * Broadcast to container from handling entity arbitrary command with
 	 * status to notify coupled machines of application-specific requests.
@@ -86,6 +212,41 @@ public abstract class AxionTaskResolve {
 	 */
 	protected abstract void command(final String eventCommand, final String eventStatus);
 
+	/**
+	 * Signals to container that an event ran over one of the stack's budgets,
+	 * likely from a library whose transitions or blasts cycle. The layer is
+	 * left in the state it reached and the event's remaining side effects are
+	 * dropped, so the stack carries on with the next event. Logged at WARN
+	 * level by default.
+	 * 
+	 * @param runaway report of budget run over, naming the layer and state
+	 */
+	protected void onRunaway(final Runaway runaway) {
+		if (this.isLogging(Level.WARN) == true)
+		{
+			this.log
+				( runaway.toString()
+				);
+		}
+	}
+
+	/**
+	 * Signals to container that a group of events failed to be journaled, so
+	 * none of them was applied and the journal was rolled back to before
+	 * them; the stack stays as recovery would find it. Post the events again
+	 * once the journal is fixed or replaced. Logged at WARN level by default.
+	 * 
+	 * @param unjournaled report of events dropped and why
+	 */
+	protected void onUnjournaled(final Unjournaled unjournaled) {
+		if (this.isLogging(Level.WARN) == true)
+		{
+			this.log
+				( unjournaled.toString()
+				);
+		}
+	}
+
 	/**
 	 * Splits an axion string into its label and named-value
 	 * pairs for subsequent handling by the state machine.
@@ -107,8 +268,25 @@ public abstract class AxionTaskResolve {
 	 * @param axion axion string declared in state descriptor
 	 * 
 	 * @return label and parameters for subsequent handling
+	 * 
+	 * @deprecated axions are parsed once when the library is compiled, before
+	 * any resolver is assigned, so this hook is no longer consulted and
+	 * overriding it has no effect
 	 */
+	@Deprecated
 	protected Part split(final String axion) {
+		return parse(axion);
+	}
+
+	/**
+	 * Splits an axion string as {@link #split(String)} describes. Used when
+	 * axions are compiled with the library, before any resolver is assigned.
+	 * 
+	 * @param axion axion string declared in state descriptor
+	 * 
+	 * @return label and parameters for subsequent handling
+	 */
+	static Part parse(final String axion) {
 		Part breakOut = new Part();
 		int p = axion.indexOf(':');
 		
@@ -156,4 +334,157 @@ public abstract class AxionTaskResolve {
 	 */
 	protected abstract void log(final String message);
 
+	/**
+	 * Severity of records handed to the log hooks, from chattiest to most
+	 * pressing.
+	 */
+	public static enum Level {
+		TRACE, DEBUG, INFO, WARN
+	}
+
+	/**
+	 * Checks whether records of level are wanted before the stack gathers and
+	 * formats them. Everything is logged by default; override to drop records
+	 * at the source. Stacks fuse chains of automatic transitions while DEBUG
+	 * is off (see {@link StackOfMachinery#setFusion(boolean)}).
+	 * 
+	 * @param level severity of record about to be logged
+	 * 
+	 * @return true if record should be logged
+	 */
+	protected boolean isLogging(final Level level) {
+		return true;
+	}
+
+	/**
+	 * Records external event about to be handled by the stack. Logged at
+	 * INFO level.
+	 * 
+	 * @param event external event
+	 */
+	protected void logHandling(final String event) {
+		this.log
+			( String.format
+				( "Handling %s"
+				, event
+				)
+			);
+	}
+
+	/**
+	 * Records queued event about to be followed on by a layer. Logged at
+	 * DEBUG level.
+	 * 
+	 * @param layer id of layer following on event
+	 * @param machine name of layer's machine
+	 * @param event event to follow on
+	 */
+	protected void logFollowing(final String layer, final String machine, final String event) {
+		this.log
+			( String.format
+				( "Layer (%s) of %s following on %s"
+				, layer
+				, machine
+				, event
+				)
+			);
+	}
+
+	/**
+	 * Records layer moving between states. Logged at DEBUG level.
+	 * 
+	 * @param layer id of layer transitioning
+	 * @param machine name of layer's machine
+	 * @param from state left
+	 * @param event event followed on
+	 * @param to state entered
+	 */
+	protected void logTransition(final String layer, final String machine, final String from, final String event, final String to) {
+		this.log
+			( String.format
+				( "(%s) state '%s' on '%s' -> '%s'"
+				, layer
+				, from
+				, event
+				, to
+				)
+			);
+	}
+
+	/**
+	 * Records transition to a state not found in the layer's machine. Logged
+	 * at WARN level.
+	 * 
+	 * @param layer id of layer transitioning
+	 * @param machine name of layer's machine
+	 * @param from state staying in
+	 * @param event event followed on
+	 * @param to state not found
+	 */
+	protected void logInvalid(final String layer, final String machine, final String from, final String event, final String to) {
+		this.log
+			( String.format
+				( "(%s) state '%s' on '%s' -> '%s' is invalid transition (not found)"
+				, layer
+				, from
+				, event
+				, to
+				)
+			);
+	}
+
+	/**
+	 * Records layer starting a child layer. Logged at INFO level.
+	 * 
+	 * @param layer id of parent layer
+	 * @param child id of child layer
+	 * @param machine name of child layer's machine
+	 */
+	protected void logStarting(final String layer, final String child, final String machine) {
+		this.log
+			( String.format
+				( "(%s) starting layer %s '%s'"
+				, layer
+				, child
+				, machine
+				)
+			);
+	}
+
+	/**
+	 * Records result of a built-in test axion. Logged at DEBUG level.
+	 * 
+	 * @param layer id of layer executing axion
+	 * @param axion axion label
+	 * @param value value tested
+	 * @param result axion result
+	 */
+	protected void logResult(final String layer, final String axion, final String value, final String result) {
+		this.log
+			( String.format
+				( "(%s) axion '%s' of '%s' <- '%s'"
+				, layer
+				, axion
+				, value
+				, result
+				)
+			);
+	}
+
+	/**
+	 * Records message traced by a layer's axion. Logged at INFO level.
+	 * 
+	 * @param layer id of layer tracing
+	 * @param message realized trace message
+	 */
+	protected void logTrace(final String layer, final String message) {
+		this.log
+			( String.format
+				( "(%s) %s"
+				, layer
+				, message
+				)
+			);
+	}
+
 }
@@ -0,0 +1,793 @@
+package com.unowmo.machinery;
+
+import java.util.*;
+
+/**
+ * Immutable, int-indexed form of a deserialized library. Each machine's state
+ * labels and transitions are resolved to table indices once, so that layers
+ * follow events by lookup rather than scanning labels on every transition.
+ * Nothing changes once compiled, so one library compiled with
+ * {@link #compile(AxionTaskLibrary)} is safely shared by any number of stacks
+ * on any threads, each stack holding only its layers and their frames.
+ *
+ * @author Kirk Bulis
+ *
+ */
+public final class CompiledLibrary {
+	private final Map<String, Integer> events = new HashMap<String, Integer>();
+	private final Map<String, Machine> named = new HashMap<String, Machine>();
+	final Machine [] machines;
+	final long fingerprint;
+
+	/**
+	 * No transition to follow (or an explicit transition to nowhere).
+	 */
+	static final int NONE = -1;
+
+	/**
+	 * Library without machines, held by stacks not yet initialized.
+	 */
+	static final CompiledLibrary EMPTY = new CompiledLibrary(new AxionTaskLibrary());
+
+	/**
+	 * Arc to follow rests on the result of an axion.
+	 */
+	private static final int UNKNOWN = -2;
+
+	/**
+	 * Compiled machine. States are kept in declared order so that indices
+	 * line up with the source descriptor.
+	 */
+	static final class Machine {
+
+		final CompiledLibrary library;
+		final int index;
+		final String name;
+		final State [] states;
+		final int start;
+
+		Machine(final CompiledLibrary library, final int index, final TransitionStates source) {
+			this.library = library;
+			this.index = index;
+			this.name = source.name;
+			this.states = new State [source.states.length];
+
+			int start = NONE;
+
+			for (int i = 0; i < source.states.length; ++i)
+			{
+				if (start == NONE && source.states[i].label.equalsIgnoreCase("start") == true)
+				{
+					start = i;
+				}
+
+				this.states[i] = new State(library, source, i);
+			}
+
+			this.start = start;
+
+			for (int i = 0; i < this.states.length; ++i)
+			{
+				for (int t = 0; t < this.states[i].chains.length; ++t)
+				{
+					this.states[i].chains[t] = this.fuse(i, t);
+				}
+			}
+		}
+
+		/**
+		 * Finds state by label ignoring case. First declared wins.
+		 *
+		 * @param label state label
+		 *
+		 * @return state index or NONE
+		 */
+		int stateOf(final String label) {
+			for (int i = 0; i < this.states.length; ++i)
+			{
+				if (this.states[i].label.equalsIgnoreCase(label) == true)
+				{
+					return i;
+				}
+			}
+
+			return NONE;
+		}
+
+		/**
+		 * Follows the automatic path from state through arc for as long as
+		 * it runs over built-in axions touching only the layer's frames, and
+		 * over states whose onward arc is known without running their entry
+		 * axion. Stops short of passing any state twice.
+		 */
+		private Chain fuse(final int from, final int arc) {
+			final List<Integer> path = new ArrayList<Integer>();
+			State state = this.states[from];
+			int next = arc;
+
+			while (next != NONE && state.isFusedLeave() == true)
+			{
+				final int target = state.targets[next];
+
+				if (target == NONE || target == from || path.contains(target) == true)
+				{
+					break;
+				}
+
+				final int route = this.states[target].route(this.library);
+
+				if (route == UNKNOWN)
+				{
+					break;
+				}
+
+				path.add(target);
+
+				state = this.states[target];
+				next = route;
+			}
+
+			if (path.size() > 1)
+			{
+				return new Chain(path, next);
+			}
+
+			return null;
+		}
+
+	}
+
+	/**
+	 * Compiled axion. Parsed once from the state descriptor into its label,
+	 * built-in opcode and named argument slots. Values holding ((var))
+	 * references are compiled into templates so only those are rendered
+	 * against layer frames on each execution.
+	 */
+	static final class Axion {
+
+		final String label;
+		final String folded;
+		final StackOfMachinery.Opcode opcode;
+		final String [] names;
+		final String [] values;
+		final Template [] templates;
+		final boolean [] parsed;
+		final boolean [] canonical;
+		final int [] numbers;
+
+		Axion(final String axion) {
+			final AxionTaskResolve.Part part = AxionTaskResolve.parse(axion);
+
+			this.label = part.label;
+			this.folded = fold(part.label);
+			this.opcode = StackOfMachinery.Opcode.of(part.label);
+			this.names = new String [part.list.length];
+			this.values = new String [part.list.length];
+			this.templates = new Template [part.list.length];
+			this.parsed = new boolean [part.list.length];
+			this.canonical = new boolean [part.list.length];
+			this.numbers = new int [part.list.length];
+
+			for (int i = 0; i < part.list.length; ++i)
+			{
+				this.names[i] = part.list[i].label;
+				this.values[i] = part.list[i].value;
+				this.templates[i] = Template.of(part.list[i].value);
+
+				if (this.templates[i] == null)
+				{
+					try
+					{
+						this.numbers[i] = Integer.parseInt(this.values[i]);
+						this.parsed[i] = true;
+						this.canonical[i] = Integer.toString(this.numbers[i]).equals(this.values[i]);
+					}
+					catch (NumberFormatException eX)
+					{
+					}
+				}
+			}
+		}
+
+		/**
+		 * Finds argument slot by name ignoring case. First declared wins.
+		 *
+		 * @param name argument name
+		 *
+		 * @return slot index or NONE
+		 */
+		int slotOf(final String name) {
+			for (int i = 0; i < this.names.length; ++i)
+			{
+				if (this.names[i].equalsIgnoreCase(name) == true)
+				{
+					return i;
+				}
+			}
+
+			return NONE;
+		}
+
+		static Axion of(final String axion) {
+			if (axion.isEmpty() == false)
+			{
+				return new Axion(axion);
+			}
+
+			return null;
+		}
+
+	}
+
+	/**
+	 * Compiled text holding ((var)) references, split once into the literal
+	 * text around each reference and the folded label it refers to, so it's
+	 * rendered in a single pass.
+	 */
+	static final class Template {
+
+		final String [] literals;
+		final String [] keys;
+		final int length;
+
+		Template(final String text) {
+			final List<String> literals = new ArrayList<String>();
+			final List<String> keys = new ArrayList<String>();
+			int length = 0;
+			int from = 0;
+
+			for (int i = text.indexOf("(("); i >= 0; i = text.indexOf("((", i))
+			{
+				// A reference runs to the first closing parenthesis, which
+				// must be doubled; anything else is literal text.
+
+				final int close = text.indexOf(')', i + 2);
+
+				if (close < 0 || close + 1 >= text.length())
+				{
+					break;
+				}
+
+				if (text.charAt(close + 1) == ')')
+				{
+					literals.add(text.substring(from, i));
+					keys.add(fold(text.substring(i + 2, close)));
+
+					length += i - from;
+					from = close + 2;
+				}
+
+				i = close + 2;
+			}
+
+			literals.add(text.substring(from));
+
+			this.literals = literals.toArray(new String [literals.size()]);
+			this.keys = keys.toArray(new String [keys.size()]);
+			this.length = length + text.length() - from;
+		}
+
+		/**
+		 * Compiles text if it holds any ((var)) references.
+		 *
+		 * @param text argument value
+		 *
+		 * @return template, or null if text is only literal
+		 */
+		static Template of(final String text) {
+			if (text.indexOf("((") >= 0)
+			{
+				return new Template(text);
+			}
+
+			return null;
+		}
+
+	}
+
+	/**
+	 * Compiled run of automatic transitions, fused so layers apply the axions
+	 * along it back to back rather than routing each one's result in turn.
+	 * The path lists states entered in order, and the next arc is the one
+	 * followed out of the last of them.
+	 */
+	static final class Chain {
+
+		final int [] path;
+		final int next;
+
+		Chain(final List<Integer> path, final int next) {
+			this.path = new int [path.size()];
+			this.next = next;
+
+			for (int i = 0; i < this.path.length; ++i)
+			{
+				this.path[i] = path.get(i);
+			}
+		}
+
+	}
+
+	/**
+	 * Compiled state. Transitions are split into arcs (target label and its
+	 * resolved index) with explicit events mapped to arcs through a sorted
+	 * table of event ids, plus the first default (empty event) arc.
+	 */
+	static final class State {
+
+		final String label;
+		final Axion entry;
+		final Axion leave;
+		final boolean isFinal;
+		final boolean hasTrans;
+		final String [] follows;
+		final int [] targets;
+		final int [] events;
+		final int [] arcs;
+		final int fallback;
+		final Chain [] chains;
+
+		State(final CompiledLibrary library, final TransitionStates machine, final int index) {
+			final TransitionStates.State state = machine.states[index];
+			final List<Integer> events = new ArrayList<Integer>();
+			final List<Integer> arcs = new ArrayList<Integer>();
+			boolean defaulted = false;
+			int fallback = NONE;
+
+			this.label = state.label;
+			this.entry = Axion.of(state.entry);
+			this.leave = Axion.of(state.leave);
+			this.isFinal = state.label.equalsIgnoreCase("final");
+			this.hasTrans = state.trans.length > 0;
+			this.follows = new String [state.trans.length];
+			this.targets = new int [state.trans.length];
+			this.chains = new Chain [state.trans.length];
+
+			for (int t = 0; t < state.trans.length; ++t)
+			{
+				final TransitionStates.State.Trans next = state.trans[t];
+				final int arc = next.state.isEmpty() == true ? NONE : t;
+
+				this.follows[t] = next.state;
+				this.targets[t] = NONE;
+
+				// Targets resolve the same way labels were matched at run time,
+				// circling forward from this state so the nearest wins.
+
+				for (int k = 0, l = machine.states.length; k < l; ++k)
+				{
+					if (machine.states[(index + k) % l].label.equalsIgnoreCase(next.state) == true)
+					{
+						this.targets[t] = (index + k) % l;
+
+						break;
+					}
+				}
+
+				if (next.event.isEmpty() == true)
+				{
+					if (defaulted == false)
+					{
+						defaulted = true;
+						fallback = arc;
+					}
+				}
+				else
+				{
+					final int id = library.intern(next.event);
+
+					if (events.contains(id) == false)
+					{
+						int p = 0;
+
+						while (p < events.size() && events.get(p) < id)
+						{
+							++p;
+						}
+
+						events.add(p, id);
+						arcs.add(p, arc);
+					}
+				}
+			}
+
+			this.events = new int [events.size()];
+			this.arcs = new int [arcs.size()];
+			this.fallback = fallback;
+
+			for (int i = 0; i < this.events.length; ++i)
+			{
+				this.events[i] = events.get(i);
+				this.arcs[i] = arcs.get(i);
+			}
+		}
+
+		/**
+		 * Matches event id to an arc, falling back on the default arc when
+		 * there's no explicit transition for it.
+		 *
+		 * @param event event id, or NONE for the automatic path
+		 *
+		 * @return arc index to follow or NONE
+		 */
+		int followOn(final int event) {
+			if (event != NONE)
+			{
+				int lo = 0, hi = this.events.length - 1;
+
+				while (lo <= hi)
+				{
+					final int mid = (lo + hi) >>> 1;
+
+					if (this.events[mid] < event)
+					{
+						lo = mid + 1;
+					}
+					else
+					if (this.events[mid] > event)
+					{
+						hi = mid - 1;
+					}
+					else
+					{
+						return this.arcs[mid];
+					}
+				}
+			}
+
+			return this.fallback;
+		}
+
+		/**
+		 * Finds arc followed on entering this state, if known without running
+		 * its entry axion. Only built-ins touching the layer's frames qualify,
+		 * and increments only when failing would follow the same arc.
+		 *
+		 * @return arc index to follow, NONE, or UNKNOWN
+		 */
+		int route(final CompiledLibrary library) {
+			if (this.entry == null)
+			{
+				return this.fallback;
+			}
+
+			switch (this.entry.opcode)
+			{
+				case SET:
+				case NIX:
+				{
+					return this.followOn(library.eventOf("success"));
+				}
+				case NEW:
+				case POP:
+				{
+					return this.fallback;
+				}
+				case INC:
+				case DEC:
+				{
+					final int arc = this.followOn(library.eventOf("success"));
+
+					return arc == this.followOn(library.eventOf("failure")) ? arc : UNKNOWN;
+				}
+				default:
+				{
+					return UNKNOWN;
+				}
+			}
+		}
+
+		/**
+		 * Checks leave axion, if any, is a built-in touching only the layer's
+		 * frames.
+		 */
+		boolean isFusedLeave() {
+			if (this.leave == null)
+			{
+				return true;
+			}
+
+			switch (this.leave.opcode)
+			{
+				case SET:
+				case NIX:
+				case POP:
+				{
+					return true;
+				}
+				default:
+				{
+					return false;
+				}
+			}
+		}
+
+	}
+
+	/**
+	 * Checks every machine, state, axion and transition of library is well
+	 * formed, gathering a description of each problem found.
+	 */
+	private static List<String> validate(final AxionTaskLibrary library) {
+		final List<String> problems = new ArrayList<String>();
+		final Set<String> machines = new HashSet<String>();
+
+		if (library == null || library.machines == null)
+		{
+			problems.add("no machines declared");
+
+			return problems;
+		}
+
+		for (final TransitionStates machine : library.machines)
+		{
+			if (machine == null || machine.name == null || machine.name.isEmpty() == true)
+			{
+				problems.add("machine without name");
+			}
+			else
+			if (machines.add(fold(machine.name)) == false)
+			{
+				problems.add("machine '" + machine.name + "' declared twice");
+			}
+		}
+
+		if (machines.contains("default") == false)
+		{
+			problems.add("no default machine declared");
+		}
+
+		for (final TransitionStates machine : library.machines)
+		{
+			if (machine == null || machine.name == null)
+			{
+				continue;
+			}
+
+			if (machine.states == null)
+			{
+				problems.add("machine '" + machine.name + "' without states");
+
+				continue;
+			}
+
+			final Set<String> labels = new HashSet<String>();
+
+			for (final TransitionStates.State state : machine.states)
+			{
+				if (state == null || state.label == null || state.label.isEmpty() == true)
+				{
+					problems.add("machine '" + machine.name + "' has state without label");
+				}
+				else
+				if (labels.add(fold(state.label)) == false)
+				{
+					problems.add("machine '" + machine.name + "' declares state '" + state.label + "' twice");
+				}
+			}
+
+			for (final TransitionStates.State state : machine.states)
+			{
+				if (state == null || state.label == null)
+				{
+					continue;
+				}
+
+				final String where = "machine '" + machine.name + "' state '" + state.label + "'";
+
+				if (state.entry == null || state.leave == null || state.trans == null)
+				{
+					problems.add(where + " missing entry, leave or transitions");
+
+					continue;
+				}
+
+				for (final String axion : new String [] { state.entry, state.leave })
+				{
+					final Axion compiled = Axion.of(axion);
+
+					if (compiled != null && compiled.opcode == StackOfMachinery.Opcode.START)
+					{
+						// Only machines named outright can be checked; any
+						// named through a ((var)) reference start or fail at
+						// run time.
+
+						final int slot = compiled.slotOf("machine");
+
+						if (slot == NONE || compiled.values[slot].isEmpty() == true)
+						{
+							problems.add(where + " starts machine without name");
+						}
+						else
+						if (compiled.templates[slot] == null && machines.contains(fold(compiled.values[slot])) == false)
+						{
+							problems.add(where + " starts undeclared machine '" + compiled.values[slot] + "'");
+						}
+					}
+				}
+
+				for (final TransitionStates.State.Trans next : state.trans)
+				{
+					if (next == null || next.event == null || next.state == null)
+					{
+						problems.add(where + " has transition without event or state");
+					}
+					else
+					if (next.state.isEmpty() == false && labels.contains(fold(next.state)) == false)
+					{
+						problems.add(where + " transitions on '" + next.event + "' to undeclared state '" + next.state + "'");
+					}
+				}
+			}
+		}
+
+		return problems;
+	}
+
+	/**
+	 * Compiles library once, after checking it's well formed, for any number
+	 * of stacks to share. Unlike initializing a stack with the deserialized
+	 * library directly, which tolerates a transition to an undeclared state
+	 * until it's taken, every problem is reported up front: missing or
+	 * twice-declared machines and states, missing fields, transitions to
+	 * undeclared states, and axions starting undeclared machines. A default
+	 * machine is required.
+	 *
+	 * @param library deserialized set of machine declarations
+	 *
+	 * @return compiled library
+	 *
+	 * @throws IllegalArgumentException listing every problem found
+	 */
+	public static CompiledLibrary compile(final AxionTaskLibrary library) {
+		final List<String> problems = validate(library);
+
+		if (problems.isEmpty() == false)
+		{
+			final StringBuilder message = new StringBuilder("Invalid library");
+
+			for (int i = 0; i < problems.size(); ++i)
+			{
+				message.append(i == 0 ? ": " : "; ").append(problems.get(i));
+			}
+
+			throw new IllegalArgumentException(message.toString());
+		}
+
+		return new CompiledLibrary(library);
+	}
+
+	/**
+	 * Folds label so that folded labels compare equal exactly when the source
+	 * labels compare equal ignoring case. Returns the label itself if already
+	 * folded.
+	 *
+	 * @param label label to fold
+	 *
+	 * @return folded label
+	 */
+	static String fold(final String label) {
+		for (int i = 0, l = label.length(); i < l; ++i)
+		{
+			final char c = label.charAt(i);
+
+			if (Character.toLowerCase(Character.toUpperCase(c)) != c)
+			{
+				final char [] folded = label.toCharArray();
+
+				for ( ; i < l; ++i)
+				{
+					folded[i] = Character.toLowerCase(Character.toUpperCase(folded[i]));
+				}
+
+				return new String(folded);
+			}
+		}
+
+		return label;
+	}
+
+	/**
+	 * Hashes every declared name, label, axion and transition, in order, so
+	 * that snapshots can tell whether they were taken against an identical
+	 * library.
+	 */
+	private static long fingerprint(final AxionTaskLibrary library) {
+		long hash = 0xcbf29ce484222325L;
+
+		for (final TransitionStates machine : library.machines)
+		{
+			hash = fingerprint(hash, machine.name);
+
+			for (final TransitionStates.State state : machine.states)
+			{
+				hash = fingerprint(hash, state.label);
+				hash = fingerprint(hash, state.entry);
+				hash = fingerprint(hash, state.leave);
+
+				for (final TransitionStates.State.Trans next : state.trans)
+				{
+					hash = fingerprint(hash, next.event);
+					hash = fingerprint(hash, next.state);
+				}
+			}
+		}
+
+		return hash;
+	}
+
+	private static long fingerprint(long hash, final String text) {
+		for (int i = 0, l = text.length(); i < l; ++i)
+		{
+			hash = (hash ^ text.charAt(i)) * 0x100000001b3L;
+		}
+
+		return (hash ^ 0xffff) * 0x100000001b3L;
+	}
+
+	private int intern(final String event) {
+		final String folded = fold(event);
+		Integer id = this.events.get(folded);
+
+		if (id == null)
+		{
+			this.events.put(folded, id = this.events.size());
+		}
+
+		return id;
+	}
+
+	/**
+	 * Resolves event to its library-wide id. Events no machine transitions on
+	 * (including the empty event) map to NONE.
+	 *
+	 * @param event event name
+	 *
+	 * @return event id or NONE
+	 */
+	int eventOf(final String event) {
+		if (event.isEmpty() == false)
+		{
+			final Integer id = this.events.get(fold(event));
+
+			if (id != null)
+			{
+				return id;
+			}
+		}
+
+		return NONE;
+	}
+
+	/**
+	 * Finds machine by name ignoring case. First declared wins.
+	 *
+	 * @param name machine name
+	 *
+	 * @return matching machine or null
+	 */
+	Machine machineOf(final String name) {
+		return this.named.get(fold(name));
+	}
+
+	/**
+	 * Construct default.
+	 *
+	 * @param library deserialized set of machine declarations
+	 */
+	CompiledLibrary(final AxionTaskLibrary library) {
+		this.machines = new Machine [library.machines.length];
+		this.fingerprint = fingerprint(library);
+
+		for (int i = 0; i < library.machines.length; ++i)
+		{
+			this.machines[i] = new Machine(this, i, library.machines[i]);
+
+			if (this.named.containsKey(fold(this.machines[i].name)) == false)
+			{
+				this.named.put(fold(this.machines[i].name), this.machines[i]);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,192 @@
+package com.unowmo.machinery;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/**
+ * Off-heap store of passivated layers' frames, each kept as one record of
+ * encoded bytes. Records are packed into large chunks, either direct buffers
+ * or regions mapped from a scratch file, and a chunk is reused once every
+ * record in it is freed. Not thread-safe; owners synchronize access.
+ *
+ * @author Kirk Bulis
+ *
+ */
+final class LayerStore implements Closeable {
+	static final long NONE = -1;
+
+	private static final int CHUNK = 1 << 20;
+
+	private final File file;
+	private final List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+	private final Deque<Integer> emptied = new ArrayDeque<Integer>();
+	private int [] live = new int [16];
+	private RandomAccessFile mapped = null;
+	private long mappedTo = 0;
+	private int current = -1;
+	private long stored = 0;
+
+	/**
+	 * Stores record, returning its handle.
+	 *
+	 * @param bytes array holding record
+	 * @param length length of record
+	 *
+	 * @return handle of record
+	 *
+	 * @throws IOException if scratch file can't be extended
+	 */
+	long put(final byte [] bytes, final int length) throws IOException {
+		if (this.current < 0 || this.chunks.get(this.current).remaining() < length)
+		{
+			final int prior = this.current;
+
+			this.current = this.next(length);
+
+			if (prior >= 0 && this.live[prior] == 0)
+			{
+				this.free(((long) prior << 32), 0);
+			}
+		}
+
+		final ByteBuffer chunk = this.chunks.get(this.current);
+		final long handle = ((long) this.current << 32) | chunk.position();
+
+		chunk.put(bytes, 0, length);
+
+		this.live[this.current] += length;
+		this.stored += length;
+
+		return handle;
+	}
+
+	/**
+	 * Reads record back into array given.
+	 *
+	 * @param handle handle of record
+	 * @param into array to read record into
+	 * @param length length of record
+	 */
+	void get(final long handle, final byte [] into, final int length) {
+		final ByteBuffer chunk = this.chunks.get((int) (handle >>> 32)).duplicate();
+
+		((Buffer) chunk).position((int) handle);
+		chunk.get(into, 0, length);
+	}
+
+	/**
+	 * Frees record, reusing its chunk once the chunk holds no other record.
+	 *
+	 * @param handle handle of record
+	 * @param length length of record
+	 */
+	void free(final long handle, final int length) {
+		final int index = (int) (handle >>> 32);
+
+		this.stored -= length;
+
+		if ((this.live[index] -= length) == 0)
+		{
+			if (index == this.current)
+			{
+				((Buffer) this.chunks.get(index)).clear();
+			}
+			else
+			if (this.chunks.get(index).capacity() == CHUNK)
+			{
+				((Buffer) this.chunks.get(index)).clear();
+				this.emptied.push(index);
+			}
+			else
+			{
+				// Chunks sized for one outsized record aren't worth keeping.
+
+				this.chunks.set(index, null);
+			}
+		}
+	}
+
+	/**
+	 * Number of bytes held by records.
+	 */
+	long stored() {
+		return this.stored;
+	}
+
+	/**
+	 * Drops every record and chunk, along with the scratch file.
+	 */
+	public void close() throws IOException {
+		this.chunks.clear();
+		this.emptied.clear();
+		this.current = -1;
+		this.stored = 0;
+
+		if (this.mapped != null)
+		{
+			this.mapped.close();
+			this.mapped = null;
+
+			this.file.delete();
+		}
+	}
+
+	/**
+	 * Finds chunk with room for record, reusing an emptied chunk if it'll
+	 * fit or adding a new one.
+	 */
+	private int next(final int length) throws IOException {
+		if (length <= CHUNK && this.emptied.isEmpty() == false)
+		{
+			return this.emptied.pop();
+		}
+
+		final int size = Math.max(CHUNK, length);
+		final ByteBuffer chunk;
+
+		if (this.file != null)
+		{
+			if (this.mapped == null)
+			{
+				this.mapped = new RandomAccessFile(this.file, "rw");
+				this.mapped.setLength(0);
+				this.mappedTo = 0;
+			}
+
+			chunk = this.mapped.getChannel().map(FileChannel.MapMode.READ_WRITE, this.mappedTo, size);
+
+			this.mappedTo += size;
+		}
+		else
+		{
+			chunk = ByteBuffer.allocateDirect(size);
+		}
+
+		if (this.chunks.size() == this.live.length)
+		{
+			this.live = Arrays.copyOf(this.live, this.live.length * 2);
+		}
+
+		this.live[this.chunks.size()] = 0;
+
+		this.chunks.add(chunk);
+
+		return this.chunks.size() - 1;
+	}
+
+	File file() {
+		return this.file;
+	}
+
+	/**
+	 * Construct default.
+	 *
+	 * @param file scratch file to map chunks from, or null for direct buffers
+	 */
+	LayerStore(final File file) {
+		this.file = file;
+	}
+
+}
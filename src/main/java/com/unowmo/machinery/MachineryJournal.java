@@ -0,0 +1,439 @@
+package com.unowmo.machinery;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.zip.*;
+
+/**
+ * Append-only journal of the events applied to a machine stack, kept as a
+ * directory of fixed-size, memory-mapped segment files. Each record holds a
+ * sequence number, the time the event was applied, its target layer id (0
+ * unless raised by a timer) and the event itself, guarded by a checksum. Records are
+ * appended ahead of being applied and forced to disk a group at a time.
+ *
+ * A journal is used by one stack at a time. Reopening a directory continues
+ * after the last intact record, dropping any record torn by a crash. A group
+ * that fails to be written is rolled back; should that fail too, the journal
+ * refuses further records until reopened.
+ *
+ * @author Kirk Bulis
+ *
+ */
+public class MachineryJournal implements Closeable {
+	private static final int HEADER = 8;
+	private static final String SUFFIX = ".journal";
+
+	private final File directory;
+	private final int segmentSize;
+	private final CRC32 checksum = new CRC32();
+	private ByteBuffer scratch = ByteBuffer.allocate(256);
+	private RandomAccessFile file = null;
+	private MappedByteBuffer mapped = null;
+	private long sequence = 0;
+	private boolean dirty = false;
+	private IOException broken = null;
+
+	/**
+	 * Internal interface for visiting records on replay.
+	 */
+	static interface Replay {
+
+		void onRecord(final long sequence, final long time, final long target, final String event);
+
+	}
+
+	/**
+	 * Appends record for event, rolling over to a new segment when the current
+	 * one is full. The record isn't durable until committed.
+	 *
+	 * @param time time event is applied (epoch time in ms)
+	 * @param target event target layer id, or 0 for all
+	 * @param event event applied
+	 *
+	 * @return sequence number of record
+	 *
+	 * @throws IOException if segment can't be written
+	 */
+	synchronized long append(final long time, final long target, final String event) throws IOException {
+		if (this.broken != null)
+		{
+			throw this.broken;
+		}
+
+		final byte [] evented = event.getBytes("UTF-8");
+		final int length = 28 + evented.length;
+
+		if (HEADER + length > this.segmentSize - 4)
+		{
+			throw new IOException("event too large for journal segment");
+		}
+
+		if (this.scratch.capacity() < length)
+		{
+			this.scratch = ByteBuffer.allocate(Math.max(length, this.scratch.capacity() * 2));
+		}
+
+		((Buffer) this.scratch).clear();
+		this.scratch.putLong(this.sequence + 1);
+		this.scratch.putLong(time);
+		this.scratch.putLong(target);
+		this.scratch.putInt(evented.length);
+		this.scratch.put(evented);
+		((Buffer) this.scratch).flip();
+
+		this.checksum.reset();
+		this.checksum.update(this.scratch.array(), 0, length);
+
+		if (this.mapped == null || this.mapped.remaining() < HEADER + length + 4)
+		{
+			// Records never straddle segments; what's left of a full segment
+			// stays zeroed, which reads back as its end.
+
+			this.open(this.sequence + 1, Long.MAX_VALUE);
+		}
+
+		this.mapped.putInt(length);
+		this.mapped.putInt((int) this.checksum.getValue());
+		this.mapped.put(this.scratch);
+
+		this.dirty = true;
+
+		return ++this.sequence;
+	}
+
+	/**
+	 * Forces appended records to disk. Called once per group of records.
+	 *
+	 * @throws IOException if segment can't be forced
+	 */
+	synchronized void commit() throws IOException {
+		if (this.broken != null)
+		{
+			throw this.broken;
+		}
+
+		if (this.dirty == true)
+		{
+			this.mapped.force();
+
+			this.dirty = false;
+		}
+	}
+
+	/**
+	 * Drops records appended after sequence number, such as those of a group
+	 * that failed to be written, deleting any segment they rolled over into.
+	 * If they can't be dropped, the journal refuses further records.
+	 *
+	 * @param after sequence number of last record to keep
+	 *
+	 * @throws IOException if records can't be dropped
+	 */
+	synchronized void rollback(final long after) throws IOException {
+		try
+		{
+			if (this.file != null)
+			{
+				this.file.close();
+			}
+
+			this.file = null;
+			this.mapped = null;
+			this.dirty = false;
+
+			final List<Long> segments = this.segments();
+
+			for (int i = segments.size() - 1; i >= 0 && segments.get(i) > after; --i)
+			{
+				if (new File(this.directory, name(segments.remove(i))).delete() == false)
+				{
+					throw new IOException("can't delete journal segment");
+				}
+			}
+
+			this.sequence = after;
+
+			if (segments.isEmpty() == false)
+			{
+				this.open(segments.get(segments.size() - 1), after);
+				this.commit();
+			}
+		}
+		catch (IOException eX)
+		{
+			this.broken = eX;
+
+			throw eX;
+		}
+	}
+
+	/**
+	 * Visits intact records after sequence number in order, stopping at the
+	 * first torn record.
+	 *
+	 * @param after sequence number of last record already applied
+	 * @param replay visitor of records
+	 *
+	 * @throws IOException if segments can't be read
+	 */
+	void replay(final long after, final Replay replay) throws IOException {
+		final List<Long> segments = this.segments();
+
+		for (int i = 0; i < segments.size(); ++i)
+		{
+			if (i + 1 < segments.size() && segments.get(i + 1) <= after + 1)
+			{
+				continue;
+			}
+
+			final ByteBuffer records = this.read(segments.get(i));
+			final CRC32 checksum = new CRC32();
+
+			for ( ; ; )
+			{
+				final ByteBuffer record = next(records, checksum);
+
+				if (record == null)
+				{
+					break;
+				}
+
+				final long sequence = record.getLong();
+				final long time = record.getLong();
+				final long target = record.getLong();
+				final String event = text(record);
+
+				if (sequence > after)
+				{
+					replay.onRecord(sequence, time, target, event);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Deletes segments holding only records up to sequence number, such as
+	 * those covered by a snapshot.
+	 *
+	 * @param upTo sequence number of last record no longer needed
+	 *
+	 * @throws IOException if segments can't be listed
+	 */
+	public synchronized void compact(final long upTo) throws IOException {
+		final List<Long> segments = this.segments();
+
+		for (int i = 0; i + 1 < segments.size(); ++i)
+		{
+			if (segments.get(i + 1) <= upTo + 1)
+			{
+				new File(this.directory, name(segments.get(i))).delete();
+			}
+		}
+	}
+
+	/**
+	 * Sequence number of last record appended.
+	 *
+	 * @return sequence number, or 0 if none
+	 */
+	public synchronized long sequence() {
+		return this.sequence;
+	}
+
+	/**
+	 * Forces and closes current segment.
+	 */
+	public synchronized void close() throws IOException {
+		this.commit();
+
+		if (this.file != null)
+		{
+			this.file.close();
+		}
+
+		this.file = null;
+		this.mapped = null;
+	}
+
+	private static ByteBuffer next(final ByteBuffer records, final CRC32 checksum) {
+		if (records.remaining() >= HEADER)
+		{
+			final int length = records.getInt(records.position());
+			final int expects = records.getInt(records.position() + 4);
+
+			if (length >= 28 && length <= records.remaining() - HEADER)
+			{
+				final byte [] bytes = new byte [length];
+
+				((Buffer) records).position(records.position() + HEADER);
+				records.get(bytes);
+
+				checksum.reset();
+				checksum.update(bytes, 0, length);
+
+				if ((int) checksum.getValue() == expects)
+				{
+					return ByteBuffer.wrap(bytes);
+				}
+
+				((Buffer) records).position(records.position() - HEADER - length);
+			}
+		}
+
+		return null;
+	}
+
+	private static String text(final ByteBuffer record) throws IOException {
+		final int length = record.getInt();
+
+		if (length < 0 || length > record.remaining())
+		{
+			throw new IOException("corrupt journal record");
+		}
+
+		final String text = new String(record.array(), record.position(), length, "UTF-8");
+
+		((Buffer) record).position(record.position() + length);
+
+		return text;
+	}
+
+	private ByteBuffer read(final long first) throws IOException {
+		final RandomAccessFile segment = new RandomAccessFile(new File(this.directory, name(first)), "r");
+
+		try
+		{
+			return segment.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, segment.length());
+		}
+		finally
+		{
+			segment.close();
+		}
+	}
+
+	/**
+	 * Maps segment starting at sequence number for appending, continuing
+	 * after its last intact record up to sequence number if it already
+	 * exists.
+	 */
+	private void open(final long first, final long upTo) throws IOException {
+		this.commit();
+
+		if (this.file != null)
+		{
+			this.file.close();
+		}
+
+		this.file = new RandomAccessFile(new File(this.directory, name(first)), "rw");
+
+		if (this.file.length() < this.segmentSize)
+		{
+			this.file.setLength(this.segmentSize);
+		}
+
+		this.mapped = this.file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, this.file.length());
+
+		final CRC32 checksum = new CRC32();
+		ByteBuffer record;
+
+		while ((record = next(this.mapped, checksum)) != null)
+		{
+			final long sequence = record.getLong();
+
+			if (sequence > upTo)
+			{
+				((Buffer) this.mapped).position(this.mapped.position() - HEADER - record.capacity());
+
+				break;
+			}
+
+			this.sequence = sequence;
+		}
+
+		if (this.mapped.remaining() >= 4 && this.mapped.getInt(this.mapped.position()) != 0)
+		{
+			// Torn or dropped records at the end; clear them so they can't
+			// be mistaken for part of what's appended next.
+
+			for (int p = this.mapped.position(), l = this.mapped.limit(); p < l; ++p)
+			{
+				this.mapped.put(p, (byte) 0);
+			}
+
+			this.dirty = true;
+		}
+	}
+
+	private List<Long> segments() throws IOException {
+		final String [] names = this.directory.list();
+		final List<Long> segments = new ArrayList<Long>();
+
+		if (names == null)
+		{
+			throw new IOException("can't list journal directory");
+		}
+
+		for (final String name : names)
+		{
+			if (name.endsWith(SUFFIX) == true)
+			{
+				try
+				{
+					segments.add(Long.parseLong(name.substring(0, name.length() - SUFFIX.length())));
+				}
+				catch (NumberFormatException eX)
+				{
+				}
+			}
+		}
+
+		Collections.sort(segments);
+
+		return segments;
+	}
+
+	private static String name(final long first) {
+		return String.format("%020d%s", first, SUFFIX);
+	}
+
+	/**
+	 * Construct default, with 64MB segments.
+	 *
+	 * @param directory directory holding segment files
+	 *
+	 * @throws IOException if directory or its last segment can't be opened
+	 */
+	public MachineryJournal(final File directory) throws IOException {
+		this(directory, 64 << 20);
+	}
+
+	/**
+	 * Construct default.
+	 *
+	 * @param directory directory holding segment files
+	 * @param segmentSize size of each segment file in bytes
+	 *
+	 * @throws IOException if directory or its last segment can't be opened
+	 */
+	public MachineryJournal(final File directory, final int segmentSize) throws IOException {
+		this.directory = directory;
+		this.segmentSize = Math.max(segmentSize, 4096);
+
+		if (directory.isDirectory() == false && directory.mkdirs() == false)
+		{
+			throw new IOException("can't create journal directory");
+		}
+
+		final List<Long> segments = this.segments();
+
+		if (segments.isEmpty() == false)
+		{
+			this.sequence = segments.get(segments.size() - 1) - 1;
+
+			this.open(segments.get(segments.size() - 1), Long.MAX_VALUE);
+		}
+	}
+
+}
@@ -0,0 +1,520 @@
+package com.unowmo.machinery;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+/**
+ * Host of many machine stacks, one per session, sharing a library compiled
+ * once (see {@link CompiledLibrary#compile(AxionTaskLibrary)}) and a timer
+ * scheduler. Every stack's mailbox is drained on one
+ * work-stealing pool, so a stack's events are applied on whichever thread is
+ * free, yet never on two threads at once. Stacks whose resolvers block can be
+ * drained on a thread each instead, virtual where available (see
+ * {@link MachineryThreads#perTask()}). Stacks are opened on first use and
+ * kept until closed.
+ *
+ * @author Kirk Bulis
+ *
+ */
+public class MachineryRuntime {
+	private final ConcurrentMap<String, StackOfMachinery> stacks = new ConcurrentHashMap<String, StackOfMachinery>();
+	private final LongAdder received = new LongAdder();
+	private final LongAdder handled = new LongAdder();
+	private volatile CompiledLibrary library;
+	private final MachineryScheduler scheduler;
+	private final Executor drainer;
+	private final ForkJoinPool pool;
+	private final boolean owned;
+	private volatile AxionTaskResolve resolve = null;
+	private volatile AxionTaskRegistry registry = null;
+	private volatile int maxSteps = 1000000;
+	private volatile int maxQueued = 1000000;
+	private volatile boolean fusion = false;
+
+	/**
+	 * Sample of the runtime's counters. Compare two samples for throughput.
+	 */
+	public static class Stats {
+
+		/**
+		 * Number of open sessions.
+		 */
+		public final int sessions;
+
+		/**
+		 * Number of events posted to stacks, including timeouts.
+		 */
+		public final long received;
+
+		/**
+		 * Number of events handled by stacks.
+		 */
+		public final long handled;
+
+		/**
+		 * Number of events posted but not yet handled.
+		 */
+		public final long queued;
+
+		/**
+		 * Number of pool threads busy draining stacks.
+		 */
+		public final int active;
+
+		/**
+		 * Number of drains stolen from another pool thread's queue.
+		 */
+		public final long steals;
+
+		/**
+		 * Time sample was taken (epoch time in ms).
+		 */
+		public final long time;
+
+		/**
+		 * Events handled per second since earlier sample.
+		 *
+		 * @param earlier sample taken before this one
+		 *
+		 * @return events per second, or 0 if no time has passed
+		 */
+		public double throughput(final Stats earlier) {
+			if (this.time > earlier.time)
+			{
+				return (this.handled - earlier.handled) * 1000.0 / (this.time - earlier.time);
+			}
+
+			return 0;
+		}
+
+		public String toString() {
+			return String.format
+				( "sessions=%d received=%d handled=%d queued=%d active=%d steals=%d"
+				, this.sessions
+				, this.received
+				, this.handled
+				, this.queued
+				, this.active
+				, this.steals
+				);
+		}
+
+		Stats(final int sessions, final long received, final long handled, final int active, final long steals) {
+			this.sessions = sessions;
+			this.received = received;
+			this.handled = handled;
+			this.queued = Math.max(0, received - handled);
+			this.active = active;
+			this.steals = steals;
+			this.time = new Date().getTime();
+		}
+
+	}
+
+	/**
+	 * Signals to subclass that a session's stack was just opened, before any
+	 * event is posted to it. Override to apply a session-specific resolver or
+	 * journal. Don't open or close sessions from here.
+	 *
+	 * @param session session id
+	 * @param stack stack opened for session
+	 */
+	protected void onOpened(final String session, final StackOfMachinery stack) {
+	}
+
+	/**
+	 * Looks up session's stack, opening it if not already open.
+	 *
+	 * @param session session id
+	 *
+	 * @return stack of session
+	 */
+	public StackOfMachinery open(final String session) {
+		final StackOfMachinery stack = this.stacks.get(session);
+
+		if (stack != null)
+		{
+			return stack;
+		}
+
+		final CompiledLibrary [] initialized = new CompiledLibrary [1];
+
+		final StackOfMachinery opened = this.stacks.computeIfAbsent
+			( session
+			, new Function<String, StackOfMachinery>() {
+				public StackOfMachinery apply(final String session) {
+					final StackOfMachinery stack = new StackOfMachinery(scheduler);
+
+					stack.initialize(initialized[0] = library);
+					stack.setResolve(resolve);
+					stack.setRegistry(registry);
+					stack.setExecutor(drainer);
+					stack.setBudgets(maxSteps, maxQueued);
+					stack.setFusion(fusion);
+					stack.hostedBy(MachineryRuntime.this);
+
+					onOpened(session, stack);
+
+					return stack;
+				}
+			});
+
+		if (initialized[0] != null && initialized[0] != this.library)
+		{
+			// Opened on the library being upgraded from, possibly too late
+			// for the upgrade to find, so catch up.
+
+			opened.upgradeLater(this.library);
+		}
+
+		return opened;
+	}
+
+	/**
+	 * Looks up session's stack.
+	 *
+	 * @param session session id
+	 *
+	 * @return stack of session, or null if not open
+	 */
+	public StackOfMachinery find(final String session) {
+		return this.stacks.get(session);
+	}
+
+	/**
+	 * Closes session, dropping its stack along with any pending timers.
+	 * Events already posted to the stack are still handled.
+	 *
+	 * @param session session id
+	 *
+	 * @return stack closed, or null if not open
+	 */
+	public StackOfMachinery close(final String session) {
+		final StackOfMachinery stack = this.stacks.remove(session);
+
+		if (stack != null)
+		{
+			stack.dismiss();
+		}
+
+		return stack;
+	}
+
+	/**
+	 * Posts event to session's stack, opening it if not already open. The
+	 * event is handled on the pool.
+	 *
+	 * @param session session id
+	 * @param external event to process
+	 *
+	 * @return this instance
+	 */
+	public MachineryRuntime handleEvent(final String session, final String external) {
+		this.open(session).handleEvent(external);
+
+		return this;
+	}
+
+	/**
+	 * Posts batch of events to session's stack, opening it if not already
+	 * open. The events are handled in order on the pool.
+	 *
+	 * @param session session id
+	 * @param externals events to process in order
+	 *
+	 * @return this instance
+	 */
+	public MachineryRuntime handleEvents(final String session, final String ... externals) {
+		this.open(session).handleEvents(externals);
+
+		return this;
+	}
+
+	/**
+	 * Upgrades every open session's stack to library, and opens sessions on
+	 * it from now on. Each stack upgrades in place between its own events
+	 * (see {@link StackOfMachinery#upgrade(CompiledLibrary)}), so no stack
+	 * waits on another and none is drained first. Returns right away.
+	 *
+	 * @param compiled compiled set of machine declarations
+	 *
+	 * @return stage completing with each session's report once every stack
+	 * has upgraded
+	 */
+	public CompletionStage<Map<String, StackOfMachinery.Migration>> upgrade(final CompiledLibrary compiled) {
+		final Map<String, StackOfMachinery.Migration> migrated = new ConcurrentHashMap<String, StackOfMachinery.Migration>();
+		final List<CompletableFuture<Void>> pending = new ArrayList<CompletableFuture<Void>>();
+
+		this.library = compiled;
+
+		for (final Map.Entry<String, StackOfMachinery> open : this.stacks.entrySet())
+		{
+			pending.add
+				( open.getValue().upgradeLater(compiled).thenAccept
+					( new Consumer<StackOfMachinery.Migration>() {
+						public void accept(final StackOfMachinery.Migration migration) {
+							migrated.put(open.getKey(), migration);
+						}
+					})
+				);
+		}
+
+		return CompletableFuture.allOf(pending.toArray(new CompletableFuture<?> [pending.size()])).thenApply
+			( new Function<Void, Map<String, StackOfMachinery.Migration>>() {
+				public Map<String, StackOfMachinery.Migration> apply(final Void done) {
+					return migrated;
+				}
+			});
+	}
+
+	/**
+	 * Samples the runtime's counters.
+	 *
+	 * @return current stats
+	 */
+	public Stats stats() {
+		final long handled = this.handled.sum();
+
+		return new Stats
+			( this.stacks.size()
+			, this.received.sum()
+			, handled
+			, this.pool != null ? this.pool.getActiveThreadCount() : 0
+			, this.pool != null ? this.pool.getStealCount() : 0
+			);
+	}
+
+	/**
+	 * Waits for stacks to run out of events to handle. Timers still pending
+	 * may post more later.
+	 *
+	 * @param timeout longest time to wait
+	 * @param unit unit of timeout
+	 *
+	 * @return true if idle, or false if timed out
+	 */
+	public boolean awaitIdle(final long timeout, final TimeUnit unit) {
+		if (this.pool != null)
+		{
+			return this.pool.awaitQuiescence(timeout, unit);
+		}
+
+		final long until = System.nanoTime() + unit.toNanos(timeout);
+
+		while (this.received.sum() != this.handled.sum())
+		{
+			if (System.nanoTime() - until >= 0)
+			{
+				return false;
+			}
+
+			try
+			{
+				Thread.sleep(1);
+			}
+			catch (InterruptedException eX)
+			{
+				Thread.currentThread().interrupt();
+
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Closes every session and stops the pool, unless given an executor to
+	 * drain on. Events already posted are still handled.
+	 */
+	public void shutdown() {
+		for (final String session : this.stacks.keySet())
+		{
+			this.close(session);
+		}
+
+		if (this.owned == true)
+		{
+			this.pool.shutdown();
+		}
+	}
+
+	/**
+	 * Apply resolver to stacks opened from now on.
+	 *
+	 * @param updated new hook for handling machine axions
+	 *
+	 * @return this instance
+	 */
+	public MachineryRuntime setResolve(final AxionTaskResolve updated) {
+		this.resolve = updated;
+
+		return this;
+	}
+
+	/**
+	 * Apply registry of direct axion handlers to stacks opened from now on.
+	 *
+	 * @param updated new registry of axion handlers
+	 *
+	 * @return this instance
+	 */
+	public MachineryRuntime setRegistry(final AxionTaskRegistry updated) {
+		this.registry = updated;
+
+		return this;
+	}
+
+	/**
+	 * Apply budgets bounding the work one event can cause to stacks opened
+	 * from now on (see {@link StackOfMachinery#setBudgets(int, int)}).
+	 *
+	 * @param steps most transitions followed handling one event, or 0 for
+	 * no bound
+	 * @param queued most events queued handling one event, or 0 for no bound
+	 *
+	 * @return this instance
+	 */
+	public MachineryRuntime setBudgets(final int steps, final int queued) {
+		this.maxSteps = steps;
+		this.maxQueued = queued;
+
+		return this;
+	}
+
+	/**
+	 * Apply fusion of automatic transition chains to stacks opened from now
+	 * on (see {@link StackOfMachinery#setFusion(boolean)}).
+	 *
+	 * @param fusing true to fuse chains even while logging at DEBUG level
+	 *
+	 * @return this instance
+	 */
+	public MachineryRuntime setFusion(final boolean fusing) {
+		this.fusion = fusing;
+
+		return this;
+	}
+
+	void received(final int events) {
+		if (events > 0)
+		{
+			this.received.add(events);
+		}
+	}
+
+	void handled(final int events) {
+		if (events > 0)
+		{
+			this.handled.add(events);
+		}
+	}
+
+	/**
+	 * Construct default. Drains stacks on as many threads as there are
+	 * processors, sharing the process-wide timer scheduler.
+	 *
+	 * @param library deserialized set of machine declarations
+	 */
+	public MachineryRuntime(final AxionTaskLibrary library) {
+		this(library, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Construct default, sharing the process-wide timer scheduler.
+	 *
+	 * @param library deserialized set of machine declarations
+	 * @param parallelism number of threads draining stacks
+	 */
+	public MachineryRuntime(final AxionTaskLibrary library, final int parallelism) {
+		this(library, parallelism, MachineryScheduler.shared());
+	}
+
+	/**
+	 * Construct default.
+	 *
+	 * @param library deserialized set of machine declarations
+	 * @param parallelism number of threads draining stacks
+	 * @param scheduler scheduler to hold stacks' timers
+	 */
+	public MachineryRuntime(final AxionTaskLibrary library, final int parallelism, final MachineryScheduler scheduler) {
+		this(new CompiledLibrary(library), parallelism, scheduler);
+	}
+
+	/**
+	 * Construct default, sharing the process-wide timer scheduler.
+	 *
+	 * @param compiled compiled set of machine declarations, possibly shared
+	 * with other runtimes
+	 * @param parallelism number of threads draining stacks
+	 */
+	public MachineryRuntime(final CompiledLibrary compiled, final int parallelism) {
+		this(compiled, parallelism, MachineryScheduler.shared());
+	}
+
+	/**
+	 * Construct default.
+	 *
+	 * @param compiled compiled set of machine declarations, possibly shared
+	 * with other runtimes
+	 * @param parallelism number of threads draining stacks
+	 * @param scheduler scheduler to hold stacks' timers
+	 */
+	public MachineryRuntime(final CompiledLibrary compiled, final int parallelism, final MachineryScheduler scheduler) {
+		this(compiled, pool(parallelism), scheduler, true);
+	}
+
+	/**
+	 * Construct default, draining stacks on executor given rather than on a
+	 * pool of its own. The executor isn't shut down with the runtime.
+	 *
+	 * @param library deserialized set of machine declarations
+	 * @param drainer executor to drain stacks on
+	 * @param scheduler scheduler to hold stacks' timers
+	 */
+	public MachineryRuntime(final AxionTaskLibrary library, final Executor drainer, final MachineryScheduler scheduler) {
+		this(new CompiledLibrary(library), drainer, scheduler);
+	}
+
+	/**
+	 * Construct default, draining stacks on executor given rather than on a
+	 * pool of its own. The executor isn't shut down with the runtime.
+	 *
+	 * @param compiled compiled set of machine declarations, possibly shared
+	 * with other runtimes
+	 * @param drainer executor to drain stacks on
+	 * @param scheduler scheduler to hold stacks' timers
+	 */
+	public MachineryRuntime(final CompiledLibrary compiled, final Executor drainer, final MachineryScheduler scheduler) {
+		this(compiled, drainer, scheduler, false);
+	}
+
+	private MachineryRuntime(final CompiledLibrary compiled, final Executor drainer, final MachineryScheduler scheduler, final boolean owned) {
+		this.library = compiled;
+		this.scheduler = scheduler;
+		this.drainer = drainer;
+		this.pool = drainer instanceof ForkJoinPool ? (ForkJoinPool) drainer : null;
+		this.owned = owned;
+	}
+
+	private static ForkJoinPool pool(final int parallelism) {
+		return new ForkJoinPool
+			( Math.max(1, parallelism)
+			, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+				public ForkJoinWorkerThread newThread(final ForkJoinPool pool) {
+					final ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+
+					thread.setName("machinery-runtime-" + thread.getPoolIndex());
+					thread.setDaemon(true);
+
+					return thread;
+				}
+			}
+			, null
+			, true
+			);
+	}
+
+}
@@ -0,0 +1,411 @@
+package com.unowmo.machinery;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * Timer service shared by any number of machine stacks. One thread drives a
+ * timing wheel holding every stack's timers, and expirations are dispatched
+ * to their stacks on a bounded pool of threads, each stack's in the order they
+ * expired and never two at once for the same stack. When the pool's backlog is
+ * full the timer thread dispatches for itself, slowing expiry rather than
+ * queueing without bound. Where virtual threads are available, the timer
+ * thread is virtual and each dispatch runs on a virtual thread of its own
+ * instead of the pool, with as many in flight as the pool's threads and
+ * backlog together would hold.
+ *
+ * @author Kirk Bulis
+ *
+ */
+public class MachineryScheduler {
+	private final TimingWheel timers = new TimingWheel(new Date().getTime());
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition changed = this.lock.newCondition();
+	private final Executor dispatch;
+	private boolean running = false;
+	private boolean stopped = false;
+
+	/**
+	 * Runnable container of the scheduler's active timers.
+	 */
+	private static abstract class Processor implements Runnable {
+
+		final MachineryScheduler that;
+
+		private Processor(final MachineryScheduler scheduler) {
+			this.that = scheduler;
+		}
+
+	}
+
+	/**
+	 * Description of a specific, active timer for a particular stack. Timers
+	 * are keyed by target and event (ignoring case) within their stack.
+	 */
+	static class Timer extends TimingWheel.Timer {
+
+		final MachineryTimeout owner;
+		final String folded;
+
+		Timer(final MachineryTimeout owner, final long target, final String event, final long when) {
+			super(target, event, when);
+
+			this.owner = owner;
+			this.folded = CompiledLibrary.fold(event);
+		}
+
+		public int hashCode() {
+			return (int) (this.target ^ (this.target >>> 32)) * 31 + this.folded.hashCode();
+		}
+
+		public boolean equals(final Object other) {
+			if (other instanceof Timer)
+			{
+				return ((Timer) other).target == this.target && ((Timer) other).folded.equals(this.folded);
+			}
+
+			return false;
+		}
+
+	}
+
+	/**
+	 * Executor handing tasks to another while fewer than its bound are in
+	 * flight, and otherwise running them on the caller, as the pool does once
+	 * its backlog is full.
+	 */
+	private static class Bounded implements Executor {
+
+		private final Executor executor;
+		private final Semaphore permits;
+
+		public void execute(final Runnable r) {
+			if (this.permits.tryAcquire() == false)
+			{
+				r.run();
+
+				return;
+			}
+
+			try
+			{
+				this.executor.execute
+					( new Runnable() {
+						public void run() {
+							try
+							{
+								r.run();
+							}
+							finally
+							{
+								permits.release();
+							}
+						}
+					});
+			}
+			catch (RuntimeException eX)
+			{
+				this.permits.release();
+
+				throw eX;
+			}
+		}
+
+		Bounded(final Executor executor, final int bound) {
+			this.executor = executor;
+			this.permits = new Semaphore(bound);
+		}
+
+	}
+
+	/**
+	 * Inserts timer for owning stack, replacing any active timer of the stack
+	 * for the same target and event.
+	 */
+	void register(final MachineryTimeout owner, final long target, final String event, final long when) {
+		final Timer timer = new Timer(owner, target, event, when);
+
+		this.lock.lock();
+
+		try
+		{
+			final Timer prior = owner.keyed.put(timer, timer);
+
+			if (prior != null)
+			{
+				this.timers.remove(prior);
+			}
+
+			this.timers.add(timer);
+
+			this.process();
+		}
+		finally
+		{
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Removes owning stack's timer for target and event, if any.
+	 */
+	void cancel(final MachineryTimeout owner, final long target, final String event) {
+		this.lock.lock();
+
+		try
+		{
+			final Timer prior = owner.keyed.remove(new Timer(owner, target, event, 0));
+
+			if (prior != null)
+			{
+				this.timers.remove(prior);
+			}
+		}
+		finally
+		{
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Removes all of owning stack's timers.
+	 */
+	void clear(final MachineryTimeout owner) {
+		this.lock.lock();
+
+		try
+		{
+			for (final Timer timer : owner.keyed.values())
+			{
+				this.timers.remove(timer);
+			}
+
+			owner.keyed.clear();
+		}
+		finally
+		{
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Lists owning stack's active timers.
+	 */
+	List<Timer> timers(final MachineryTimeout owner) {
+		this.lock.lock();
+
+		try
+		{
+			return new ArrayList<Timer>(owner.keyed.values());
+		}
+		finally
+		{
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Counts owning stack's active timers.
+	 */
+	int pending(final MachineryTimeout owner) {
+		this.lock.lock();
+
+		try
+		{
+			return owner.keyed.size();
+		}
+		finally
+		{
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Hands dispatching of owner's expired timers to the pool.
+	 */
+	void dispatch(final Runnable drain) {
+		try
+		{
+			this.dispatch.execute(drain);
+		}
+		catch (RejectedExecutionException eX)
+		{
+			drain.run();
+		}
+	}
+
+	/**
+	 * Starts timer thread on first use, or wakes it to look again. The thread
+	 * stays parked while there are no timers until the scheduler is shut down.
+	 */
+	private void process() {
+		if (this.running == false)
+		{
+			final Thread thread = MachineryThreads.newThread("machinery-timeout", new Processor(this) {
+				public void run() {
+					final List<TimingWheel.Timer> expired = new ArrayList<TimingWheel.Timer>();
+
+					for ( ; ; )
+					{
+						that.lock.lock();
+
+						try
+						{
+							long now = new Date().getTime();
+
+							if (that.stopped == true)
+							{
+								that.running = false;
+
+								break;
+							}
+
+							that.timers.advance(now, expired);
+
+							if (expired.isEmpty() == true)
+							{
+								try
+								{
+									if (that.timers.size() == 0)
+									{
+										that.changed.await();
+									}
+									else
+									{
+										that.changed.await(Math.max(1, that.timers.next() - now), TimeUnit.MILLISECONDS);
+									}
+								}
+								catch (InterruptedException eX)
+								{
+								}
+
+								continue;
+							}
+
+							for (final TimingWheel.Timer next : expired)
+							{
+								((Timer) next).owner.keyed.remove(next);
+							}
+						}
+						finally
+						{
+							that.lock.unlock();
+						}
+
+						for (final TimingWheel.Timer next : expired)
+						{
+							((Timer) next).owner.expired((Timer) next);
+						}
+
+						expired.clear();
+					}
+				}
+			});
+
+			thread.start();
+
+			this.running = true;
+		}
+		else
+		{
+			this.changed.signal();
+		}
+	}
+
+	/**
+	 * Stops timer thread and dispatching pool. Active timers are dropped.
+	 */
+	public void shutdown() {
+		this.lock.lock();
+
+		try
+		{
+			this.stopped = true;
+			this.timers.clear();
+			this.changed.signal();
+		}
+		finally
+		{
+			this.lock.unlock();
+		}
+
+		if (this.dispatch instanceof ExecutorService)
+		{
+			((ExecutorService) this.dispatch).shutdown();
+		}
+	}
+
+	/**
+	 * Construct default. Dispatches on as many threads as there are processors
+	 * with a backlog of 1024 stacks' expirations.
+	 */
+	public MachineryScheduler() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Construct default.
+	 *
+	 * @param threads number of threads dispatching expirations
+	 */
+	public MachineryScheduler(final int threads) {
+		this(threads, 1024);
+	}
+
+	/**
+	 * Construct default. Where dispatches run on virtual threads, threads and
+	 * backlog together bound how many may be in flight at once.
+	 *
+	 * @param threads number of threads dispatching expirations
+	 * @param backlog number of stacks' expirations held waiting for a thread
+	 */
+	public MachineryScheduler(final int threads, final int backlog) {
+		if (MachineryThreads.isVirtual() == true)
+		{
+			this.dispatch = new Bounded(MachineryThreads.perTask(), Math.max(1, threads) + Math.max(1, backlog));
+
+			return;
+		}
+
+		final ThreadPoolExecutor dispatch = new ThreadPoolExecutor
+			( Math.max(1, threads)
+			, Math.max(1, threads)
+			, 60
+			, TimeUnit.SECONDS
+			, new ArrayBlockingQueue<Runnable>(Math.max(1, backlog))
+			, new ThreadFactory() {
+				public Thread newThread(final Runnable r) {
+					final Thread thread = new Thread(r);
+
+					thread.setName("machinery-dispatch");
+					thread.setDaemon(true);
+
+					return thread;
+				}
+			}
+			, new ThreadPoolExecutor.CallerRunsPolicy()
+			);
+
+		dispatch.allowCoreThreadTimeOut(true);
+
+		this.dispatch = dispatch;
+	}
+
+	/**
+	 * Scheduler shared by stacks constructed without one.
+	 *
+	 * @return process-wide scheduler
+	 */
+	static synchronized MachineryScheduler shared() {
+		if (defaulted == null)
+		{
+			defaulted = new MachineryScheduler();
+		}
+
+		return defaulted;
+	}
+
+	private static MachineryScheduler defaulted = null;
+
+}
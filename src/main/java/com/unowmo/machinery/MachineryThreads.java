@@ -0,0 +1,64 @@
+package com.unowmo.machinery;
+
+import java.util.concurrent.*;
+
+/**
+ * Source of the threads machinery runs on. On Java 21 and later, the jar's
+ * versioned copy of this class hands out virtual threads instead, so stacks
+ * blocking in their resolvers don't each hold a platform thread.
+ *
+ * @author Kirk Bulis
+ *
+ */
+public final class MachineryThreads {
+
+	/**
+	 * Checks whether machinery runs on virtual threads.
+	 *
+	 * @return true if threads handed out are virtual
+	 */
+	public static boolean isVirtual() {
+		return false;
+	}
+
+	/**
+	 * Executor running each task on a thread of its own, such as for a stack
+	 * to drain its mailbox on (see {@link StackOfMachinery#setExecutor}), so
+	 * that blocking resolvers hold up only their own stack. Without virtual
+	 * threads, tasks run on a shared, unbounded pool of daemon threads.
+	 *
+	 * @return shared executor
+	 */
+	public static Executor perTask() {
+		return perTask;
+	}
+
+	/**
+	 * Creates unstarted daemon thread for machinery's own service.
+	 */
+	static Thread newThread(final String name, final Runnable r) {
+		final Thread thread = new Thread(r);
+
+		thread.setName(name);
+		thread.setDaemon(true);
+
+		return thread;
+	}
+
+	private static final Executor perTask = new Executor() {
+		private final ExecutorService pool = Executors.newCachedThreadPool
+			( new ThreadFactory() {
+				public Thread newThread(final Runnable r) {
+					return MachineryThreads.newThread("machinery-stack", r);
+				}
+			});
+
+		public void execute(final Runnable r) {
+			this.pool.execute(r);
+		}
+	};
+
+	private MachineryThreads() {
+	}
+
+}
@@ -1,19 +1,25 @@
 package com.unowmo.machinery;
 
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 /**
  * Tracks recorded timers and generates timeout events to be handled by specific
- * machine stack layers.
+ * machine stack layers. Timers are held by a scheduler, which may be shared
+ * with other stacks' timeouts.
  * 
  * @author Kirk Bulis
  *
  */
 public abstract class MachineryTimeout {
-	private final List<Timer> timers = new ArrayList<Timer>();
+	final Map<MachineryScheduler.Timer, MachineryScheduler.Timer> keyed = new HashMap<MachineryScheduler.Timer, MachineryScheduler.Timer>();
+	private final Queue<MachineryScheduler.Timer> fired = new ConcurrentLinkedQueue<MachineryScheduler.Timer>();
+	private final AtomicBoolean draining = new AtomicBoolean(false);
+	private final MachineryScheduler scheduler;
 
 	/**
-	 * Runnable container of a set of active timers.
+	 * Runnable container of expired timers waiting to be signaled.
 	 */
 	private static abstract class Processor implements Runnable {
 
@@ -25,31 +31,42 @@ public abstract class MachineryTimeout {
 
 	}
 
-	/**
-	 * Description of a specific, active timer.
-	 */
-	private static class Timer {
+	private final Runnable drain = new Processor(this) {
+		public void run() {
+			do
+			{
+				MachineryScheduler.Timer next;
 
-		final String target;
-		final String event;
-		final long when;
+				while ((next = that.fired.poll()) != null)
+				{
+					try
+					{
+						that.onTimeout(next.target, next.event);
+					}
+					catch (Exception eX)
+					{
+					}
+				}
 
-		Timer(final String target, final String event, final long when) {
-			this.target = target;
-			this.event = event;
-			this.when = when;
-		}
+				that.draining.set(false);
+			}
+			while (that.fired.isEmpty() == false && that.draining.compareAndSet(false, true) == true);
 
-	}
+			if (that.scheduler.pending(that) == 0)
+			{
+				that.onAllDone();
+			}
+		}
+	};
 
 	/**
 	 * Signals to defining container or subclass that a timer has expired on the
 	 * timeout processing thread. Make sure to synchronize access to the target.
 	 * 
-	 * @param target event target
+	 * @param target event target layer id
 	 * @param event event to handle on timeout
 	 */
-	protected abstract void onTimeout(final String target, final String event);
+	protected abstract void onTimeout(final long target, final String event);
 
 	/**
 	 * Signals to defining container or subclass there are no more timers queued.
@@ -57,109 +74,45 @@ public abstract class MachineryTimeout {
 	protected abstract void onAllDone();
 	
 	/**
-	 * Inserts new active timer into the current set. Timers are executed in
-	 * chronological order, with expired timeouts processing immediately.
+	 * Inserts new active timer into the current set, replacing any active timer
+	 * for the same target and event. Timers are executed in chronological order,
+	 * with expired timeouts processing immediately.
 	 * 
-	 * @param target event target
+	 * @param target event target layer id
 	 * @param event event to handle on timeout
 	 * @param when time to handle event (epoch time in ms)
 	 */
-	void register(final String target, final String event, final long when)
-	{
-		int posi = 0;
-
-		synchronized (this.timers) {
-			for (final Timer timer : this.timers)
-			{
-				if (timer.target.contentEquals(target) == true && timer.event.equalsIgnoreCase(event) == true)
-				{
-					this.timers.remove(posi);
-					
-					break;
-				}
-				
-				++posi;
-			}
-
-			posi = 0;
-			
-			for (final Timer timer : this.timers)
-			{
-				if (when < timer.when)
-				{
-					break;
-				}
+	void register(final long target, final String event, final long when) {
+		this.scheduler.register(this, target, event, when);
+	}
 
-				++posi;
-			}
+	/**
+	 * Removes active timer for target and event, if any.
+	 * 
+	 * @param target event target layer id
+	 * @param event event to no longer handle
+	 */
+	void cancel(final long target, final String event) {
+		this.scheduler.cancel(this, target, event);
+	}
 
-			this.timers.add
-				( posi
-				, new Timer(target, event, when)
-				);
-			
-			if (posi == 0)
-			{
-				this.process();
-			}
-		}
+	/**
+	 * Lists active timers, in no particular order.
+	 */
+	List<MachineryScheduler.Timer> timers() {
+		return this.scheduler.timers(this);
 	}
 
 	/**
-	 * Internal method for handling active timers. Each call to process restarts
-	 * looping through active timers when not currently running. Only one thread
-	 * should be active at any time.
+	 * Queues expired timer to be signaled, dispatching to the scheduler's pool
+	 * unless already signaling.
 	 */
-	private void process() {
-		synchronized (this.timers) {
-			if (this.timers.size() == 1)
-			{
-				new Thread(new Processor(this) {
-					public void run() {
-						try
-						{
-							synchronized (that.timers) {
-								while (that.timers.isEmpty() == false)
-								{
-									long now = new Date().getTime();
-									Timer next = that.timers.get(0);
-	
-									if (next.when <= now)
-									{
-										that.timers.remove(0);
-										
-										try
-										{
-											that.onTimeout(next.target, next.event);
-										}
-										catch (Exception eX)
-										{
-										}
-									}
-									else
-									{
-										try
-										{
-											that.timers.wait(next.when - now);
-										}
-										catch (Exception eX)
-										{
-										}
-									}
-								}
-							}
-						}
-						finally
-						{
-							that.onAllDone();
-						}
-					}
-				}).start();
-			}
-			else
-			{
-				this.timers.notify();
-			}
+	void expired(final MachineryScheduler.Timer timer) {
+		this.fired.add(timer);
+
+		if (this.draining.compareAndSet(false, true) == true)
+		{
+			this.scheduler.dispatch(this.drain);
 		}
 	}
 
@@ -167,9 +120,23 @@ public abstract class MachineryTimeout {
 	 * Erases all current timers.
 	 */
 	void clear() {
-		synchronized (this.timers) {
-			this.timers.clear();
-		}
+		this.scheduler.clear(this);
+	}
+
+	/**
+	 * Construct default, sharing the process-wide scheduler.
+	 */
+	public MachineryTimeout() {
+		this(MachineryScheduler.shared());
+	}
+
+	/**
+	 * Construct default.
+	 * 
+	 * @param scheduler scheduler to hold timers
+	 */
+	public MachineryTimeout(final MachineryScheduler scheduler) {
+		this.scheduler = scheduler;
 	}
 
 }
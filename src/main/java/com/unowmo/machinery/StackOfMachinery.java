@@ -1,6 +1,11 @@
 package com.unowmo.machinery;
 
+import java.io.*;
+import java.nio.channels.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
 
 /**
  * Layered stack of machines that maintains the library, pushes/pops children
@@ -11,16 +16,100 @@ import java.util.*;
  *
  */
 public class StackOfMachinery {
-	private AxionTaskLibrary library = new AxionTaskLibrary();
+	private CompiledLibrary library = CompiledLibrary.EMPTY;
 	private ListOfGraphEntry entries = new ListOfGraphEntry();
-	private AxionTaskResolve resolve = new DefaultedResolve();
-	private MachineryTimeout timeout = new MachineryTimeout() {
-		protected void onTimeout(final String target, final String event) {
-			StackOfMachinery.this.handleEvent(event, target);
-		}
-		protected void onAllDone() {
-			synchronized (StackOfMachinery.this) {
-				StackOfMachinery.this.notifyAll();
+	private AxionTaskResolve resolve = DEFAULTED;
+	private AxionTaskRegistry registry = UNREGISTERED;
+	private final MachineryTimeout timeout;
+	private final Queue<Mail> mailbox = new ConcurrentLinkedQueue<Mail>();
+	private final AtomicInteger posted = new AtomicInteger(0);
+	private volatile Executor drainer = null;
+	private volatile Thread draining = null;
+	private volatile MachineryJournal journal = null;
+	private volatile MachineryRuntime host = null;
+	private Map<MachineryScheduler.Timer, MachineryScheduler.Timer> held = null;
+	private final Set<Parked> outstanding = new LinkedHashSet<Parked>();
+	private long sequence = 0;
+	private long now = 0;
+	private final List<Mail> group = new ArrayList<Mail>();
+	private final Processing processing = new Processing();
+	private volatile long idle = 0;
+	private volatile File spill = null;
+	private LayerStore store = null;
+	private Layer oldest = null, newest = null;
+	private boolean tracking = false;
+	private Spill spilled = null;
+	private volatile int maxSteps = 1000000;
+	private volatile int maxQueued = 1000000;
+	private volatile boolean fusion = false;
+	private final Runnable drain = new Runnable() {
+		public void run() {
+			int missed = 1;
+			boolean more = true;
+
+			while (more == true)
+			{
+				// Mark the thread while it works through the mailbox, so a
+				// task posted from within an event can tell it would be
+				// waiting on itself.
+
+				draining = Thread.currentThread();
+
+				try
+				{
+					for (int i = 0; i < missed; ++i)
+					{
+						group.add(mailbox.poll());
+					}
+
+					final boolean journaled = journal(group);
+
+					final MachineryRuntime runtime = host;
+					int handled = 0;
+
+					for (final Mail next : group)
+					{
+						now = next.time != 0 ? next.time : new Date().getTime();
+
+						if (next.task != null)
+						{
+							perform(next.task);
+						}
+
+						if (journaled == true)
+						{
+							for (final String external : next.externals)
+							{
+								apply(external, next.target);
+							}
+						}
+
+						if (next.journaled != 0)
+						{
+							sequence = next.journaled;
+						}
+
+						handled += next.externals.length;
+					}
+
+					passivate();
+
+					if (runtime != null)
+					{
+						runtime.handled(handled);
+					}
+				}
+				finally
+				{
+					// Settle what was taken from the mailbox whatever
+					// happened, or posting would never drain it again.
+
+					group.clear();
+
+					draining = null;
+
+					more = (missed = posted.addAndGet(-missed)) != 0;
+				}
 			}
 		}
 	};
@@ -49,8 +138,22 @@ public class StackOfMachinery {
 		 */
 		protected void log(final String message) {
 		}
+
+		/**
+		 * Default implementation; nothing is logged.
+		 */
+		protected boolean isLogging(final Level level) {
+			return false;
+		}
 		
 	}
+
+	/**
+	 * Defaults shared by every stack until one is assigned; neither holds
+	 * any state, and the registry isn't reachable to register with.
+	 */
+	private static final AxionTaskResolve DEFAULTED = new DefaultedResolve();
+	private static final AxionTaskRegistry UNREGISTERED = new AxionTaskRegistry();
 	
 	/**
 	 * Internal interface for handling external events' side effects within the
@@ -125,6 +228,40 @@ public class StackOfMachinery {
 
 		String pop(final Layer who);
 
+		/**
+		 * Executes axion that isn't built in, using the handler registered for
+		 * its label, or the resolver when none is. Parks the layer if the
+		 * axion completes later.
+		 * 
+		 * @param axion
+		 * @param data
+		 * @param pairs
+		 * @param who
+		 * @return
+		 */
+		String execute(final CompiledLibrary.Axion axion, final AxionTaskResolve.Update data, final LabeledValuePair [] pairs, final Layer who);
+
+		/**
+		 * Tells whether chains of automatic transitions over built-ins are
+		 * applied back to back, rather than hop by hop, each logged.
+		 * 
+		 * @param resolve
+		 * @return
+		 */
+		boolean fusing(final AxionTaskResolve resolve);
+
+		/**
+		 * Counts transitions about to be followed by layer against the step
+		 * budget of the event being processed.
+		 * 
+		 * @param steps
+		 * @param state
+		 * @param external
+		 * @param who
+		 * @return false if over budget, so traversal stops
+		 */
+		boolean step(final int steps, final CompiledLibrary.State state, final String external, final Layer who);
+
 	}
 
 	/**
@@ -139,40 +276,356 @@ public class StackOfMachinery {
 	
 	/**
 	 * Container of layers. Stores layers in a parent-child hierarchy, where
-	 * each entry points to its parent. Traversable by closure.
+	 * each entry points to its parent and lists its children. Live entries
+	 * are indexed by layer id in the order they were graphed, and subscribed
+	 * by the events their current state can follow on. Traversable by
+	 * closure.
 	 */
 	private static class ListOfGraphEntry {
-		final List<Entry> graphed = new ArrayList<Entry>();
+		final Map<Long, Entry> graphed = new LinkedHashMap<Long, Entry>();
+		private final List<TreeSet<Entry>> subscribed = new ArrayList<TreeSet<Entry>>();
+		private final TreeSet<Entry> anything = new TreeSet<Entry>(ORDERED);
+		private long ordered = 0;
+
+		private static final Comparator<Entry> ORDERED = new Comparator<Entry>() {
+			public int compare(final Entry a, final Entry b) {
+				return a.order < b.order ? -1 : a.order > b.order ? 1 : 0;
+			}
+		};
+
+		/**
+		 * Queues event for live layers whose current state can follow on it,
+		 * in the order they were graphed. Layers in a state with a default
+		 * transition, or in the final state, follow on any event, as do
+		 * layers parked on an axion, which defer every event until they
+		 * resume.
+		 */
+		void subscribers(final int event, final String external, final List<Event> queuing) {
+			final Iterator<Entry> a = event != CompiledLibrary.NONE && event < this.subscribed.size() && this.subscribed.get(event) != null ? this.subscribed.get(event).iterator() : null;
+			final Iterator<Entry> b = this.anything.iterator();
+			Entry x = a != null && a.hasNext() == true ? a.next() : null;
+			Entry y = b.hasNext() == true ? b.next() : null;
+
+			while (x != null || y != null)
+			{
+				if (y == null || (x != null && x.order <= y.order))
+				{
+					queuing.add(new Event(external, x.target));
+
+					if (y == x)
+					{
+						y = b.hasNext() == true ? b.next() : null;
+					}
+
+					x = a.hasNext() == true ? a.next() : null;
+				}
+				else
+				{
+					queuing.add(new Event(external, y.target));
+
+					y = b.hasNext() == true ? b.next() : null;
+				}
+			}
+		}
+
+		/**
+		 * Moves layer's subscriptions over to its current state, if changed,
+		 * or on parking or resuming.
+		 */
+		void reindex(final Layer layer) {
+			if (this.isLive(layer) == true && (layer.entry.indexed != layer.current || layer.entry.deferring != (layer.parked != null)))
+			{
+				this.unsubscribe(layer.entry);
+				this.subscribe(layer.entry);
+			}
+		}
+
+		private void subscribe(final Entry entry) {
+			final Layer layer = entry.target;
+
+			entry.deferring = layer.parked != null;
+
+			if (entry.deferring == true)
+			{
+				this.anything.add(entry);
+			}
+			else
+			if (layer.current >= 0 && layer.current < layer.machine.states.length)
+			{
+				final CompiledLibrary.State state = layer.machine.states[layer.current];
+
+				for (int i = 0; i < state.events.length; ++i)
+				{
+					if (state.arcs[i] != CompiledLibrary.NONE)
+					{
+						while (this.subscribed.size() <= state.events[i])
+						{
+							this.subscribed.add(null);
+						}
+
+						if (this.subscribed.get(state.events[i]) == null)
+						{
+							this.subscribed.set(state.events[i], new TreeSet<Entry>(ORDERED));
+						}
+
+						this.subscribed.get(state.events[i]).add(entry);
+					}
+				}
+
+				if (state.fallback != CompiledLibrary.NONE || state.isFinal == true)
+				{
+					this.anything.add(entry);
+				}
+			}
+
+			entry.indexed = layer.current;
+		}
+
+		private void unsubscribe(final Entry entry) {
+			final Layer layer = entry.target;
+
+			if (entry.indexed >= 0 && entry.indexed < layer.machine.states.length)
+			{
+				final CompiledLibrary.State state = layer.machine.states[entry.indexed];
+
+				for (int i = 0; i < state.events.length; ++i)
+				{
+					if (state.events[i] < this.subscribed.size() && this.subscribed.get(state.events[i]) != null)
+					{
+						this.subscribed.get(state.events[i]).remove(entry);
+					}
+				}
+			}
+
+			this.anything.remove(entry);
+
+			entry.indexed = CompiledLibrary.NONE;
+			entry.deferring = false;
+		}
 
+		/**
+		 * Visits live descendants of ancestor in the order they were graphed.
+		 */
 		void visitClosure(final Layer ancestor, final OnGraphedEntries v) {
-			for (Entry entry : this.graphed)
+			if (ancestor.entry != null && ancestor.entry.first != null)
 			{
-				Entry current = entry;
-				
-				while (current.parent != null)
+				final List<Entry> closure = new ArrayList<Entry>();
+
+				collect(ancestor.entry, closure);
+
+				Collections.sort
+					( closure
+					, ORDERED
+					);
+
+				for (final Entry entry : closure)
+				{
+					v.onVisit(entry.target);
+				}
+			}
+		}
+
+		private static void collect(final Entry parent, final List<Entry> closure) {
+			for (Entry child = parent.first; child != null; child = child.next)
+			{
+				if (child.live == true)
+				{
+					closure.add(child);
+				}
+
+				if (child.first != null)
+				{
+					collect(child, closure);
+				}
+			}
+		}
+
+		/**
+		 * Grafts layer under parent (or as a root given null), identifying it
+		 * by the next number in this graph's sequence, so that ids repeat when
+		 * the same events are handled again.
+		 */
+		Entry add(final Entry parent, final Layer layer) {
+			do
+			{
+				layer.uniqued = ++this.ordered;
+			}
+			while (this.graphed.containsKey(layer.uniqued) == true);
+
+			return this.graft(parent, layer, this.ordered, true);
+		}
+
+		/**
+		 * Grafts layer under parent as of order, which must follow the order
+		 * of any entry already graphed. Entries grafted dead are only linked
+		 * into the hierarchy.
+		 */
+		Entry graft(final Entry parent, final Layer layer, final long order, final boolean live) {
+			final Entry entry = new Entry(parent, layer, order);
+
+			if (this.ordered < order)
+			{
+				this.ordered = order;
+			}
+
+			if (parent != null)
+			{
+				if (parent.last != null)
+				{
+					parent.last.next = entry;
+					entry.prev = parent.last;
+				}
+				else
+				{
+					parent.first = entry;
+				}
+
+				parent.last = entry;
+			}
+
+			if (live == true)
+			{
+				this.graphed.put(layer.uniqued, entry);
+
+				this.subscribe(entry);
+			}
+			else
+			{
+				entry.live = false;
+			}
+
+			return layer.entry = entry;
+		}
+
+		/**
+		 * Lists every entry still linked into the hierarchy, dropped or not,
+		 * in the order they were graphed.
+		 */
+		List<Entry> linked() {
+			final List<Entry> linked = new ArrayList<Entry>();
+			final List<Entry> pending = new ArrayList<Entry>();
+
+			for (final Entry root : this.graphed.values())
+			{
+				if (root.parent == null)
+				{
+					pending.add(root);
+				}
+			}
+
+			while (pending.isEmpty() == false)
+			{
+				final Entry entry = pending.remove(pending.size() - 1);
+
+				linked.add(entry);
+
+				for (Entry child = entry.first; child != null; child = child.next)
+				{
+					pending.add(child);
+				}
+			}
+
+			Collections.sort
+				( linked
+				, ORDERED
+				);
+
+			return linked;
+		}
+
+		/**
+		 * Drops layer's entry from the graph. Its descendants stay graphed
+		 * under it until they're dropped too.
+		 */
+		void remove(final Entry entry) {
+			if (entry.live == true)
+			{
+				entry.live = false;
+
+				this.graphed.remove(entry.target.uniqued);
+
+				this.unsubscribe(entry);
+
+				for (Entry prune = entry; prune.live == false && prune.first == null && prune.parent != null; )
 				{
-					if (current.parent.target == ancestor)
+					final Entry parent = prune.parent;
+
+					if (prune.prev != null)
 					{
-						v.onVisit(entry.target);
+						prune.prev.next = prune.next;
 					}
-					
-					current = current.parent;
+					else
+					{
+						parent.first = prune.next;
+					}
+
+					if (prune.next != null)
+					{
+						prune.next.prev = prune.prev;
+					}
+					else
+					{
+						parent.last = prune.prev;
+					}
+
+					prune = parent;
 				}
 			}
 		}
 
+		boolean isLive(final Layer layer) {
+			return layer.entry != null && layer.entry.live == true;
+		}
+
+		Entry find(final long uniqued) {
+			return this.graphed.get(uniqued);
+		}
+
+		/**
+		 * Subscribes every live entry afresh, as when event ids change with
+		 * the library.
+		 */
+		void resubscribe() {
+			this.subscribed.clear();
+			this.anything.clear();
+
+			for (final Entry entry : this.graphed.values())
+			{
+				this.subscribe(entry);
+			}
+		}
+
+		void clear() {
+			for (final Entry entry : this.graphed.values())
+			{
+				entry.live = false;
+			}
+
+			this.graphed.clear();
+			this.subscribed.clear();
+			this.anything.clear();
+		}
+
 	}
 	
 	/**
-	 * Container of hierarchically graphed layer entries. 
+	 * Container of hierarchically graphed layer entries. Children are linked
+	 * through their siblings in the order they were graphed.
 	 */
 	private static class Entry {
 		private final Entry parent;
 		private final Layer target;
+		private final long order;
+		private int indexed = CompiledLibrary.NONE;
+		private boolean deferring = false;
+		private boolean live = true;
+		private Entry first, last;
+		private Entry prev, next;
 		
-		Entry(final Entry start, final Layer layer) {
+		Entry(final Entry start, final Layer layer, final long order) {
 			this.parent = start;
 			this.target = layer;
+			this.order = order;
 		}
 
 	}
@@ -196,1181 +649,3045 @@ public class StackOfMachinery {
 	}
 	
 	/**
-	 * Internal container.
+	 * Built-in axions, resolved from axion labels once when the library is
+	 * compiled. Anything else executes through the registry or resolver. Each
+	 * opcode notes whether it's built in when leaving a state, and for leaving
+	 * the final state, which argument must be present for it to apply.
 	 */
-	static class Layer extends Frames {
-		private final TransitionStates machine;
-		private final String uniqued;
-		private Integer current = 0;
+	static enum Opcode {
 
-		boolean matching(final LabeledValuePair ... tuple) {
-			for (final LabeledValuePair pair : tuple)
-			{
-				if (this.isMatching(pair.label, pair.value) == false)
+		EXECUTE("", false, null) {
+			String apply(final Layer layer, final CompiledLibrary.Axion axion, final AxionTaskResolve resolve, final QueuedEvents handler, final String external, final String previous) {
+				final AxionTaskResolve.Update data = new AxionTaskResolve.Update();
+				
+				final String opRes = handler.execute
+					( axion
+					, data
+					, layer.expand(axion).list
+					, layer
+					);
+
+				if (layer.parked == null)
 				{
-					return false;
+					layer.update(data);
 				}
-			}
-			
-			return true;
-		}
 
-		void followOn(final String external, final AxionTaskResolve resolve, final QueuedEvents handler) {
-			if (this.current >= 0 && this.current < this.machine.states.length)
-			{
-				// Given current state, we check for the possibility to transition
-				// out of here. If so, then we want to advance the machine to the
-				// next state by matching the event to a transition. We don't use
-				// the "any" path with asynchronous events.
-				
-				TransitionStates.State state = this.machine.states[this.current];
+				return opRes;
+			}
+		},
+		START("start", true, "machine") {
+			String apply(final Layer layer, final CompiledLibrary.Axion axion, final AxionTaskResolve resolve, final QueuedEvents handler, final String external, final String previous) {
+				return handler.start
+					( layer.valueOf(axion, "machine", "")
+					, layer.expand(axion).list
+					, layer
+					);
+			}
+		},
+		TRACE("trace", true, null) {
+			String apply(final Layer layer, final CompiledLibrary.Axion axion, final AxionTaskResolve resolve, final QueuedEvents handler, final String external, final String previous) {
+				return handler.trace
+					( resolve.isLogging(AxionTaskResolve.Level.INFO) == true ? layer.valueOf(axion, "debug", "") : ""
+					, layer
+					);
+			}
+		},
+		BLAST("blast", true, "event") {
+			String apply(final Layer layer, final CompiledLibrary.Axion axion, final AxionTaskResolve resolve, final QueuedEvents handler, final String external, final String previous) {
+				return handler.blast
+					( layer.valueOf(axion, "event", "")
+					, layer
+					);
+			}
+		},
+		RAISE("raise", true, "event") {
+			String apply(final Layer layer, final CompiledLibrary.Axion axion, final AxionTaskResolve resolve, final QueuedEvents handler, final String external, final String previous) {
+				return handler.raise
+					( layer.valueOf(axion, "event", "")
+					, layer
+					);
+			}
+		},
+		PATCH("patch", true, "command") {
+			String apply(final Layer layer, final CompiledLibrary.Axion axion, final AxionTaskResolve resolve, final QueuedEvents handler, final String external, final String previous) {
+				return handler.patch
+					( layer.valueOf(axion, "command", "")
+					, layer.valueOf(axion, "status", "")
+					, layer
+					);
+			}
+		},
+		TIMER("timer", false, null) {
+			String apply(final Layer layer, final CompiledLibrary.Axion axion, final AxionTaskResolve resolve, final QueuedEvents handler, final String external, final String previous) {
+				return handler.timer
+					( layer.valueOf(axion, "expires", "")
+					, layer.valueOf(axion, "event", "")
+					, layer
+					);
+			}
+		},
+		WRITE("write", false, "label") {
+			String apply(final Layer layer, final CompiledLibrary.Axion axion, final AxionTaskResolve resolve, final QueuedEvents handler, final String external, final String previous) {
+				return handler.write
+					( layer.valueOf(axion, "label", "")
+					, layer.valueOf(axion, "value", "")
+					, layer
+					);
+			}
+		},
+		COUNT("count", false, null) {
+			String apply(final Layer layer, final CompiledLibrary.Axion axion, final AxionTaskResolve resolve, final QueuedEvents handler, final String external, final String previous) {
+				return handler.count
+					( layer.expand(axion).list
+					, layer
+					);
+			}
+		},
+		INC("inc", false, null) {
+			String apply(final Layer layer, final CompiledLibrary.Axion axion, final AxionTaskResolve resolve, final QueuedEvents handler, final String external, final String previous) {
+				final String label = layer.valueOf(axion, "label", "");
+				final Value match = layer.lookUp(CompiledLibrary.fold(label));
 
-				if (state.trans.length > 0)
+				try
 				{
-					String followTo = state.followOn(external);
-					String previous = "";
-
-					while (followTo.isEmpty() == false)
-					{
-						int i = this.current;
-						
-						resolve.log
-							( String.format
-								( "(%s) state '%s' on '%s' -> '%s'"
-								, this.uniqued
-								, state.label
-								, external
-								, followTo
-								)
-							);
-
-						for ( ; ; )
-						{
-							final TransitionStates.State match = this.machine.states[i];
-							
-							if (match.label.equalsIgnoreCase(followTo) == true)
-							{
-								if (state.leave.isEmpty() == false)
-								{
-									// Process axion on leaving the current state before
-									// processing any axion associated with entering the
-									// target state. We ignore the result.
-									
-									AxionTaskResolve.Part part = this.expand(resolve.split(state.leave));
-
-									if (part.label.equalsIgnoreCase("start") == true)
-									{
-										handler.start
-											( part.valueOf("machine", "")
-											, part.list
-											, this
-											);
-									}
-									else
-									if (part.label.equalsIgnoreCase("trace") == true)
-									{
-										handler.trace
-											( part.valueOf("debug", "")
-											, this
-											);
-									}
-									else
-									if (part.label.equalsIgnoreCase("blast") == true)
-									{
-										handler.blast
-											( part.valueOf("event", "")
-											, this
-											);
-									}
-									else
-									if (part.label.equalsIgnoreCase("raise") == true)
-									{
-										handler.raise
-											( part.valueOf("event", "")
-											, this
-											);
-									}
-									else
-									if (part.label.equalsIgnoreCase("patch") == true)
-									{
-										handler.patch
-											( part.valueOf("command", "")
-											, part.valueOf("status", "")
-											, this
-											);
-									}
-									else
-									if (part.label.equalsIgnoreCase("set") == true)
-									{
-										this.apply
-											( part.valueOf("label", "")
-											, part.valueOf("value", "")
-											);
-									}
-									else
-									if (part.label.equalsIgnoreCase("nix") == true)
-									{
-										this.evict
-											( part.valueOf("label", "")
-											);
-									}
-									else
-									if (part.label.equalsIgnoreCase("pop") == true)
-									{
-										this.pop();
-									}
-									else
-									{
-										AxionTaskResolve.Update data = new AxionTaskResolve.Update();
-
-										resolve.execute
-											( part.label
-											, data
-											, part.list
-											);
-										
-										for (final LabeledValuePair pair : data)
-										{
-											this.apply(pair.label, pair.value);
-											
-											break;
-										}
-										
-										data.pop();
-										
-										for (final LabeledValuePair pair : data)
-										{
-											this.accum(pair.label, pair.value);
-										}
-									}
-								}
-								
-								state = match;
-								
-								if (state.entry.isEmpty() == false)
-								{
-									// Handle the axion associated with transitioning to
-									// the target state.
-									
-									AxionTaskResolve.Part part = this.expand(resolve.split(state.entry));
-									String opRes;
-
-									if (part.label.equalsIgnoreCase("start") == true)
-									{
-										opRes = handler.start
-											( part.valueOf("machine", "")
-											, part.list
-											, this
-											);
-									}
-									else
-									if (part.label.equalsIgnoreCase("trace") == true)
-									{
-										opRes = handler.trace
-											( part.valueOf("debug", "")
-											, this
-											);
-									}
-									else
-									if (part.label.equalsIgnoreCase("blast") == true)
-									{
-										opRes = handler.blast
-											( part.valueOf("event", "")
-											, this
-											);
-									}
-									else
-									if (part.label.equalsIgnoreCase("raise") == true)
-									{
-										opRes = handler.raise
-											( part.valueOf("event", "")
-											, this
-											);
-									}
-									else
-									if (part.label.equalsIgnoreCase("patch") == true)
-									{
-										opRes = handler.patch
-											( part.valueOf("command", "")
-											, part.valueOf("status", "")
-											, this
-											);
-									}
-									else
-									if (part.label.equalsIgnoreCase("timer") == true)
-									{
-										opRes = handler.timer
-											( part.valueOf("expires", "")
-											, part.valueOf("event", "")
-											, this
-											);
-									}
-									else
-									if (part.label.equalsIgnoreCase("write") == true)
-									{
-										opRes = handler.write
-											( part.valueOf("label", "")
-											, part.valueOf("value", "")
-											, this
-											);
-									}
-									else
-									if (part.label.equalsIgnoreCase("count") == true)
-									{
-										opRes = handler.count
-											( part.list
-											, this
-											);
-									}
-									else
-									if (part.label.equalsIgnoreCase("inc") == true)
-									{
-										String value = this.matchUp(part.valueOf("label", ""), "0");
-										
-										opRes = "success";
-
-										try
-										{
-											value = Integer.toString(Integer.parseInt(value) + Integer.parseInt(part.valueOf("value", "0")));
-										}
-										catch (Exception eX)
-										{
-											opRes = "failure";
-											value = "0";
-										}
-										
-										this.apply
-											( part.valueOf("label", "")
-											, value
-											);
-									}
-									else
-									if (part.label.equalsIgnoreCase("dec") == true)
-									{
-										String value = this.matchUp(part.valueOf("label", ""), "0");
-										
-										opRes = "success";
-
-										try
-										{
-											value = Integer.toString(Integer.parseInt(value) - Integer.parseInt(part.valueOf("value", "0")));
-										}
-										catch (Exception eX)
-										{
-											opRes = "failure";
-											value = "0";
-										}
-										
-										this.apply
-											( part.valueOf("label", "")
-											, value
-											);
-									}
-									else
-									if (part.label.equalsIgnoreCase("equ") == true)
-									{
-										String value = this.matchUp(part.valueOf("label", ""), "0");
-
-										opRes = "notsame";
-										
-										if (value.equalsIgnoreCase(part.valueOf("value", "")) == true)
-										{
-											opRes = "success";
-										}
-										
-										resolve.log
-											( String.format
-												( "(%s) axion '%s' of '%s' <- '%s'"
-												, this.uniqued
-												, part.label
-												, value
-												, opRes
-												)
-											);
-									}
-									else
-									if (part.label.equalsIgnoreCase("has") == true)
-									{
-										String value = this.fetchIt(part.valueOf("label", ""), "");
-
-										opRes = "success";
-										
-										if (value.equalsIgnoreCase("") == true)
-										{
-											opRes = "missing";
-										}
-										
-										resolve.log
-											( String.format
-												( "(%s) axion '%s' of '%s' <- '%s'"
-												, this.uniqued
-												, part.label
-												, value
-												, opRes
-												)
-											);
-									}
-									else
-									if (part.label.equalsIgnoreCase("set") == true)
-									{
-										opRes = "success";
-
-										this.apply
-											( part.valueOf("label", "")
-											, part.valueOf("value", "")
-											);
-									}
-									else
-									if (part.label.equalsIgnoreCase("nix") == true)
-									{
-										opRes = "success";
-
-										this.evict
-											( part.valueOf("label", "")
-											);
-									}
-									else
-									if (part.label.equalsIgnoreCase("rem") == true)
-									{
-										opRes = external;
-									}
-									else
-									if (part.label.equalsIgnoreCase("use") == true)
-									{
-										opRes = previous;
-									}
-									else
-									if (part.label.equalsIgnoreCase("new") == true)
-									{
-										this.push();
-
-										opRes = "";
-									}
-									else
-									if (part.label.equalsIgnoreCase("pop") == true)
-									{
-										this.pop();
-										
-										opRes = "";
-									}
-									else
-									{
-										AxionTaskResolve.Update data = new AxionTaskResolve.Update();
-										
-										opRes = resolve.execute
-											( part.label
-											, data
-											, part.list
-											);
-
-										for (final LabeledValuePair pair : data)
-										{
-											this.apply(pair.label, pair.value);
-											
-											break;
-										}
-										
-										data.pop();
-										
-										for (final LabeledValuePair pair : data)
-										{
-											this.accum(pair.label, pair.value);
-										}
-									}
-
-									// After processing any associated entry axion, we
-									// figure out the next state based on the result of
-									// that axion.
-									
-									followTo = state.followOn
-										( opRes
-										);
-									
-									// Keep track of axion results for recalling by
-									// subsequent axions.
-									
-									previous = opRes;
-								}
-								else
-								{
-									// No axion, but there may be an automatic path
-									// traversal to take. If so, take it. If not,
-									// we expect and empty result, which should be
-									// ignored and end traversal.
-									
-									followTo = state.followOn
-										( ""
-										);
-								}
+					layer.apply
+						( label
+						, (match != null ? match.isNumber() == true ? match.number() : Integer.parseInt(match.text()) : 0) + layer.numberOf(axion, "value", 0)
+						);
+				}
+				catch (Exception eX)
+				{
+					layer.apply
+						( label
+						, 0
+						);
 
-								break;
-							}
+					return "failure";
+				}
 
-							++i;
+				return "success";
+			}
+		},
+		DEC("dec", false, null) {
+			String apply(final Layer layer, final CompiledLibrary.Axion axion, final AxionTaskResolve resolve, final QueuedEvents handler, final String external, final String previous) {
+				final String label = layer.valueOf(axion, "label", "");
+				final Value match = layer.lookUp(CompiledLibrary.fold(label));
 
-							if (i == this.machine.states.length)
-							{
-								i = 0;
-							}
+				try
+				{
+					layer.apply
+						( label
+						, (match != null ? match.isNumber() == true ? match.number() : Integer.parseInt(match.text()) : 0) - layer.numberOf(axion, "value", 0)
+						);
+				}
+				catch (Exception eX)
+				{
+					layer.apply
+						( label
+						, 0
+						);
 
-							if (i == this.current)
-							{
-								break;
-							}
-						}
+					return "failure";
+				}
 
-						if (i != this.current)
-						{
-							this.current = i;
-						}
-						else
-						{
-							if (state.label.equalsIgnoreCase(followTo) == false)
-							{
-								resolve.log
-									( String.format
-										( "(%s) state '%s' on '%s' -> '%s' is invalid transition (not found)"
-										, this.uniqued
-										, state.label
-										, external
-										, followTo
-										)
-									);
-							}
-							
-							break;
-						}
+				return "success";
+			}
+		},
+		EQU("equ", false, null) {
+			String apply(final Layer layer, final CompiledLibrary.Axion axion, final AxionTaskResolve resolve, final QueuedEvents handler, final String external, final String previous) {
+				final Value match = layer.lookUp(CompiledLibrary.fold(layer.valueOf(axion, "label", "")));
+				final int slot = axion.slotOf("value");
+				String value = "0";
+				String opRes = "notsame";
+
+				if (match != null && match.isNumber() == true && slot != CompiledLibrary.NONE && axion.canonical[slot] == true)
+				{
+					// Both sides are numbers written the one way they render,
+					// so compare them without rendering.
 
-						if (followTo.isEmpty() == true)
-						{
-							break;
-						}
+					if (match.number() == axion.numbers[slot])
+					{
+						opRes = "success";
 					}
 				}
-					
-				if (state.label.equalsIgnoreCase("final") == true)
+				else
 				{
-					if (state.leave.isEmpty() == false)
+					if (match != null)
 					{
-						AxionTaskResolve.Part part = this.expand(resolve.split(state.leave));
+						value = match.text();
+					}
 
-						if (part.label.equalsIgnoreCase("start") == true)
-						{
-							String machine = part.valueOf("machine", "");
-							
-							if (machine.isEmpty() == false)
-							{
-								handler.start(machine, part.list, this);
-							}
-						}
-						else
-						if (part.label.equalsIgnoreCase("patch") == true)
-						{
-							String command = part.valueOf("command", "");
-							String status = part.valueOf("status", "");
-							
-							if (command.isEmpty() == false)
-							{
-								handler.patch(command, status, this);
-							}
-						}
-						else
-						if (part.label.equalsIgnoreCase("write") == true)
-						{
-							String label = part.valueOf("label", "");
-							String value = part.valueOf("value", "");
-							
-							if (label.isEmpty() == false)
-							{
-								handler.write(label, value, this);
-							}
-						}
-						else
-						if (part.label.equalsIgnoreCase("blast") == true)
-						{
-							String event = part.valueOf("event", "");
-							
-							if (event.isEmpty() == false)
-							{
-								handler.blast(event, this);
-							}
-						}
-						else
-						if (part.label.equalsIgnoreCase("raise") == true)
-						{
-							String event = part.valueOf("event", "");
-							
-							if (event.isEmpty() == false)
-							{
-								handler.raise(event, this);
-							}
-						}
+					if (value.equalsIgnoreCase(layer.valueOf(axion, "value", "")) == true)
+					{
+						opRes = "success";
 					}
+				}
+				
+				if (resolve.isLogging(AxionTaskResolve.Level.DEBUG) == true)
+				{
+					resolve.logResult
+						( layer.hexed()
+						, axion.label
+						, match != null ? match.text() : value
+						, opRes
+						);
+				}
 
-					handler.pop
-						( this
+				return opRes;
+			}
+		},
+		HAS("has", false, null) {
+			String apply(final Layer layer, final CompiledLibrary.Axion axion, final AxionTaskResolve resolve, final QueuedEvents handler, final String external, final String previous) {
+				String value = layer.fetchIt(layer.valueOf(axion, "label", ""), "");
+				String opRes = "success";
+				
+				if (value.equalsIgnoreCase("") == true)
+				{
+					opRes = "missing";
+				}
+				
+				if (resolve.isLogging(AxionTaskResolve.Level.DEBUG) == true)
+				{
+					resolve.logResult
+						( layer.hexed()
+						, axion.label
+						, value
+						, opRes
 						);
 				}
+
+				return opRes;
 			}
-		}
+		},
+		SET("set", true, null) {
+			String apply(final Layer layer, final CompiledLibrary.Axion axion, final AxionTaskResolve resolve, final QueuedEvents handler, final String external, final String previous) {
+				layer.apply
+					( layer.valueOf(axion, "label", "")
+					, layer.valueOf(axion, "value", "")
+					);
 
-		private AxionTaskResolve.Part expand(final AxionTaskResolve.Part part) {
-			for (final LabeledValuePair pair : part.list)
-			{
-				String text = pair.value;
-				int p = 0, s = 0, f = 0;
+				return "success";
+			}
+		},
+		NIX("nix", true, null) {
+			String apply(final Layer layer, final CompiledLibrary.Axion axion, final AxionTaskResolve resolve, final QueuedEvents handler, final String external, final String previous) {
+				layer.evict
+					( layer.valueOf(axion, "label", "")
+					);
 
-				for (int i = 0, l = text.length(); i < l; ++i)
-				{
-					char c = text.charAt(i);
-					
-					switch (p)
-					{
-						case 0:
-						{
-							if (c == '(')
-							{
-								p = 1;
-							}
-						}
-						break;
-						case 1:
-						{
-							if (c == '(')
-							{
-								p = 2;
-								s = i;
-							}
-							else
-							{
-								p = 0;
-							}
-						}
-						break;
-						case 2:
-						{
-							if (c == ')')
-							{
-								p = 3;
-								f = i;
-							}
-							else
-							{
-								p = 2;
-							}
-						}
-						break;
-						case 3:
-						{
-							if (f > s)
-							{
-								pair.value = pair.value.replace
-									( "((" + text.substring(s + 1, f) + "))"
-									, this.matchUp(text.substring(s + 1, f), "")
-									);
-							}
+				return "success";
+			}
+		},
+		REM("rem", false, null) {
+			String apply(final Layer layer, final CompiledLibrary.Axion axion, final AxionTaskResolve resolve, final QueuedEvents handler, final String external, final String previous) {
+				return external;
+			}
+		},
+		USE("use", false, null) {
+			String apply(final Layer layer, final CompiledLibrary.Axion axion, final AxionTaskResolve resolve, final QueuedEvents handler, final String external, final String previous) {
+				return previous;
+			}
+		},
+		NEW("new", false, null) {
+			String apply(final Layer layer, final CompiledLibrary.Axion axion, final AxionTaskResolve resolve, final QueuedEvents handler, final String external, final String previous) {
+				layer.push();
 
-							s = 0;
-							f = 0;
-							p = 0;
-						}
-						break;
-					}
-				}
+				return "";
 			}
-			
-			return part;
+		},
+		POP("pop", true, null) {
+			String apply(final Layer layer, final CompiledLibrary.Axion axion, final AxionTaskResolve resolve, final QueuedEvents handler, final String external, final String previous) {
+				layer.pop();
+
+				return "";
+			}
+		};
+
+		final String label;
+		final boolean leave;
+		final String guard;
+
+		Opcode(final String label, final boolean leave, final String guard) {
+			this.label = label;
+			this.leave = leave;
+			this.guard = guard;
 		}
 
-		Layer(final TransitionStates machine) {
-			this.uniqued = String.format("%08x", random.nextInt());
-			
-			this.machine = machine;
+		/**
+		 * Executes axion for layer, returning its result as the follow on
+		 * event.
+		 */
+		abstract String apply(final Layer layer, final CompiledLibrary.Axion axion, final AxionTaskResolve resolve, final QueuedEvents handler, final String external, final String previous);
 
-			while (this.current < this.machine.states.length)
+		/**
+		 * Resolves axion label to built-in, or EXECUTE if not built in.
+		 */
+		static Opcode of(final String label) {
+			for (final Opcode opcode : values())
 			{
-				if (this.machine.states[this.current].label.equalsIgnoreCase("start") == true)
+				if (opcode != EXECUTE && opcode.label.equalsIgnoreCase(label) == true)
 				{
-					return;
+					return opcode;
 				}
-				
-				++this.current;
 			}
-			
-			this.current = 0;
 
-			this.push();
+			return EXECUTE;
 		}
 
-		static Random random = new Random();
-		
 	}
 
 	/**
 	 * Internal container.
 	 */
-	static class Frames {
-		final List<Frame> frames = new ArrayList<Frame>();
+	static class Layer extends Frames {
+		private CompiledLibrary.Machine machine;
+		private long uniqued;
+		private int current = 0;
+		private Entry entry;
+		private Parked parked = null;
+		private Layer older, newer;
+		private long touched = 0;
+		private long stored = LayerStore.NONE;
+		private int length = 0;
 
-		boolean isMatching(final String label, final String value) {
-			for (int i = this.frames.size() - 1; i >= 0; i--)
+		boolean matching(final LabeledValuePair ... tuple) {
+			for (final LabeledValuePair pair : tuple)
 			{
-				for (final Value match : this.frames.get(i).values)
+				if (this.isMatching(pair.label, pair.value) == false)
 				{
-					if (match.label.equalsIgnoreCase(label) == true)
-					{
-						if (match.value.equalsIgnoreCase(value) == true)
-						{
-							return true;
-						}
-						else
-						{
-							return false;
-						}
-					}
+					return false;
 				}
 			}
 			
-			return false;
+			return true;
 		}
-		
-		String matchUp(final String label, final String ifNoMatch) {
-			for (final Frame frame : this.frames)
+
+		void followOn(final String external, final AxionTaskResolve resolve, final QueuedEvents handler) {
+			if (this.current >= 0 && this.current < this.machine.states.length)
+			{
+				// Given current state, we check for the possibility to transition
+				// out of here. If so, then we want to advance the machine to the
+				// next state by matching the event to a transition. We don't use
+				// the "any" path with asynchronous events.
+				
+				final CompiledLibrary.State state = this.machine.states[this.current];
+
+				this.traverse
+					( state
+					, state.hasTrans == true ? state.followOn(this.machine.library.eventOf(external)) : CompiledLibrary.NONE
+					, external
+					, ""
+					, resolve
+					, handler
+					);
+			}
+		}
+
+		/**
+		 * Carries on from the state the layer parked in, following on the
+		 * result of the axion it parked on as if the axion had just returned
+		 * it.
+		 */
+		void resume(final String result, final AxionTaskResolve resolve, final QueuedEvents handler) {
+			if (this.current >= 0 && this.current < this.machine.states.length)
+			{
+				final CompiledLibrary.State state = this.machine.states[this.current];
+
+				this.traverse
+					( state
+					, state.followOn(this.machine.library.eventOf(result))
+					, result
+					, result
+					, resolve
+					, handler
+					);
+			}
+		}
+
+		private void traverse(CompiledLibrary.State state, int followTo, final String external, String previous, final AxionTaskResolve resolve, final QueuedEvents handler) {
+			final boolean fusing = handler.fusing(resolve);
+
+			while (followTo != CompiledLibrary.NONE)
 			{
-				for (final Value match : frame.values)
+				final CompiledLibrary.Chain chain = fusing == true ? state.chains[followTo] : null;
+
+				if (handler.step(chain != null ? chain.path.length : 1, state, external, this) == false)
+				{
+					// Ran over the event's budget, so stay put; the rest of
+					// the event is dropped.
+
+					return;
+				}
+
+				if (chain != null)
 				{
-					if (match.label.equalsIgnoreCase(label) == true)
+					// Every hop along the chain applies built-ins touching only
+					// our frames, with arcs fixed ahead, so apply them back to
+					// back. Hops are taken one by one, each logged, when
+					// debugging.
+
+					for (final int i : chain.path)
 					{
-						return match.value;
+						if (state.leave != null)
+						{
+							state.leave.opcode.apply
+								( this
+								, state.leave
+								, resolve
+								, handler
+								, external
+								, previous
+								);
+						}
+
+						state = this.machine.states[i];
+
+						if (state.entry != null)
+						{
+							previous = state.entry.opcode.apply
+								( this
+								, state.entry
+								, resolve
+								, handler
+								, external
+								, previous
+								);
+						}
 					}
+
+					this.current = chain.path[chain.path.length - 1];
+
+					followTo = chain.next;
+
+					continue;
+				}
+
+				final int i = state.targets[followTo];
+				
+				if (resolve.isLogging(AxionTaskResolve.Level.DEBUG) == true)
+				{
+					resolve.logTransition
+						( this.hexed()
+						, this.machine.name
+						, state.label
+						, external
+						, state.follows[followTo]
+						);
+				}
+
+				if (i != CompiledLibrary.NONE)
+				{
+					if (state.leave != null)
+					{
+						// Process axion on leaving the current state before
+						// processing any axion associated with entering the
+						// target state. We ignore the result, so we don't
+						// wait on it either if it completes later.
+						
+						final Opcode opcode = state.leave.opcode.leave == true ? state.leave.opcode : Opcode.EXECUTE;
+
+						opcode.apply
+							( this
+							, state.leave
+							, resolve
+							, handler
+							, external
+							, previous
+							);
+
+						if (this.parked != null)
+						{
+							this.parked.state = this.current;
+							this.parked.leaving = true;
+							this.parked = null;
+						}
+					}
+					
+					state = this.machine.states[i];
+					
+					if (state.entry != null)
+					{
+						// Handle the axion associated with transitioning to
+						// the target state.
+						
+						final String opRes = state.entry.opcode.apply
+							( this
+							, state.entry
+							, resolve
+							, handler
+							, external
+							, previous
+							);
+
+						if (this.parked != null)
+						{
+							// Axion completes later, so park in the target
+							// state until its result comes back.
+
+							this.parked.state = i;
+							this.current = i;
+
+							return;
+						}
+
+						// After processing any associated entry axion, we
+						// figure out the next state based on the result of
+						// that axion.
+						
+						followTo = state.followOn
+							( this.machine.library.eventOf(opRes)
+							);
+						
+						// Keep track of axion results for recalling by
+						// subsequent axions.
+						
+						previous = opRes;
+					}
+					else
+					{
+						// No axion, but there may be an automatic path
+						// traversal to take. If so, take it. If not,
+						// we expect and empty result, which should be
+						// ignored and end traversal.
+						
+						followTo = state.followOn
+							( CompiledLibrary.NONE
+							);
+					}
+				}
+
+				if (i != CompiledLibrary.NONE && i != this.current)
+				{
+					this.current = i;
+				}
+				else
+				{
+					final String target = followTo != CompiledLibrary.NONE ? state.follows[followTo] : "";
+
+					if (state.label.equalsIgnoreCase(target) == false && resolve.isLogging(AxionTaskResolve.Level.WARN) == true)
+					{
+						resolve.logInvalid
+							( this.hexed()
+							, this.machine.name
+							, state.label
+							, external
+							, target
+							);
+					}
+					
+					break;
+				}
+			}
+				
+			if (state.isFinal == true)
+			{
+				if (state.leave != null)
+				{
+					// Only hand-offs to other layers apply when leaving the
+					// final state, and only given their principal argument.
+					
+					final Opcode opcode = state.leave.opcode;
+
+					if (opcode.guard != null && this.valueOf(state.leave, opcode.guard, "").isEmpty() == false)
+					{
+						opcode.apply
+							( this
+							, state.leave
+							, resolve
+							, handler
+							, external
+							, ""
+							);
+					}
+				}
+
+				handler.pop
+					( this
+					);
+			}
+		}
+
+		/**
+		 * Applies updates of executed axion to frames, the first replacing
+		 * its value and the rest accumulating.
+		 */
+		void update(final AxionTaskResolve.Update data) {
+			for (final LabeledValuePair pair : data)
+			{
+				this.apply(pair.label, pair.value);
+				
+				break;
+			}
+			
+			data.pop();
+			
+			for (final LabeledValuePair pair : data)
+			{
+				this.accum(pair.label, pair.value);
+			}
+		}
+
+		/**
+		 * Looks up named argument of compiled axion, expanding any ((var))
+		 * references against this layer's frames.
+		 */
+		private String valueOf(final CompiledLibrary.Axion axion, final String key, final String ifNoMatch) {
+			final int slot = axion.slotOf(key);
+
+			if (slot != CompiledLibrary.NONE)
+			{
+				if (axion.templates[slot] != null)
+				{
+					return this.expand(axion.templates[slot]);
+				}
+
+				return axion.values[slot];
+			}
+
+			return ifNoMatch;
+		}
+
+		/**
+		 * Looks up named argument of compiled axion as a number, using the
+		 * value parsed at compile time unless it needs expanding.
+		 */
+		private int numberOf(final CompiledLibrary.Axion axion, final String key, final int ifNoMatch) {
+			final int slot = axion.slotOf(key);
+
+			if (slot != CompiledLibrary.NONE)
+			{
+				if (axion.parsed[slot] == true)
+				{
+					return axion.numbers[slot];
+				}
+
+				return Integer.parseInt(this.valueOf(axion, key, ""));
+			}
+
+			return ifNoMatch;
+		}
+
+		/**
+		 * Realizes compiled axion into fresh parts for handlers that take the
+		 * whole argument list.
+		 */
+		private AxionTaskResolve.Part expand(final CompiledLibrary.Axion axion) {
+			final AxionTaskResolve.Part part = new AxionTaskResolve.Part();
+
+			part.label = axion.label;
+			part.list = new LabeledValuePair [axion.names.length];
+
+			for (int i = 0; i < axion.names.length; ++i)
+			{
+				part.list[i] = new LabeledValuePair
+					( axion.names[i]
+					, axion.templates[i] != null ? this.expand(axion.templates[i]) : axion.values[i]
+					);
+			}
+
+			return part;
+		}
+
+		/**
+		 * Renders compiled template against this layer's frames, missing
+		 * references rendering empty.
+		 */
+		String expand(final CompiledLibrary.Template template) {
+			final String [] keys = template.keys;
+
+			if (keys.length == 1 && template.length == 0)
+			{
+				// Only a reference, so there's nothing to join.
+
+				final Value match = this.lookUp(keys[0]);
+
+				return match != null ? match.text() : "";
+			}
+
+			final StringBuilder rendered = rendering.get();
+
+			rendered.setLength(0);
+			rendered.append(template.literals[0]);
+
+			for (int i = 0; i < keys.length; ++i)
+			{
+				final Value match = this.lookUp(keys[i]);
+
+				if (match != null)
+				{
+					rendered.append(match.text());
+				}
+
+				rendered.append(template.literals[i + 1]);
+			}
+
+			return rendered.toString();
+		}
+
+		/**
+		 * Builder reused by every template rendered on a thread.
+		 */
+		private static final ThreadLocal<StringBuilder> rendering = new ThreadLocal<StringBuilder>() {
+			protected StringBuilder initialValue() {
+				return new StringBuilder(64);
+			}
+		};
+
+		/**
+		 * Renders label of current state for reporting, or empty if outside
+		 * the machine.
+		 */
+		String label() {
+			if (this.current >= 0 && this.current < this.machine.states.length)
+			{
+				return this.machine.states[this.current].label;
+			}
+
+			return "";
+		}
+
+		/**
+		 * Renders layer id for logging.
+		 */
+		String hexed() {
+			return String.format("%08x", this.uniqued);
+		}
+
+		/**
+		 * Construct as restored, with frames left for the caller to fill.
+		 */
+		Layer(final CompiledLibrary.Machine machine, final long uniqued, final int current) {
+			this.uniqued = uniqued;
+			this.machine = machine;
+			this.current = current;
+
+			this.frames.clear();
+		}
+
+		Layer(final CompiledLibrary.Machine machine) {
+			this.uniqued = 0;
+			
+			this.machine = machine;
+
+			if (this.machine.start != CompiledLibrary.NONE)
+			{
+				this.current = this.machine.start;
+				
+				return;
+			}
+			
+			this.current = 0;
+
+			this.push();
+		}
+
+	}
+
+	/**
+	 * Internal container. Frames are stacked with the current frame first,
+	 * each hashing its values by folded label.
+	 */
+	static class Frames {
+		final List<Frame> frames = new ArrayList<Frame>();
+
+		boolean isMatching(final String label, final String value) {
+			final String key = CompiledLibrary.fold(label);
+
+			for (int i = this.frames.size() - 1; i >= 0; i--)
+			{
+				final Value match = this.frames.get(i).get(key);
+
+				if (match != null)
+				{
+					if (match.text().equalsIgnoreCase(value) == true)
+					{
+						return true;
+					}
+					else
+					{
+						return false;
+					}
+				}
+			}
+			
+			return false;
+		}
+
+		/**
+		 * Finds first value for folded label working from the current frame
+		 * backwards.
+		 */
+		Value lookUp(final String key) {
+			for (int i = 0, l = this.frames.size(); i < l; ++i)
+			{
+				final Value match = this.frames.get(i).get(key);
+
+				if (match != null)
+				{
+					return match;
+				}
+			}
+
+			return null;
+		}
+		
+		String matchUp(final String label, final String ifNoMatch) {
+			final Value match = this.lookUp(CompiledLibrary.fold(label));
+
+			if (match != null)
+			{
+				return match.text();
+			}
+
+			return ifNoMatch;
+		}
+
+		String fetchIt(final String label, final String ifNoMatch) {
+			final Value match = this.frames.get(0).get(CompiledLibrary.fold(label));
+
+			if (match != null)
+			{
+				return match.text();
+			}
+
+			return ifNoMatch;
+		}
+
+		/**
+		 * Works from the current frame backwards to set a matching pair value.
+		 * If not present anywhere, we add the pair to the current frame.
+		 * 
+		 * @param label label of pair to update/add
+		 * @param value value to save
+		 */
+		void apply(final String label, final String value) {
+			final Value match = this.lookUp(CompiledLibrary.fold(label));
+
+			if (match != null)
+			{
+				match.assign(value);
+			}
+			else
+			{
+				this.frames.get(0).add
+					( label
+					, value
+					);
+			}
+		}
+
+		/**
+		 * Works from the current frame backwards to set a matching pair to a
+		 * number, kept unrendered until its text is asked for. If not present
+		 * anywhere, we add the pair to the current frame.
+		 * 
+		 * @param label label of pair to update/add
+		 * @param number number to save
+		 */
+		void apply(final String label, final int number) {
+			final Value match = this.lookUp(CompiledLibrary.fold(label));
+
+			if (match != null)
+			{
+				match.assign(number);
+			}
+			else
+			if (label.isEmpty() == false)
+			{
+				this.frames.get(0).values.put
+					( CompiledLibrary.fold(label)
+					, new Value(label, number)
+					);
+			}
+		}
+
+		/**
+		 * Updates existing pair in current frame or adds it if not present.
+		 * 
+		 * @param label label of pair to update/add
+		 * @param value value to save
+		 */
+		void write(final String label, final String value) {
+			this.frames.get(0).set
+				( label
+				, value
+				);
+		}
+
+		/**
+		 * Appends pair to current frame even if already existing in array.
+		 * 
+		 * @param label label of pair to add
+		 * @param value value to save
+		 */
+		void accum(final String label, final String value) {
+			this.frames.get(0).add
+				( label
+				, value
+				);
+		}
+		
+		/**
+		 * Removes pair with specified label. If multiple, removes first.
+		 * 
+		 * @param label label of pair to add
+		 */
+		void evict(final String label) {
+			this.frames.get(0).nix
+				( label
+				);
+		}
+
+		void push() {
+			this.frames.add(0, new Frame());
+		}
+
+		void pop() {
+			if (this.frames.size() > 1)
+			{
+				this.frames.remove(0);
+			}
+		}
+
+		Frames() {
+			this.frames.add(new Frame());
+		}
+
+	}
+
+	/**
+	 * Internal container.
+	 */
+	static class Frame extends Values {
+	}
+
+	/**
+	 * Internal container. Values hash by folded label to the first value
+	 * added under it; later duplicates chain behind in the order added.
+	 */
+	static class Values {
+		final Map<String, Value> values = new HashMap<String, Value>();
+
+		Value get(final String key) {
+			return this.values.get(key);
+		}
+
+		void set(final String label, final String value) {
+			if (label.isEmpty() == false)
+			{
+				final String key = CompiledLibrary.fold(label);
+				final Value match = this.values.get(key);
+
+				if (match != null)
+				{
+					match.assign(value);
+				}
+				else
+				{
+					this.values.put(key, new Value(label, value));
+				}
+			}
+		}
+
+		void add(final String label, final String value) {
+			if (label.isEmpty() == false)
+			{
+				final String key = CompiledLibrary.fold(label);
+				Value match = this.values.get(key);
+
+				if (match != null)
+				{
+					while (match.next != null)
+					{
+						match = match.next;
+					}
+
+					match.next = new Value(label, value);
+				}
+				else
+				{
+					this.values.put(key, new Value(label, value));
+				}
+			}
+		}
+		
+		void nix(final String label) {
+			final String key = CompiledLibrary.fold(label);
+			final Value match = this.values.get(key);
+
+			if (match != null)
+			{
+				if (match.next != null)
+				{
+					this.values.put(key, match.next);
+				}
+				else
+				{
+					this.values.remove(key);
+				}
+			}
+		}
+
+	}
+
+	/**
+	 * Internal container. Values hold either text or a number; numbers are
+	 * only rendered to text when asked for, so counters update in place.
+	 */
+	static class Value {
+		
+		public String label = "";
+		private String value = "";
+		private boolean numeric;
+		private int number;
+		Value next;
+
+		String text() {
+			if (this.value == null)
+			{
+				this.value = Integer.toString(this.number);
+			}
+
+			return this.value;
+		}
+
+		boolean isNumber() {
+			return this.numeric;
+		}
+
+		int number() {
+			return this.number;
+		}
+
+		void assign(final String value) {
+			this.value = value;
+			this.numeric = false;
+		}
+
+		void assign(final int number) {
+			if (this.numeric == false || this.number != number)
+			{
+				this.value = null;
+			}
+
+			this.number = number;
+			this.numeric = true;
+		}
+
+		Value(final String label, final String value) {
+			this.label = label;
+			this.value = value;
+		}
+
+		Value(final String label, final int number) {
+			this.label = label;
+			this.assign(number);
+		}
+
+	}
+
+	/**
+	 * Internal container of events posted to the mailbox together, handled in
+	 * order without interleaving other posts, or of a task to run between
+	 * events.
+	 */
+	private static class Mail {
+
+		final String [] externals;
+		final long target;
+		final Runnable task;
+		long journaled = 0;
+		long time = 0;
+
+		Mail(final String [] externals, final long target) {
+			this.externals = externals;
+			this.target = target;
+			this.task = null;
+		}
+
+		Mail(final Runnable task) {
+			this.externals = new String [0];
+			this.target = 0;
+			this.task = task;
+		}
+
+	}
+
+	/**
+	 * Appends group of mail's events to the journal, if any, and forces them
+	 * to disk together before any is applied. Each mail remembers when it was
+	 * journaled and the sequence number of its last record. If the group
+	 * can't be journaled, it's rolled back out of the journal and reported,
+	 * and none of its events is applied, so the stack never runs ahead of
+	 * what recovery would replay.
+	 * 
+	 * @return false if group's events must not be applied
+	 */
+	private boolean journal(final List<Mail> group) {
+		final MachineryJournal journal = this.journal;
+
+		if (journal != null)
+		{
+			final long time = new Date().getTime();
+			final long mark = journal.sequence();
+
+			try
+			{
+				for (final Mail next : group)
+				{
+					for (final String external : next.externals)
+					{
+						if (external.isEmpty() == false)
+						{
+							next.journaled = journal.append(time, next.target, external);
+						}
+					}
+
+					next.time = time;
+				}
+
+				journal.commit();
+			}
+			catch (IOException eX)
+			{
+				final List<String> dropped = new ArrayList<String>();
+
+				for (final Mail next : group)
+				{
+					dropped.addAll(Arrays.asList(next.externals));
+
+					next.journaled = 0;
+				}
+
+				try
+				{
+					journal.rollback(mark);
+				}
+				catch (IOException rX)
+				{
+				}
+
+				if (dropped.isEmpty() == false)
+				{
+					try
+					{
+						this.resolve.onUnjournaled
+							( new AxionTaskResolve.Unjournaled
+								( dropped
+								, eX
+								)
+							);
+					}
+					catch (RuntimeException uX)
+					{
+					}
+				}
+
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Handles event on the drainer, logging rather than passing on failures
+	 * so the rest of the mailbox is still handled.
+	 */
+	private void apply(final String external, final long target) {
+		try
+		{
+			this.handleEvent(external, target);
+		}
+		catch (RuntimeException eX)
+		{
+			if (this.resolve.isLogging(AxionTaskResolve.Level.WARN) == true)
+			{
+				this.resolve.log
+					( String.format
+						( "Failed handling %s: %s"
+						, external
+						, eX
+						)
+					);
+			}
+		}
+	}
+
+	/**
+	 * Runs task on the drainer, logging rather than passing on failures so
+	 * the rest of the mailbox is still handled.
+	 */
+	private void perform(final Runnable task) {
+		try
+		{
+			task.run();
+		}
+		catch (RuntimeException eX)
+		{
+			if (this.resolve.isLogging(AxionTaskResolve.Level.WARN) == true)
+			{
+				this.resolve.log
+					( String.format
+						( "Failed running task: %s"
+						, eX
+						)
+					);
+			}
+		}
+	}
+
+	/**
+	 * Registers timer for layer, or holds it while recovering so that only
+	 * timers still pending once recovery completes are scheduled.
+	 */
+	private void schedule(final long target, final String event, final long when) {
+		if (this.held != null)
+		{
+			final MachineryScheduler.Timer timer = new MachineryScheduler.Timer(this.timeout, target, event, when);
+
+			this.held.put(timer, timer);
+		}
+		else
+		{
+			this.timeout.register(target, event, when);
+		}
+	}
+
+	/**
+	 * Internal container of a layer's frames encoded for the store, reused
+	 * for every layer passivated or brought back.
+	 */
+	private static class Spill extends ByteArrayOutputStream {
+
+		final DataOutputStream output = new DataOutputStream(this);
+
+		byte [] array() {
+			return this.buf;
+		}
+
+		/**
+		 * Reads layer's passivated frames back from store in place of what
+		 * was held.
+		 */
+		void fill(final LayerStore store, final Layer layer) {
+			if (this.buf.length < layer.length)
+			{
+				this.buf = new byte [Math.max(layer.length, this.buf.length * 2)];
+			}
+
+			store.get(layer.stored, this.buf, layer.length);
+
+			this.count = layer.length;
+		}
+
+	}
+
+	/**
+	 * Brings back layer's frames if passivated and, while idle layers are
+	 * tracked, marks layer as the most recently active.
+	 */
+	private void touch(final Layer layer) {
+		if (layer.stored != LayerStore.NONE)
+		{
+			this.rehydrate(layer);
+		}
+
+		if (this.tracking == true)
+		{
+			if (layer != this.newest)
+			{
+				this.unlink(layer);
+				this.link(layer);
+			}
+
+			layer.touched = this.now;
+		}
+	}
+
+	private void link(final Layer layer) {
+		layer.older = this.newest;
+		layer.newer = null;
+
+		if (this.newest != null)
+		{
+			this.newest.newer = layer;
+		}
+		else
+		{
+			this.oldest = layer;
+		}
+
+		this.newest = layer;
+	}
+
+	private void unlink(final Layer layer) {
+		if (layer.older != null)
+		{
+			layer.older.newer = layer.newer;
+		}
+		else
+		if (this.oldest == layer)
+		{
+			this.oldest = layer.newer;
+		}
+
+		if (layer.newer != null)
+		{
+			layer.newer.older = layer.older;
+		}
+		else
+		if (this.newest == layer)
+		{
+			this.newest = layer.older;
+		}
+
+		layer.older = null;
+		layer.newer = null;
+	}
+
+	/**
+	 * Stops tracking layer dropped from the graph, freeing its frames if
+	 * passivated.
+	 */
+	private void release(final Layer layer) {
+		this.unlink(layer);
+
+		if (layer.stored != LayerStore.NONE)
+		{
+			this.store.free(layer.stored, layer.length);
+
+			layer.stored = LayerStore.NONE;
+			layer.length = 0;
+		}
+	}
+
+	/**
+	 * Reads layer's frames back from the store, freeing its record.
+	 */
+	private void rehydrate(final Layer layer) {
+		this.spilled.reset();
+		this.spilled.fill(this.store, layer);
+
+		try
+		{
+			readFrames(new DataInputStream(new ByteArrayInputStream(this.spilled.array(), 0, layer.length)), layer);
+		}
+		catch (IOException eX)
+		{
+			throw new IllegalStateException("corrupt passivated layer " + layer.hexed());
+		}
+
+		this.store.free(layer.stored, layer.length);
+
+		layer.stored = LayerStore.NONE;
+		layer.length = 0;
+	}
+
+	/**
+	 * Passivates layers left idle beyond the threshold, oldest first, moving
+	 * their frames into the store. Run on the drainer between groups of mail,
+	 * so no layer's frames are in use.
+	 */
+	private void passivate() {
+		final long idle = this.idle;
+
+		if (this.store != null && this.store.file() != this.spill)
+		{
+			// Store moved; bring every passivated layer back before dropping
+			// the old one, and passivate into the new one from here on.
+
+			for (final Entry entry : this.entries.linked())
+			{
+				if (entry.target.stored != LayerStore.NONE)
+				{
+					this.rehydrate(entry.target);
+				}
+			}
+
+			this.drop();
+		}
+
+		if (idle <= 0)
+		{
+			while (this.oldest != null)
+			{
+				this.unlink(this.oldest);
+			}
+
+			this.tracking = false;
+
+			return;
+		}
+
+		if (this.tracking == false)
+		{
+			// Start tracking every live layer as if just active, oldest
+			// first.
+
+			for (final Entry entry : this.entries.linked())
+			{
+				if (entry.live == true)
+				{
+					this.link(entry.target);
+
+					entry.target.touched = this.now;
+				}
+			}
+
+			this.tracking = true;
+		}
+
+		while (this.oldest != null && this.now - this.oldest.touched >= idle)
+		{
+			final Layer layer = this.oldest;
+
+			try
+			{
+				if (this.store == null)
+				{
+					this.store = new LayerStore(this.spill);
+				}
+
+				if (this.spilled == null)
+				{
+					this.spilled = new Spill();
+				}
+
+				this.spilled.reset();
+
+				writeFrames(this.spilled.output, layer);
+
+				layer.stored = this.store.put(this.spilled.array(), this.spilled.size());
+				layer.length = this.spilled.size();
+			}
+			catch (IOException eX)
+			{
+				if (this.resolve.isLogging(AxionTaskResolve.Level.WARN) == true)
+				{
+					this.resolve.log
+						( String.format
+							( "Failed passivating: %s"
+							, eX
+							)
+						);
+				}
+
+				break;
+			}
+
+			layer.frames.clear();
+
+			((ArrayList<Frame>) layer.frames).trimToSize();
+
+			this.unlink(layer);
+		}
+	}
+
+	/**
+	 * Stops tracking outstanding axions and drops the store, as when the
+	 * graph is replaced.
+	 */
+	private void forget() {
+		this.outstanding.clear();
+
+		this.drop();
+	}
+
+	/**
+	 * Drops the store and stops tracking layers, as when the store moves.
+	 */
+	private void drop() {
+		while (this.oldest != null)
+		{
+			this.unlink(this.oldest);
+		}
+
+		this.tracking = false;
+
+		if (this.store != null)
+		{
+			try
+			{
+				this.store.close();
+			}
+			catch (IOException eX)
+			{
+			}
+
+			this.store = null;
+		}
+	}
+
+	/**
+	 * Internal container of a task run by the mailbox's drainer on behalf of
+	 * a waiting caller.
+	 */
+	private static abstract class Exclusive implements Runnable {
+
+		private final CountDownLatch done = new CountDownLatch(1);
+		private IOException failure = null;
+
+		/**
+		 * Works on the stack while no event is being processed.
+		 */
+		abstract void apply() throws IOException;
+
+		public final void run() {
+			try
+			{
+				this.apply();
+			}
+			catch (IOException eX)
+			{
+				this.failure = eX;
+			}
+			catch (RuntimeException eX)
+			{
+				this.failure = new IOException(eX.toString());
+			}
+			finally
+			{
+				this.done.countDown();
+			}
+		}
+
+	}
+
+	/**
+	 * Runs task on the mailbox's drainer, between events, and waits for it
+	 * to complete.
+	 * 
+	 * @param task work to do while no event is being processed
+	 * 
+	 * @throws IOException if task fails or waiting is interrupted
+	 */
+	private void exclusive(final Exclusive task) throws IOException {
+		if (this.draining == Thread.currentThread())
+		{
+			throw new IllegalStateException("stack is busy handling an event on this thread");
+		}
+
+		this.post(new Mail(task));
+
+		try
+		{
+			task.done.await();
+		}
+		catch (InterruptedException eX)
+		{
+			Thread.currentThread().interrupt();
+
+			throw new InterruptedIOException("interrupted waiting on stack");
+		}
+
+		if (task.failure != null)
+		{
+			throw task.failure;
+		}
+	}
+
+	/**
+	 * Posts event to the mailbox. Whoever posts into an empty mailbox becomes
+	 * its only drainer (or hands draining to the executor, if set) until the
+	 * mailbox is empty again, so events are applied strictly one at a time in
+	 * the order posted, while other producers return without waiting.
+	 * 
+	 * @param externals events to process
+	 * @param target specific layer id to limit handling, or 0 for all
+	 */
+	private void post(final String [] externals, final long target) {
+		this.post(new Mail(externals, target));
+	}
+
+	private void post(final Mail mail) {
+		final MachineryRuntime runtime = this.host;
+
+		if (runtime != null)
+		{
+			runtime.received(mail.externals.length);
+		}
+
+		this.mailbox.add(mail);
+
+		if (this.posted.getAndIncrement() == 0)
+		{
+			final Executor executor = this.drainer;
+
+			if (executor != null)
+			{
+				try
+				{
+					executor.execute(this.drain);
+
+					return;
+				}
+				catch (RejectedExecutionException eX)
+				{
+				}
+			}
+
+			this.drain.run();
+		}
+	}
+
+	/**
+	 * Internal container.
+	 */
+	static class Event {
+
+		public final String event;
+		public final Layer layer;
+		
+		public Event(final String event, final Layer layer) {
+			this.event = event;
+			this.layer = layer;
+		}
+
+	}
+
+	/**
+	 * Internal container of an axion completing later for the layer parked on
+	 * it, along with the events deferred for the layer meanwhile. Axions left
+	 * on leaving a state don't park their layer, and only update its frames
+	 * once complete. The state whose axion it is gets noted for snapshots.
+	 */
+	private static class Parked {
+
+		final Layer layer;
+		final AxionTaskResolve.Update data;
+		final List<String> deferred = new ArrayList<String>();
+		boolean leaving = false;
+		int state = CompiledLibrary.NONE;
+
+		/**
+		 * Axion parked on, or null if no longer found in layer's machine.
+		 */
+		CompiledLibrary.Axion axion() {
+			if (this.state >= 0 && this.state < this.layer.machine.states.length)
+			{
+				return this.leaving == true ? this.layer.machine.states[this.state].leave : this.layer.machine.states[this.state].entry;
+			}
+
+			return null;
+		}
+
+		Parked(final Layer layer, final AxionTaskResolve.Update data) {
+			this.layer = layer;
+			this.data = data;
+		}
+
+	}
+
+	/**
+	 * Handler of side effects for the event being processed, along with the
+	 * events queued up as those side effects. Only the mailbox's drainer
+	 * processes events, so one handler is reused for every event.
+	 */
+	private class Processing implements QueuedEvents {
+
+		final List<Event> queuing = new ArrayList<Event>();
+		AxionTaskResolve contain;
+		boolean runaway = false;
+		int steps = 0;
+
+		public String start(final String namedAs, final LabeledValuePair [] frame, final Layer who) {
+			if (entries.isLive(who) == true)
+			{
+				final Entry entry = who.entry;
+
+				final CompiledLibrary.Machine machine = library.machineOf(namedAs);
+
+				if (machine != null)
+				{
+					Layer child = new Layer(machine);
+
+					queuing.add(new Event("started", child));
+
+					for (LabeledValuePair pair : frame)
+					{
+						child.apply(pair.label, pair.value);
+					}
+					
+					entries.add
+						( entry
+						, child
+						);
+
+					if (contain.isLogging(AxionTaskResolve.Level.INFO) == true)
+					{
+						contain.logStarting
+							( who.hexed()
+							, child.hexed()
+							, machine.name
+							);
+					}
+
+					return "success";
+				}
+				
+				return "invalid";
+			}
+			
+			return "failure";
+		}
+
+		public String patch(final String command, final String status, final Layer who) {
+			if (entries.isLive(who) == true)
+			{
+				contain.command(command,  status);
+
+				return "success";
+			}
+			
+			return "failure";
+		}
+
+		public String timer(final String expires, final String event, final Layer who) {
+			if (entries.isLive(who) == true)
+			{
+				try
+				{
+					schedule(who.uniqued, event, now + Integer.parseInt(expires));
+				}
+				catch (Exception eX)
+				{
+					return "invalid";
+				}
+
+				return "success";
+			}
+
+			return "failure";
+		}
+
+		public String write(final String label, final String value, final Layer who) {
+			if (entries.isLive(who) == true)
+			{
+				final Entry entry = who.entry;
+
+				if (entry.parent != null)
+				{
+					if (label.isEmpty() == false)
+					{
+						touch(entry.parent.target);
+
+						entry.parent.target.write(label, value);
+					}
+				}
+				
+				return "success";
+			}
+			
+			return "failure";
+		}
+
+		public String count(final LabeledValuePair [] tuple, final Layer who) {
+			final Count count = new Count();
+			
+			entries.visitClosure
+				( who
+				, new OnGraphedEntries() {
+					public void onVisit(final Layer target) {
+						touch(target);
+
+						if (target.matching(tuple) == true)
+						{
+							count.increment();
+						}
+					}
+				});
+
+			return count.value();
+		}
+
+		public String blast(final String event, final Layer who) {
+			entries.visitClosure
+				( who
+				, new OnGraphedEntries() {
+					public void onVisit(final Layer target) {
+						queuing.add(new Event(event, target));
+					}
+				});
+			
+			return "success";
+		}
+
+		public String raise(final String event, final Layer who) {
+			if (entries.isLive(who) == true)
+			{
+				final Entry entry = who.entry;
+
+				if (entry.parent != null)
+				{
+					if (event.isEmpty() == false)
+					{
+						queuing.add(new Event(event, entry.parent.target));
+					}
+				}
+				
+				return "success";
+			}
+			
+			return "failure";
+		}
+				
+		public String trace(final String debug, final Layer who) {
+			if (entries.isLive(who) == true)
+			{
+				if (contain.isLogging(AxionTaskResolve.Level.INFO) == true)
+				{
+					contain.logTrace
+						( who.hexed()
+						, debug
+						);
+				}
+
+				return "success";
+			}
+			
+			return "failure";
+		}
+		
+		public String execute(final CompiledLibrary.Axion axion, final AxionTaskResolve.Update data, final LabeledValuePair [] pairs, final Layer who) {
+			final AxionTaskHandler direct = registry.handlerOf(axion.folded);
+			final CompletionStage<String> stage = this.start(direct, axion, data, pairs);
+
+			if (stage != null)
+			{
+				this.await(who.parked = new Parked(who, data), stage);
+
+				return "";
+			}
+
+			if (direct != null)
+			{
+				return direct.execute(axion.label, data, pairs);
+			}
+
+			return contain.execute(axion.label, data, pairs);
+		}
+
+		/**
+		 * Executes axion restored parked over again, resuming its layer once
+		 * it completes (right away if it completes synchronously).
+		 */
+		void reissue(final Parked parked) {
+			final CompiledLibrary.Axion axion = parked.axion();
+			final LabeledValuePair [] pairs = parked.layer.expand(axion).list;
+			final AxionTaskHandler direct = registry.handlerOf(axion.folded);
+			final CompletionStage<String> stage = this.start(direct, axion, parked.data, pairs);
+
+			if (stage != null)
+			{
+				this.await(parked, stage);
+
+				return;
+			}
+
+			outstanding.add(parked);
+
+			resume
+				( parked
+				, direct != null ? direct.execute(axion.label, parked.data, pairs) : contain.execute(axion.label, parked.data, pairs)
+				, null
+				);
+		}
+
+		/**
+		 * Starts axion completing later, unless journaling or replaying, when
+		 * every axion executes synchronously so its result is applied within
+		 * the journaled event.
+		 */
+		private CompletionStage<String> start(final AxionTaskHandler direct, final CompiledLibrary.Axion axion, final AxionTaskResolve.Update data, final LabeledValuePair [] pairs) {
+			if (journal != null || held != null)
+			{
+				return null;
+			}
+
+			return direct != null
+				? direct.executeAsync(axion.label, data, pairs)
+				: contain.executeAsync(axion.label, data, pairs)
+				;
+		}
+
+		/**
+		 * Posts axion's result back to the mailbox once complete, to resume
+		 * the layer parked on it.
+		 */
+		private void await(final Parked parked, final CompletionStage<String> stage) {
+			outstanding.add(parked);
+
+			stage.whenComplete
+				( new BiConsumer<String, Throwable>() {
+					public void accept(final String result, final Throwable failure) {
+						post
+							( new Mail(new Runnable() {
+								public void run() {
+									resume(parked, result, failure);
+								}
+							})
+							);
+					}
+				});
+		}
+
+		public boolean fusing(final AxionTaskResolve resolve) {
+			return fusion == true || resolve.isLogging(AxionTaskResolve.Level.DEBUG) == false;
+		}
+
+		public boolean step(final int steps, final CompiledLibrary.State state, final String external, final Layer who) {
+			final int most = maxSteps;
+
+			if ((this.steps += steps) > most && most > 0)
+			{
+				this.runaway(AxionTaskResolve.Runaway.Budget.STEPS, state.label, external, who);
+
+				return false;
+			}
+
+			return true;
+		}
+
+		/**
+		 * Cuts processing of the event short, reporting the layer and state
+		 * that ran over budget.
+		 */
+		void runaway(final AxionTaskResolve.Runaway.Budget budget, final String state, final String external, final Layer who) {
+			this.runaway = true;
+
+			contain.onRunaway
+				( new AxionTaskResolve.Runaway
+					( budget
+					, external
+					, who.hexed()
+					, who.machine.name
+					, state
+					, this.steps
+					, this.queuing.size()
+					)
+				);
+		}
+
+		/**
+		 * Readies handler for the next event.
+		 */
+		void reset() {
+			this.queuing.clear();
+			this.runaway = false;
+			this.steps = 0;
+		}
+
+		public String pop(final Layer who) {
+			if (entries.isLive(who) == true)
+			{
+				final Entry entry = who.entry;
+
+				if (entry.parent != null)
+				{
+					entries.remove
+						( entry
+						);
+
+					release(who);
+				}
+
+				return "success";
+			}
+			
+			return "failure";
+		}
+
+	}
+
+	/**
+	 * Process external event and queue up side effects to be handled in order
+	 * as we progress. We run through the axion results as intermediate events,
+	 * so no external event can interrupt the complete processing of a prior
+	 * external event and all of its side effects. We use the currently set
+	 * axion task resolver hook throughout processing of this event.
+	 * 
+	 * @param external event to process
+	 * @param target specific layer id to limit handling, or 0 for all
+	 * 
+	 * @return this instance
+	 */
+	private StackOfMachinery handleEvent(final String external, final long target) {
+		final Processing handler = this.processing;
+		final AxionTaskResolve contain = handler.contain = this.resolve;
+		
+		if (external.isEmpty() == false)
+		{
+			final List<Event> queuing = handler.queuing;
+
+			if (contain.isLogging(AxionTaskResolve.Level.INFO) == true)
+			{
+				contain.logHandling
+					( external
+					);
+			}
+			
+			if (target == 0)
+			{
+				this.entries.subscribers
+					( this.library.eventOf(external)
+					, external
+					, queuing
+					);
+			}
+			else
+			{
+				final Entry entry = this.entries.find(target);
+
+				if (entry != null)
+				{
+					queuing.add(new Event(external, entry.target));
+				}
+			}
+
+			this.process
+				( handler
+				, contain
+				);
+		}
+		
+		return this;
+	}
+
+	/**
+	 * Follows on queued events in order, along with the events they queue in
+	 * turn, deferring those for parked layers until they resume.
+	 */
+	private void process(final Processing handler, final AxionTaskResolve contain) {
+		final List<Event> queuing = handler.queuing;
+
+		try
+		{
+			for (int i = 0; i < queuing.size() && handler.runaway == false; ++i)
+			{
+				Event next = queuing.get(i);
+
+				if (next.layer.parked != null)
+				{
+					next.layer.parked.deferred.add(next.event);
+
+					continue;
+				}
+
+				if (contain.isLogging(AxionTaskResolve.Level.DEBUG) == true)
+				{
+					contain.logFollowing
+						( next.layer.hexed()
+						, next.layer.machine.name
+						, next.event
+						);
+				}
+
+				this.touch
+					( next.layer
+					);
+				
+				next.layer.followOn
+					( next.event
+					, contain
+					, handler
+					);
+
+				this.entries.reindex
+					( next.layer
+					);
+
+				final int most = this.maxQueued;
+
+				if (queuing.size() > most && most > 0 && handler.runaway == false)
+				{
+					// Events queued by an event stay listed until it's fully
+					// processed, so this bounds what the event holds onto.
+
+					handler.runaway
+						( AxionTaskResolve.Runaway.Budget.QUEUED
+						, next.layer.label()
+						, next.event
+						, next.layer
+						);
+				}
+			}
+		}
+		finally
+		{
+			handler.reset();
+		}
+	}
+
+	/**
+	 * Applies completed axion's updates to the layer parked on it, if still
+	 * graphed, then follows on the axion's result and the events deferred
+	 * meanwhile. A failed axion, or one whose updates can't be applied,
+	 * results in "failure". Axions no longer outstanding, as when the stack
+	 * was restored since, are ignored.
+	 */
+	private void resume(final Parked parked, final String result, final Throwable failure) {
+		final Processing handler = this.processing;
+		final AxionTaskResolve contain = handler.contain = this.resolve;
+		final Layer layer = parked.layer;
+
+		if (this.outstanding.remove(parked) == true && this.entries.isLive(layer) == true)
+		{
+			Throwable failed = failure;
+
+			this.touch(layer);
+
+			try
+			{
+				layer.update(parked.data);
+			}
+			catch (RuntimeException eX)
+			{
+				// Updates that can't be applied fail the axion, rather than
+				// leaving the layer parked on it.
+
+				failed = eX;
+			}
+
+			if (failed != null && contain.isLogging(AxionTaskResolve.Level.WARN) == true)
+			{
+				contain.log
+					( String.format
+						( "(%s) failed completing axion: %s"
+						, layer.hexed()
+						, failed
+						)
+					);
+			}
+
+			if (parked.leaving == false && layer.parked == parked)
+			{
+				layer.parked = null;
+
+				try
+				{
+					layer.resume
+						( failed == null ? result != null ? result : "" : "failure"
+						, contain
+						, handler
+						);
+
+					this.entries.reindex
+						( layer
+						);
+
+					for (final String deferred : parked.deferred)
+					{
+						handler.queuing.add(new Event(deferred, layer));
+					}
+
+					this.process
+						( handler
+						, contain
+						);
+				}
+				catch (RuntimeException eX)
+				{
+					handler.reset();
+
+					if (contain.isLogging(AxionTaskResolve.Level.WARN) == true)
+					{
+						contain.log
+							( String.format
+								( "(%s) failed resuming: %s"
+								, layer.hexed()
+								, eX
+								)
+							);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Process external event and queue up side effects to be handled in order
+	 * as we progress. We run through the axion results as intermediate events,
+	 * so no external event can interrupt the complete processing of a prior
+	 * external event and all of its side effects. We use the currently set
+	 * axion task resolver hook throughout processing of this event. Events are
+	 * posted to the stack's mailbox, which is safe from any thread and applies
+	 * them (along with timeouts) one at a time in the order posted.
+	 * 
+	 * @param external event to process
+	 * 
+	 * @return this instance
+	 */
+	public StackOfMachinery handleEvent(final String external) {
+		this.post(new String [] { external }, 0);
+
+		return this;
+	}
+
+	/**
+	 * Process batch of external events, as if each were handled in turn, but
+	 * posted to the mailbox at once. Each event and all of its side effects
+	 * complete before the next event in the batch starts, and no other event
+	 * (or timeout) is applied in between.
+	 * 
+	 * @param externals events to process in order
+	 * 
+	 * @return this instance
+	 */
+	public StackOfMachinery handleEvents(final String ... externals) {
+		if (externals.length > 0)
+		{
+			this.post(externals.clone(), 0);
+		}
+
+		return this;
+	}
+
+	/**
+	 * Process batch of external events, as if each were handled in turn, but
+	 * posted to the mailbox at once. Each event and all of its side effects
+	 * complete before the next event in the batch starts, and no other event
+	 * (or timeout) is applied in between.
+	 * 
+	 * @param externals events to process in order
+	 * 
+	 * @return this instance
+	 */
+	public StackOfMachinery handleEvents(final Iterable<String> externals) {
+		final List<String> batch = new ArrayList<String>();
+
+		for (final String external : externals)
+		{
+			batch.add(external);
+		}
+
+		if (batch.isEmpty() == false)
+		{
+			this.post(batch.toArray(new String [batch.size()]), 0);
+		}
+
+		return this;
+	}
+	
+	/**
+	 * Leading bytes and version of the snapshot format.
+	 */
+	private static final int SNAPSHOT_MAGIC = 0x534d5350;
+	private static final int SNAPSHOT_VERSION = 4;
+
+	/**
+	 * Writes every layer still linked into the hierarchy (parents ahead of
+	 * their children), with its machine, state and frames, followed by the
+	 * pending timers and the axions still outstanding.
+	 */
+	private void writeSnapshot(final DataOutputStream output) throws IOException {
+		final List<Entry> linked = this.entries.linked();
+		final List<MachineryScheduler.Timer> timers = this.timeout.timers();
+
+		output.writeInt(SNAPSHOT_MAGIC);
+		output.writeInt(SNAPSHOT_VERSION);
+		output.writeLong(this.library.fingerprint);
+		output.writeLong(this.sequence);
+		output.writeLong(this.entries.ordered);
+		output.writeInt(linked.size());
+
+		for (final Entry entry : linked)
+		{
+			final Layer layer = entry.target;
+
+			output.writeLong(entry.order);
+			output.writeLong(entry.parent != null ? entry.parent.order : 0);
+			output.writeBoolean(entry.live);
+			output.writeLong(layer.uniqued);
+			output.writeInt(layer.machine.index);
+			output.writeInt(layer.current);
+
+			if (layer.stored != LayerStore.NONE)
+			{
+				// Passivated frames are stored just as they're written here,
+				// so copy them across without bringing them back.
+
+				this.spilled.reset();
+				this.spilled.fill(this.store, layer);
+
+				output.write(this.spilled.array(), 0, layer.length);
+			}
+			else
+			{
+				writeFrames(output, layer);
+			}
+		}
+
+		output.writeInt(timers.size());
+
+		for (final MachineryScheduler.Timer timer : timers)
+		{
+			output.writeLong(timer.target);
+			writeText(output, timer.event);
+			output.writeLong(timer.when);
+		}
+
+		final List<Parked> outstanding = new ArrayList<Parked>();
+
+		for (final Parked parked : this.outstanding)
+		{
+			if (this.entries.isLive(parked.layer) == true && parked.axion() != null)
+			{
+				outstanding.add(parked);
+			}
+		}
+
+		output.writeInt(outstanding.size());
+
+		for (final Parked parked : outstanding)
+		{
+			output.writeLong(parked.layer.entry.order);
+			output.writeInt(parked.state);
+			output.writeBoolean(parked.leaving);
+			output.writeInt(parked.deferred.size());
+
+			for (final String deferred : parked.deferred)
+			{
+				writeText(output, deferred);
+			}
+		}
+
+		output.flush();
+	}
+
+	/**
+	 * Reads snapshot into a fresh hierarchy, only replacing this stack's
+	 * layers and timers once the whole snapshot has been read.
+	 */
+	private void readSnapshot(final DataInputStream input) throws IOException {
+		final ListOfGraphEntry restored = new ListOfGraphEntry();
+		final Map<Long, Entry> ordered = new HashMap<Long, Entry>();
+		final List<MachineryScheduler.Timer> timers = new ArrayList<MachineryScheduler.Timer>();
+		final List<Parked> outstanding = new ArrayList<Parked>();
+
+		if (input.readInt() != SNAPSHOT_MAGIC)
+		{
+			throw new IOException("not a snapshot of machinery");
+		}
+
+		if (input.readInt() != SNAPSHOT_VERSION)
+		{
+			throw new IOException("unsupported snapshot version");
+		}
+
+		if (input.readLong() != this.library.fingerprint)
+		{
+			throw new IOException("snapshot taken against a different library");
+		}
+
+		final long journaled = input.readLong();
+
+		final long counter = input.readLong();
+
+		for (int n = input.readInt(); n > 0; --n)
+		{
+			final long order = input.readLong();
+			final long parent = input.readLong();
+			final boolean live = input.readBoolean();
+			final long uniqued = input.readLong();
+			final int machine = input.readInt();
+			final int current = input.readInt();
+
+			if (machine < 0 || machine >= this.library.machines.length || (parent != 0 && ordered.containsKey(parent) == false))
+			{
+				throw new IOException("corrupt snapshot");
+			}
+
+			final Layer layer = new Layer(this.library.machines[machine], uniqued, current);
+
+			readFrames(input, layer);
+
+			ordered.put
+				( order
+				, restored.graft
+					( parent != 0 ? ordered.get(parent) : null
+					, layer
+					, order
+					, live
+					)
+				);
+		}
+
+		for (int n = input.readInt(); n > 0; --n)
+		{
+			final long target = input.readLong();
+
+			timers.add(new MachineryScheduler.Timer(this.timeout, target, readText(input), input.readLong()));
+		}
+
+		for (int n = input.readInt(); n > 0; --n)
+		{
+			final Entry entry = ordered.get(input.readLong());
+
+			if (entry == null || restored.isLive(entry.target) == false)
+			{
+				throw new IOException("corrupt snapshot");
+			}
+
+			final Parked parked = new Parked(entry.target, new AxionTaskResolve.Update());
+
+			parked.state = input.readInt();
+			parked.leaving = input.readBoolean();
+
+			for (int d = input.readInt(); d > 0; --d)
+			{
+				parked.deferred.add(readText(input));
+			}
+
+			if (parked.axion() == null || (parked.leaving == false && (parked.state != entry.target.current || entry.target.parked != null)))
+			{
+				throw new IOException("corrupt snapshot");
+			}
+
+			if (parked.leaving == false)
+			{
+				entry.target.parked = parked;
+
+				restored.reindex(entry.target);
+			}
+
+			outstanding.add(parked);
+		}
+
+		restored.ordered = Math.max(restored.ordered, counter);
+
+		this.forget();
+
+		this.entries.clear();
+		this.entries = restored;
+
+		this.sequence = journaled;
+
+		this.timeout.clear();
+
+		for (final MachineryScheduler.Timer timer : timers)
+		{
+			this.schedule(timer.target, timer.event, timer.when);
+		}
+
+		this.processing.contain = this.resolve;
+
+		for (final Parked parked : outstanding)
+		{
+			// Whatever was awaited before is lost along with the stack the
+			// snapshot was taken from, so ask again.
+
+			this.processing.reissue(parked);
+		}
+	}
+
+	/**
+	 * Writes layer's frames, as in snapshots and passivated layers alike.
+	 */
+	private static void writeFrames(final DataOutputStream output, final Layer layer) throws IOException {
+		output.writeInt(layer.frames.size());
+
+		for (final Frame frame : layer.frames)
+		{
+			output.writeInt(frame.values.size());
+
+			for (final Value chain : frame.values.values())
+			{
+				int length = 0;
+
+				for (Value value = chain; value != null; value = value.next)
+				{
+					++length;
 				}
-			}
 
-			return ifNoMatch;
-		}
+				output.writeInt(length);
 
-		String fetchIt(final String label, final String ifNoMatch) {
-			for (final Frame frame : this.frames)
-			{
-				for (final Value match : frame.values)
+				for (Value value = chain; value != null; value = value.next)
 				{
-					if (match.label.equalsIgnoreCase(label) == true)
+					writeText(output, value.label);
+					output.writeBoolean(value.isNumber());
+
+					if (value.isNumber() == true)
+					{
+						output.writeInt(value.number());
+					}
+					else
 					{
-						return match.value;
+						writeText(output, value.text());
 					}
 				}
-				
-				break;
 			}
-
-			return ifNoMatch;
 		}
+	}
 
-		/**
-		 * Works from the current frame backwards to set a matching pair value.
-		 * If not present anywhere, we add the pair to the current frame.
-		 * 
-		 * @param label label of pair to update/add
-		 * @param value value to save
-		 */
-		void apply(final String label, final String value) {
-			for (final Frame frame : this.frames)
+	/**
+	 * Reads frames written by {@link #writeFrames} into layer.
+	 */
+	private static void readFrames(final DataInputStream input, final Layer layer) throws IOException {
+		for (int f = input.readInt(); f > 0; --f)
+		{
+			final Frame frame = new Frame();
+
+			for (int c = input.readInt(); c > 0; --c)
 			{
-				for (final Value match : frame.values)
+				Value last = null;
+
+				for (int v = input.readInt(); v > 0; --v)
 				{
-					if (match.label.equalsIgnoreCase(label) == true)
+					final String label = readText(input);
+					final Value value = input.readBoolean() == true ? new Value(label, input.readInt()) : new Value(label, readText(input));
+
+					if (last != null)
 					{
-						match.value = value;
-						
-						return;
+						last.next = value;
 					}
+					else
+					{
+						frame.values.put(CompiledLibrary.fold(label), value);
+					}
+
+					last = value;
 				}
 			}
 
-			for (final Frame frame : this.frames)
-			{
-				frame.add
-					( label
-					, value
-					);
-				
-				break;
-			}
+			layer.frames.add(frame);
 		}
 
-		/**
-		 * Updates existing pair in current frame or adds it if not present.
-		 * 
-		 * @param label label of pair to update/add
-		 * @param value value to save
-		 */
-		void write(final String label, final String value) {
-			for (final Frame frame : this.frames)
-			{
-				frame.set
-					( label
-					, value
-					);
-				
-				break;
-			}
+		if (layer.frames.isEmpty() == true)
+		{
+			throw new IOException("corrupt snapshot");
 		}
+	}
 
-		/**
-		 * Appends pair to current frame even if already existing in array.
-		 * 
-		 * @param label label of pair to add
-		 * @param value value to save
-		 */
-		void accum(final String label, final String value) {
-			for (final Frame frame : this.frames)
-			{
-				frame.add
-					( label
-					, value
-					);
-				
-				break;
-			}
-		}
-		
-		/**
-		 * Removes pair with specified label. If multiple, removes first.
-		 * 
-		 * @param label label of pair to add
-		 */
-		void evict(final String label) {
-			for (final Frame frame : this.frames)
-			{
-				frame.nix
-					( label
-					);
-				
-				break;
-			}
+	private static void writeText(final DataOutputStream output, final String text) throws IOException {
+		if (text.length() < 0x5555)
+		{
+			// Short enough to always fit the 64K limit of modified UTF-8.
+
+			output.writeBoolean(false);
+			output.writeUTF(text);
 		}
+		else
+		{
+			final byte [] bytes = text.getBytes("UTF-8");
 
-		void push() {
-			this.frames.add(0, new Frame());
+			output.writeBoolean(true);
+			output.writeInt(bytes.length);
+			output.write(bytes);
 		}
+	}
 
-		void pop() {
-			if (this.frames.size() > 1)
-			{
-				this.frames.remove(0);
-			}
+	private static String readText(final DataInputStream input) throws IOException {
+		if (input.readBoolean() == false)
+		{
+			return input.readUTF();
 		}
 
-		Frames() {
-			this.frames.add(new Frame());
+		final int length = input.readInt();
+
+		if (length < 0)
+		{
+			throw new IOException("corrupt snapshot");
 		}
 
+		final byte [] bytes = new byte [length];
+
+		input.readFully(bytes);
+
+		return new String(bytes, "UTF-8");
 	}
 
 	/**
-	 * Internal container.
+	 * Writes snapshot of the running stack: its layers, each layer's current
+	 * state and frames, and pending timers. The snapshot is taken between
+	 * events, so it holds the stack as left by every event handled before
+	 * this call. Axions still completing are written along with the events
+	 * deferred for the layers parked on them; restoring executes each again
+	 * and leaves its layer parked until it completes. The stream is flushed
+	 * but left open.
+	 * 
+	 * @param output stream to write snapshot to
+	 * 
+	 * @return this instance
+	 * 
+	 * @throws IOException if writing fails
 	 */
-	static class Frame extends Values {
+	public StackOfMachinery snapshot(final OutputStream output) throws IOException {
+		final DataOutputStream buffered = new DataOutputStream(new BufferedOutputStream(output, 1 << 16));
+
+		this.exclusive
+			( new Exclusive() {
+				void apply() throws IOException {
+					writeSnapshot(buffered);
+				}
+			});
+
+		return this;
 	}
 
 	/**
-	 * Internal container.
+	 * Writes snapshot of the running stack to channel, as
+	 * {@link #snapshot(OutputStream)} does.
+	 * 
+	 * @param output channel (e.g. file channel) to write snapshot to
+	 * 
+	 * @return this instance
+	 * 
+	 * @throws IOException if writing fails
 	 */
-	static class Values {
-		final List<Value> values = new ArrayList<Value>();
-
-		void set(final String label, final String value) {
-			if (label.isEmpty() == false)
-			{
-				for (final Value match : this.values)
-				{
-					if (match.label.equalsIgnoreCase(label) == true)
-					{
-						match.value = value;
-						
-						return;
-					}
-				}
-				
-				this.values.add
-					( new Value(label, value)
-					);
-			}
-		}
+	public StackOfMachinery snapshot(final WritableByteChannel output) throws IOException {
+		return this.snapshot(Channels.newOutputStream(output));
+	}
 
-		void add(final String label, final String value) {
-			if (label.isEmpty() == false)
-			{
-				this.values.add
-					( new Value(label, value)
-					);
-			}
-		}
-		
-		void nix(final String label) {
-			int i = 0;
-			
-			for (final Value match : this.values)
-			{
-				if (match.label.equalsIgnoreCase(label) == true)
-				{
-					this.values.remove(i);
+	/**
+	 * Replaces layers and pending timers with those of a snapshot taken by a
+	 * stack initialized with the same library. Timers that have come due in
+	 * the meantime expire right away. The stack is left as it was if the
+	 * snapshot can't be read. Input is buffered, so it may be read past the
+	 * end of the snapshot.
+	 * 
+	 * @param input stream to read snapshot from
+	 * 
+	 * @return this instance
+	 * 
+	 * @throws IOException if reading fails or snapshot doesn't match library
+	 */
+	public StackOfMachinery restore(final InputStream input) throws IOException {
+		final DataInputStream buffered = new DataInputStream(new BufferedInputStream(input, 1 << 16));
 
-					break;
+		this.exclusive
+			( new Exclusive() {
+				void apply() throws IOException {
+					readSnapshot(buffered);
 				}
-				
-				++i;
-			}
-		}
+			});
 
+		return this;
 	}
 
 	/**
-	 * Internal container.
+	 * Replaces layers and pending timers with those of a snapshot read from
+	 * channel, as {@link #restore(InputStream)} does.
+	 * 
+	 * @param input channel (e.g. file channel) to read snapshot from
+	 * 
+	 * @return this instance
+	 * 
+	 * @throws IOException if reading fails or snapshot doesn't match library
 	 */
-	static class Value {
+	public StackOfMachinery restore(final ReadableByteChannel input) throws IOException {
+		return this.restore(Channels.newInputStream(input));
+	}
+
+	/**
+	 * Apply journal to record every event (including timeouts) ahead of it
+	 * being applied. Records are forced to disk a mailbox group at a time,
+	 * before any event of the group is applied. A group that fails to be
+	 * journaled isn't applied, but reported to the resolver's
+	 * {@link AxionTaskResolve#onUnjournaled} hook. While journaling, axions
+	 * execute synchronously rather than parking their layer, as completions
+	 * aren't journaled; those started before the journal was applied still
+	 * complete, but go unrecorded.
+	 * 
+	 * @param updated journal to append to, or null to stop journaling
+	 * 
+	 * @return this instance
+	 */
+	public StackOfMachinery setJournal(final MachineryJournal updated) {
+		this.journal = updated;
 		
-		public String label = "";
-		public String value = "";
+		return this;
+	}
 
-		Value(final String label, final String value) {
-			this.label = label;
-			this.value = value;
-		}
+	/**
+	 * Recovers stack from its last snapshot and the journal records appended
+	 * after it, then goes on journaling there. Records are replayed in order
+	 * as of the time they were first applied, so layers get the same ids and
+	 * timers the same expiries as before. Timers are held while replaying:
+	 * journaled timeouts cancel their timer, and only timers still pending
+	 * afterwards are scheduled. Resolver hooks run again as events replay;
+	 * check {@link #isReplaying()} to skip outside side effects. Axions
+	 * execute synchronously while replaying, as they did when journaled.
+	 * 
+	 * @param snapshot stream to read snapshot from, or null to replay the whole
+	 * journal against the stack as initialized
+	 * @param journal journal to replay and append to
+	 * 
+	 * @return this instance
+	 * 
+	 * @throws IOException if reading fails or snapshot doesn't match library
+	 */
+	public StackOfMachinery recover(final InputStream snapshot, final MachineryJournal journal) throws IOException {
+		this.exclusive
+			( new Exclusive() {
+				void apply() throws IOException {
+					held = new HashMap<MachineryScheduler.Timer, MachineryScheduler.Timer>();
+
+					try
+					{
+						if (snapshot != null)
+						{
+							readSnapshot(new DataInputStream(new BufferedInputStream(snapshot, 1 << 16)));
+						}
+
+						journal.replay
+							( sequence
+							, new MachineryJournal.Replay() {
+								public void onRecord(final long journaled, final long time, final long target, final String event) {
+									if (target != 0)
+									{
+										held.remove(new MachineryScheduler.Timer(timeout, target, event, 0));
+									}
+
+									now = time;
+
+									StackOfMachinery.this.apply(event, target);
+
+									sequence = journaled;
+								}
+							});
+					}
+					finally
+					{
+						final Map<MachineryScheduler.Timer, MachineryScheduler.Timer> pending = held;
 
+						held = null;
+
+						for (final MachineryScheduler.Timer timer : pending.values())
+						{
+							timeout.register(timer.target, timer.event, timer.when);
+						}
+					}
+
+					StackOfMachinery.this.journal = journal;
+				}
+			});
+
+		return this;
 	}
 
 	/**
-	 * Internal container.
+	 * Tells resolver hooks whether the event being handled is replayed from
+	 * the journal, having already been handled before.
+	 * 
+	 * @return true while recovering
 	 */
-	static class Event {
+	public boolean isReplaying() {
+		return this.held != null;
+	}
+
+	/**
+	 * Report of layers carried over to an upgraded library, along with those
+	 * dropped because their machine or state is gone.
+	 */
+	public static class Migration {
+
+		/**
+		 * Why a layer was dropped: its machine is gone, its state is gone, or
+		 * a layer above it was dropped.
+		 */
+		public static enum Cause {
+			MACHINE, STATE, PARENT
+		}
+
+		/**
+		 * Layer dropped while upgrading.
+		 */
+		public static class Lost {
+
+			/**
+			 * Id of layer dropped.
+			 */
+			public final String layer;
+
+			/**
+			 * Name of layer's machine.
+			 */
+			public final String machine;
+
+			/**
+			 * State layer was in.
+			 */
+			public final String state;
+
+			/**
+			 * Why layer was dropped.
+			 */
+			public final Cause cause;
+
+			public String toString() {
+				return String.format
+					( "(%s) state '%s' of %s dropped (%s)"
+					, this.layer
+					, this.state
+					, this.machine
+					, this.cause
+					);
+			}
+
+			Lost(final String layer, final String machine, final String state, final Cause cause) {
+				this.layer = layer;
+				this.machine = machine;
+				this.state = state;
+				this.cause = cause;
+			}
 
-		public final String event;
-		public final Layer layer;
-		
-		public Event(final String event, final Layer layer) {
-			this.event = event;
-			this.layer = layer;
+		}
+
+		/**
+		 * Number of layers carried over, including those already dropped
+		 * but still linked above live layers.
+		 */
+		public final int migrated;
+
+		/**
+		 * Layers dropped, parents ahead of their children.
+		 */
+		public final List<Lost> lost;
+
+		public String toString() {
+			return String.format
+				( "migrated=%d lost=%d"
+				, this.migrated
+				, this.lost.size()
+				);
+		}
+
+		Migration(final int migrated, final List<Lost> lost) {
+			this.migrated = migrated;
+			this.lost = Collections.unmodifiableList(lost);
 		}
 
 	}
 
 	/**
-	 * Process external event and queue up side effects to be handled in order
-	 * as we progress. We run through the axion results as intermediate events,
-	 * so no external event can interrupt the complete processing of a prior
-	 * external event and all of its side effects. We use the currently set
-	 * axion task resolver hook throughout processing of this event.
-	 * 
-	 * @param external event to process
-	 * @param target specific layer to limit handling, or null for all
-	 * 
-	 * @return this instance
+	 * Moves every layer linked into the hierarchy over to the machine and
+	 * state of the same name in library, dropping layers whose machine or
+	 * state is gone along with their descendants, then subscribes the layers
+	 * left by the library's event ids.
 	 */
-	private StackOfMachinery handleEvent(final String external, final String target) {
-		final AxionTaskResolve contain = this.resolve;
-		
-		if (external.isEmpty() == false)
+	private Migration migrate(final CompiledLibrary compiled) {
+		final List<Migration.Lost> lost = new ArrayList<Migration.Lost>();
+		final Set<Entry> dropping = new HashSet<Entry>();
+		final List<Entry> linked = this.entries.linked();
+		final CompiledLibrary.Machine [] machines = new CompiledLibrary.Machine [linked.size()];
+		final int [] states = new int [linked.size()];
+
+		if (compiled == this.library)
 		{
-			final List<Event> queuing = new ArrayList<Event>();
+			return new Migration(0, lost);
+		}
 
-			contain.log
-				( String.format
-					( "Handling %s"
-					, external
-					)
-				);
-			
-			for (final Entry entry : this.entries.graphed)
+		for (int i = 0; i < linked.size(); ++i)
+		{
+			// Parents are listed ahead of their children, so a dropped
+			// parent is known by the time its children come up.
+
+			final Entry entry = linked.get(i);
+			final Layer layer = entry.target;
+			final Migration.Cause cause;
+
+			machines[i] = compiled.machineOf(layer.machine.name);
+			states[i] = machines[i] != null ? machines[i].stateOf(layer.label()) : CompiledLibrary.NONE;
+
+			if (entry.parent != null && dropping.contains(entry.parent) == true)
+			{
+				cause = Migration.Cause.PARENT;
+			}
+			else
+			if (machines[i] == null)
 			{
-				if (entry.target.uniqued.contentEquals(target) || target.isEmpty() == true)
-				{
-					queuing.add(new Event(external, entry.target));
-				}
+				cause = Migration.Cause.MACHINE;
 			}
-
-			if (queuing.isEmpty() == false)
+			else
+			if (states[i] == CompiledLibrary.NONE)
 			{
-				final QueuedEvents handler = new QueuedEvents() {
-					private final ListOfGraphEntry hierarchy = entries;
-					
-					public String start(final String namedAs, final LabeledValuePair [] frame, final Layer who) {
-						for (final Entry entry : this.hierarchy.graphed)
-						{
-							if (entry.target != who)
-							{
-								continue;
-							}
+				cause = Migration.Cause.STATE;
+			}
+			else
+			{
+				continue;
+			}
 
-							for (final TransitionStates machine : library.machines)
-							{
-								if (machine.name.equalsIgnoreCase(namedAs) == true)
-								{
-									Layer child = new Layer(machine);
+			dropping.add(entry);
 
-									queuing.add(new Event("started", child));
+			if (entry.live == true)
+			{
+				lost.add(new Migration.Lost(layer.hexed(), layer.machine.name, layer.label(), cause));
+			}
+		}
 
-									for (LabeledValuePair pair : frame)
-									{
-										child.apply(pair.label, pair.value);
-									}
-									
-									entries.graphed.add
-										( new Entry
-											( entry
-											, child
-											)
-										);
-
-									contain.log
-										( String.format
-											( "(%s) starting layer %s '%s'"
-											, who.uniqued
-											, child.uniqued
-											, machine.name
-											)
-										);
-
-									return "success";
-								}
-							}
-							
-							return "invalid";
-						}
-						
-						return "failure";
-					}
+		for (int i = linked.size() - 1; i >= 0; --i)
+		{
+			// Dropping children first prunes dropped parents left without
+			// any, as they're dropped in turn.
 
-					public String patch(final String command, final String status, final Layer who) {
-						for (final Entry entry : this.hierarchy.graphed)
-						{
-							if (entry.target != who)
-							{
-								continue;
-							}
+			final Entry entry = linked.get(i);
 
-							contain.command(command,  status);
+			if (dropping.contains(entry) == true && entry.live == true)
+			{
+				this.entries.remove(entry);
 
-							return "success";
-						}
-						
-						return "failure";
-					}
+				this.release(entry.target);
+			}
+		}
 
-					public String timer(final String expires, final String event, final Layer who) {
-						for (final Entry entry : this.hierarchy.graphed)
-						{
-							if (entry.target != who)
-							{
-								continue;
-							}
+		for (final Parked parked : this.outstanding)
+		{
+			// Axions outstanding on layers carried over complete in the
+			// state of the same label, or are ignored if it's gone.
 
-							try
-							{
-								timeout.register(who.uniqued, event, new Date().getTime() + Integer.parseInt(expires));
-							}
-							catch (Exception eX)
-							{
-								return "invalid";
-							}
+			final CompiledLibrary.Machine machine = compiled.machineOf(parked.layer.machine.name);
 
-							return "success";
-						}
+			if (machine != null && parked.state >= 0 && parked.state < parked.layer.machine.states.length)
+			{
+				parked.state = machine.stateOf(parked.layer.machine.states[parked.state].label);
+			}
+			else
+			{
+				parked.state = CompiledLibrary.NONE;
+			}
+		}
 
-						return "failure";
-					}
+		for (int i = 0; i < linked.size(); ++i)
+		{
+			if (dropping.contains(linked.get(i)) == false)
+			{
+				final Layer layer = linked.get(i).target;
 
-					public String write(final String label, final String value, final Layer who) {
-						for (final Entry entry : this.hierarchy.graphed)
-						{
-							if (entry.target != who)
-							{
-								continue;
-							}
+				layer.machine = machines[i];
+				layer.current = states[i];
+			}
+		}
 
-							if (entry.parent != null)
-							{
-								if (label.isEmpty() == false)
-								{
-									entry.parent.target.write(label, value);
-								}
-							}
-							
-							return "success";
-						}
-						
-						return "failure";
-					}
+		this.entries.resubscribe();
 
-					public String count(final LabeledValuePair [] tuple, final Layer who) {
-						final Count count = new Count();
-						
-						this.hierarchy.visitClosure
-							( who
-							, new OnGraphedEntries() {
-								public void onVisit(final Layer target) {
-									if (target.matching(tuple) == true)
-									{
-										count.increment();
-									}
-								}
-							});
+		this.library = compiled;
 
-						return count.value();
-					}
+		return new Migration(linked.size() - dropping.size(), lost);
+	}
 
-					public String blast(final String event, final Layer who) {
-						this.hierarchy.visitClosure
-							( who
-							, new OnGraphedEntries() {
-								public void onVisit(final Layer target) {
-									queuing.add(new Event(event, target));
-								}
-							});
-						
-						return "success";
-					}
+	/**
+	 * Upgrades stack to library in place, between events, without draining
+	 * its layers. Each layer carries on from the state of the same label in
+	 * the machine of the same name, keeping its id, frames and timers. Layers
+	 * whose machine or state is gone are dropped along with their descendants
+	 * and reported. Snapshots taken from here on belong to the new library;
+	 * journals don't record upgrades, so take one right after upgrading a
+	 * journaled stack.
+	 * 
+	 * @param compiled compiled set of machine declarations
+	 * 
+	 * @return report of layers carried over and dropped
+	 * 
+	 * @throws IOException if waiting on the stack is interrupted
+	 */
+	public Migration upgrade(final CompiledLibrary compiled) throws IOException {
+		final List<Migration> migrated = new ArrayList<Migration>(1);
 
-					public String raise(final String event, final Layer who) {
-						for (final Entry entry : this.hierarchy.graphed)
-						{
-							if (entry.target != who)
-							{
-								continue;
-							}
+		this.exclusive
+			( new Exclusive() {
+				void apply() throws IOException {
+					migrated.add(migrate(compiled));
+				}
+			});
 
-							if (entry.parent != null)
-							{
-								if (event.isEmpty() == false)
-								{
-									queuing.add(new Event(event, entry.parent.target));
-								}
-							}
-							
-							return "success";
-						}
-						
-						return "failure";
-					}
-				
-					public String trace(final String debug, final Layer who) {
-						for (final Entry entry : this.hierarchy.graphed)
-						{
-							if (entry.target != who)
-							{
-								continue;
-							}
+		return migrated.get(0);
+	}
 
-							contain.log
-								( String.format
-									( "(%s) %s"
-									, who.uniqued
-									, debug
-									)
-								);
+	/**
+	 * Posts upgrade to the mailbox without waiting on it, as
+	 * {@link #upgrade(CompiledLibrary)} does.
+	 */
+	CompletableFuture<Migration> upgradeLater(final CompiledLibrary compiled) {
+		final CompletableFuture<Migration> migrated = new CompletableFuture<Migration>();
 
-							return "success";
-						}
-						
-						return "failure";
+		this.post
+			( new Mail(new Runnable() {
+				public void run() {
+					try
+					{
+						migrated.complete(migrate(compiled));
 					}
-					
-					public String pop(final Layer who) {
-						for (final Entry entry : this.hierarchy.graphed)
-						{
-							if (entry.target != who)
-							{
-								continue;
-							}
-
-							if (entry.parent != null)
-							{
-								this.hierarchy.graphed.remove
-									( entry
-									);
-							}
-
-							return "success";
-						}
-						
-						return "failure";
+					catch (RuntimeException eX)
+					{
+						migrated.completeExceptionally(eX);
 					}
-
-				};
-				
-				for (int i = 0; i < queuing.size(); ++i)
-				{
-					Event next = queuing.get(i);
-
-					contain.log
-						( String.format
-							( "Layer (%s) of %s following on %s"
-							, next.layer.uniqued
-							, next.layer.machine.name
-							, next.event
-							)
-						);
-					
-					next.layer.followOn
-						( next.event
-						, contain
-						, handler
-						);
 				}
-			}			
-		}
-		
-		return this;
+			})
+			);
+
+		return migrated;
 	}
 
 	/**
-	 * Process external event and queue up side effects to be handled in order
-	 * as we progress. We run through the axion results as intermediate events,
-	 * so no external event can interrupt the complete processing of a prior
-	 * external event and all of its side effects. We use the currently set
-	 * axion task resolver hook throughout processing of this event.
+	 * Reset entry graph and point to new library. We clean house and start it
+	 * all over again. The library is compiled into indexed transition tables
+	 * here, so later changes to the deserialized descriptors are not seen.
 	 * 
-	 * @param external event to process
+	 * @param library deserialized set of machine declarations
 	 * 
 	 * @return this instance
 	 */
-	public StackOfMachinery handleEvent(final String external) {
-		return this.handleEvent(external, "");
+	public StackOfMachinery initialize(final AxionTaskLibrary library) {
+		return this.initialize(new CompiledLibrary(library));
 	}
-	
+
 	/**
-	 * Reset entry graph and point to new library. We clean house and start it
-	 * all over again.
+	 * Reset entry graph and point to library already compiled, which may be
+	 * shared with any number of other stacks (see
+	 * {@link CompiledLibrary#compile(AxionTaskLibrary)}). Layers and pending
+	 * timers are replaced on the mailbox's drainer, between events, so this
+	 * must not be called from within an event.
 	 * 
-	 * @param library deserialized set of machine declarations
+	 * @param compiled compiled set of machine declarations
 	 * 
 	 * @return this instance
 	 */
-	public StackOfMachinery initialize(final AxionTaskLibrary library) {
-		this.entries.graphed.clear();
-		
-		for (final TransitionStates machine : library.machines)
+	public StackOfMachinery initialize(final CompiledLibrary compiled) {
+		try
 		{
-			if (machine.name.equalsIgnoreCase("default") == true)
-			{
-				this.entries.graphed.add
-					( new Entry
-						( null
-						, new Layer
-							( machine
-							)
-						)
-					);
-				
-				break;
-			}
+			this.exclusive
+				( new Exclusive() {
+					void apply() {
+						reset(compiled);
+					}
+				});
+		}
+		catch (IOException eX)
+		{
+			throw new IllegalStateException("failed initializing: " + eX.getMessage(), eX);
 		}
 
-		this.library = library;
-		
 		return this;
 	}
 
+	/**
+	 * Replaces graph with a lone layer of library's default machine, if any,
+	 * dropping every other layer and pending timer.
+	 */
+	private void reset(final CompiledLibrary compiled) {
+		final CompiledLibrary.Machine machine = compiled.machineOf("default");
+
+		this.forget();
+
+		this.entries.clear();
+
+		this.timeout.clear();
+		
+		if (machine != null)
+		{
+			this.entries.add
+				( null
+				, new Layer
+					( machine
+					)
+				);
+		}
+
+		this.library = compiled;
+	}
+
 	/**
 	 * Apply container-specific resolver of application-defined axions. This is
 	 * your hook to process axion requests that only make sense within the app
@@ -1391,19 +3708,196 @@ public class StackOfMachinery {
 		return this;
 	}
 	
+	/**
+	 * Apply registry of direct handlers for application-defined axions. Axions
+	 * with a registered handler skip the resolver's execute hook. Registries
+	 * may be shared among stacks.
+	 * 
+	 * @param updated new registry of axion handlers
+	 * 
+	 * @return this instance
+	 */
+	public StackOfMachinery setRegistry(final AxionTaskRegistry updated) {
+		if (updated != null)
+		{
+			this.registry = updated;
+		}
+		
+		return this;
+	}
+	
+	/**
+	 * Apply executor to drain the mailbox on. By default, the thread posting
+	 * into an empty mailbox drains it, which means an event handled while
+	 * another thread is draining returns before being applied. With an executor
+	 * set, events are always applied on the executor.
+	 * 
+	 * @param updated executor to drain on, or null to drain on posting threads
+	 * 
+	 * @return this instance
+	 */
+	public StackOfMachinery setExecutor(final Executor updated) {
+		this.drainer = updated;
+		
+		return this;
+	}
+
+	/**
+	 * Apply budgets bounding the work handling one event can cause, counted
+	 * across every layer the event reaches, so a library whose transitions
+	 * or blasts cycle can't pin the stack's thread or grow its queue without
+	 * end. An event running over either budget is cut short and reported to
+	 * the resolver (see {@link AxionTaskResolve#onRunaway}). Both budgets
+	 * are a million by default.
+	 * 
+	 * @param steps most transitions followed handling one event, or 0 for
+	 * no bound
+	 * @param queued most events queued handling one event, or 0 for no bound
+	 * 
+	 * @return this instance
+	 */
+	public StackOfMachinery setBudgets(final int steps, final int queued) {
+		this.maxSteps = steps;
+		this.maxQueued = queued;
+
+		return this;
+	}
+
+	/**
+	 * Apply fusion of chains of automatic transitions whose entry axions are
+	 * all built-ins touching only the layer's frames, applying them back to
+	 * back. Chains fuse anyway for resolvers not logging at DEBUG level;
+	 * switch fusion on to fuse them for resolvers that do as well, at the
+	 * cost of not logging each hop along them.
+	 * 
+	 * @param fusing true to fuse chains even while logging at DEBUG level
+	 * 
+	 * @return this instance
+	 */
+	public StackOfMachinery setFusion(final boolean fusing) {
+		this.fusion = fusing;
+
+		return this;
+	}
+
+	/**
+	 * Apply passivation of idle layers, keeping their frames in direct memory
+	 * off the heap. See {@link #setPassivation(long, File)}.
+	 * 
+	 * @param idle time in ms a layer stays untouched before passivating, or 0
+	 * to never passivate
+	 * 
+	 * @return this instance
+	 */
+	public StackOfMachinery setPassivation(final long idle) {
+		return this.setPassivation(idle, null);
+	}
+
+	/**
+	 * Apply passivation of idle layers. Layers left untouched by events for
+	 * longer than idle have their frames moved out of the heap, so heap use
+	 * follows the layers in use rather than every layer started. Passivated
+	 * frames are brought back as soon as an event, blast, count, write or
+	 * timer reaches their layer. Idle layers are passivated as the stack
+	 * handles events.
+	 * 
+	 * @param idle time in ms a layer stays untouched before passivating, or 0
+	 * to never passivate
+	 * @param spill scratch file to map passivated frames from, or null to keep
+	 * them in direct memory
+	 * 
+	 * @return this instance
+	 */
+	public StackOfMachinery setPassivation(final long idle, final File spill) {
+		this.spill = spill;
+		this.idle = Math.max(0, idle);
+		
+		return this;
+	}
+
+	/**
+	 * Hands stack to runtime hosting it, which counts the events posted to
+	 * and handled by the stack.
+	 */
+	void hostedBy(final MachineryRuntime runtime) {
+		this.host = runtime;
+	}
+
+	/**
+	 * Erases stack's pending timers once its host closes it. Events already
+	 * posted are still handled.
+	 */
+	void dismiss() {
+		this.timeout.clear();
+	}
+	
 	/**
 	 * Construct default.
 	 * 
 	 * @param library deserialized set of machine declarations
+	 * @param scheduler scheduler to hold this stack's timers
 	 */
-	public StackOfMachinery(final AxionTaskLibrary library) {
+	public StackOfMachinery(final AxionTaskLibrary library, final MachineryScheduler scheduler) {
+		this(scheduler);
+
 		this.initialize(library);
 	}	
 
+	/**
+	 * Construct default, sharing the process-wide timer scheduler.
+	 * 
+	 * @param library deserialized set of machine declarations
+	 */
+	public StackOfMachinery(final AxionTaskLibrary library) {
+		this(library, MachineryScheduler.shared());
+	}	
+
+	/**
+	 * Construct default.
+	 * 
+	 * @param compiled compiled set of machine declarations, shared with other
+	 * stacks
+	 * @param scheduler scheduler to hold this stack's timers
+	 */
+	public StackOfMachinery(final CompiledLibrary compiled, final MachineryScheduler scheduler) {
+		this(scheduler);
+
+		this.initialize(compiled);
+	}
+
+	/**
+	 * Construct default, sharing the process-wide timer scheduler.
+	 * 
+	 * @param compiled compiled set of machine declarations, shared with other
+	 * stacks
+	 */
+	public StackOfMachinery(final CompiledLibrary compiled) {
+		this(compiled, MachineryScheduler.shared());
+	}
+
 	/**
 	 * Construct default.
+	 * 
+	 * @param scheduler scheduler to hold this stack's timers
+	 */
+	public StackOfMachinery(final MachineryScheduler scheduler) {
+		this.timeout = new MachineryTimeout(scheduler) {
+			protected void onTimeout(final long target, final String event) {
+				StackOfMachinery.this.post(new String [] { event }, target);
+			}
+			protected void onAllDone() {
+				synchronized (StackOfMachinery.this) {
+					StackOfMachinery.this.notifyAll();
+				}
+			}
+		};
+	}
+
+	/**
+	 * Construct default, sharing the process-wide timer scheduler.
 	 */
 	public StackOfMachinery() {
+		this(MachineryScheduler.shared());
 	}
 
 }
\ No newline at end of file
@@ -0,0 +1,315 @@
+package com.unowmo.machinery;
+
+import java.util.*;
+
+/**
+ * Hierarchical timing wheel of millisecond ticks. Each level has 64 slots,
+ * each slot spanning all of the level below, so a timer is placed in O(1) by
+ * the highest bits its expiry doesn't share with the clock, and cascades down
+ * a level as the clock reaches its slot. Timers beyond the top level wait on
+ * an overflow list. Not thread-safe; owners synchronize access.
+ *
+ * @author Kirk Bulis
+ *
+ */
+final class TimingWheel {
+	private static final int BITS = 6;
+	private static final int SLOTS = 1 << BITS;
+	private static final int LEVELS = 6;
+	private static final long MASK = SLOTS - 1;
+
+	private final Timer [][] heads = new Timer [LEVELS + 1][SLOTS];
+	private final Timer [][] tails = new Timer [LEVELS + 1][SLOTS];
+	private final long [] occupied = new long [LEVELS + 1];
+	private long now;
+	private int size;
+
+	/**
+	 * Description of a specific, active timer. Linked into its slot so it can
+	 * be cancelled in place.
+	 */
+	static class Timer {
+
+		final long target;
+		final String event;
+		final long when;
+		private Timer prev, next;
+		private int level = -1, slot;
+
+		Timer(final long target, final String event, final long when) {
+			this.target = target;
+			this.event = event;
+			this.when = when;
+		}
+
+	}
+
+	/**
+	 * Inserts timer. Timers already due expire on the next advance.
+	 *
+	 * @param timer timer to place
+	 */
+	void add(final Timer timer) {
+		int level = 0;
+
+		if (timer.when > this.now)
+		{
+			while (level < LEVELS && (timer.when >> (BITS * (level + 1))) != (this.now >> (BITS * (level + 1))))
+			{
+				++level;
+			}
+		}
+
+		this.link
+			( timer
+			, level
+			, level < LEVELS ? (int) ((Math.max(timer.when, this.now) >> (BITS * level)) & MASK) : 0
+			);
+
+		++this.size;
+	}
+
+	/**
+	 * Removes timer, if placed.
+	 *
+	 * @param timer timer to cancel
+	 */
+	void remove(final Timer timer) {
+		if (timer.level >= 0)
+		{
+			this.unlink(timer);
+
+			--this.size;
+		}
+	}
+
+	/**
+	 * Moves clock forward to time, collecting expired timers in order of
+	 * expiry (and of insertion for timers expiring on the same tick).
+	 *
+	 * @param to time to advance to (epoch time in ms)
+	 * @param expired list to collect expired timers into
+	 */
+	void advance(final long to, final List<Timer> expired) {
+		this.expire(0, (int) (this.now & MASK), expired);
+
+		while (this.now < to && this.size > 0)
+		{
+			if (((this.now + 1) & MASK) == 0)
+			{
+				// Crossing into the next block of level zero; bring down any
+				// timers of higher levels whose slots start here.
+
+				++this.now;
+
+				this.cascade();
+			}
+			else
+			{
+				final long after = this.occupied[0] & (-1L << ((this.now & MASK) + 1));
+
+				if (after == 0)
+				{
+					// Nothing left in this block, so skip straight to the tick
+					// before the next slot of any level comes due.
+
+					final long next = this.next();
+
+					if (next > to)
+					{
+						break;
+					}
+
+					this.now = next - 1;
+
+					continue;
+				}
+
+				if ((this.now & ~MASK) + Long.numberOfTrailingZeros(after) > to)
+				{
+					break;
+				}
+
+				this.now = (this.now & ~MASK) + Long.numberOfTrailingZeros(after);
+			}
+
+			this.expire(0, (int) (this.now & MASK), expired);
+		}
+
+		if (this.now < to)
+		{
+			this.now = to;
+		}
+	}
+
+	/**
+	 * Earliest time the clock must be advanced to for timers to expire or
+	 * cascade toward expiring.
+	 *
+	 * @return time (epoch time in ms) or Long.MAX_VALUE if empty
+	 */
+	long next() {
+		if (this.size == 0)
+		{
+			return Long.MAX_VALUE;
+		}
+
+		if ((this.occupied[0] & (1L << (this.now & MASK))) != 0)
+		{
+			return this.now;
+		}
+
+		for (int level = 0; level < LEVELS; ++level)
+		{
+			final int shift = BITS * level;
+			final long digit = (this.now >> shift) & MASK;
+			final long after = digit != MASK ? this.occupied[level] & (-1L << (digit + 1)) : 0;
+
+			if (after != 0)
+			{
+				return ((this.now >> (shift + BITS)) << (shift + BITS)) + ((long) Long.numberOfTrailingZeros(after) << shift);
+			}
+		}
+
+		return ((this.now >> (BITS * LEVELS)) + 1) << (BITS * LEVELS);
+	}
+
+	int size() {
+		return this.size;
+	}
+
+	void clear() {
+		for (int level = 0; level <= LEVELS; ++level)
+		{
+			for (final Timer head : this.heads[level])
+			{
+				for (Timer timer = head; timer != null; timer = timer.next)
+				{
+					timer.level = -1;
+				}
+			}
+
+			Arrays.fill(this.heads[level], null);
+			Arrays.fill(this.tails[level], null);
+
+			this.occupied[level] = 0;
+		}
+
+		this.size = 0;
+	}
+
+	private void cascade() {
+		int top = 1;
+
+		while (top <= LEVELS && (this.now & ((1L << (BITS * top)) - 1)) == 0)
+		{
+			++top;
+		}
+
+		// Cascade from the highest level crossed down, so timers dropping a
+		// level land in slots that are then cascaded in turn.
+
+		for (int level = top - 1; level >= 1; --level)
+		{
+			final int slot = level < LEVELS ? (int) ((this.now >> (BITS * level)) & MASK) : 0;
+			Timer timer = this.heads[level][slot];
+
+			// Detach the slot before placing its timers again, since those
+			// still out of range go back on the overflow list.
+
+			this.heads[level][slot] = null;
+			this.tails[level][slot] = null;
+			this.occupied[level] &= ~(1L << slot);
+
+			while (timer != null)
+			{
+				final Timer next = timer.next;
+
+				timer.level = -1;
+
+				--this.size;
+
+				this.add(timer);
+
+				timer = next;
+			}
+		}
+	}
+
+	private void expire(final int level, final int slot, final List<Timer> expired) {
+		Timer timer = this.heads[level][slot];
+
+		while (timer != null)
+		{
+			final Timer next = timer.next;
+
+			this.unlink(timer);
+
+			--this.size;
+
+			expired.add(timer);
+
+			timer = next;
+		}
+	}
+
+	private void link(final Timer timer, final int level, final int slot) {
+		timer.level = level;
+		timer.slot = slot;
+		timer.next = null;
+		timer.prev = this.tails[level][slot];
+
+		if (timer.prev != null)
+		{
+			timer.prev.next = timer;
+		}
+		else
+		{
+			this.heads[level][slot] = timer;
+		}
+
+		this.tails[level][slot] = timer;
+		this.occupied[level] |= 1L << slot;
+	}
+
+	private void unlink(final Timer timer) {
+		final int level = timer.level, slot = timer.slot;
+
+		if (timer.prev != null)
+		{
+			timer.prev.next = timer.next;
+		}
+		else
+		{
+			this.heads[level][slot] = timer.next;
+		}
+
+		if (timer.next != null)
+		{
+			timer.next.prev = timer.prev;
+		}
+		else
+		{
+			this.tails[level][slot] = timer.prev;
+		}
+
+		if (this.heads[level][slot] == null)
+		{
+			this.occupied[level] &= ~(1L << slot);
+		}
+
+		timer.prev = null;
+		timer.next = null;
+		timer.level = -1;
+	}
+
+	/**
+	 * Construct default.
+	 *
+	 * @param now time to start clock at (epoch time in ms)
+	 */
+	TimingWheel(final long now) {
+		this.now = now;
+	}
+
+}
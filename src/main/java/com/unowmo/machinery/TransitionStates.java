@@ -29,29 +29,6 @@ public class TransitionStates {
 
 		}
 
-		String followOn(final String event) {
-			if (event.isEmpty() == false)
-			{
-				for (Trans next : this.trans)
-				{
-					if (next.event.equalsIgnoreCase(event) == true)
-					{
-						return next.state;
-					}
-				}
-			}
-
-			for (Trans next : this.trans)
-			{
-				if (next.event.isEmpty() == true)
-				{
-					return next.state;
-				}
-			}
-			
-			return "";
-		}
-
 	}
 	
 }
@@ -0,0 +1,53 @@
+package com.unowmo.machinery;
+
+import java.util.concurrent.*;
+
+/**
+ * Source of the threads machinery runs on, handing out virtual threads.
+ * Compiled for Java 21 and packaged as the jar's versioned copy of this
+ * class, so it replaces the platform-thread one on Java 21 and later.
+ *
+ * @author Kirk Bulis
+ *
+ */
+public final class MachineryThreads {
+
+	/**
+	 * Checks whether machinery runs on virtual threads.
+	 *
+	 * @return true if threads handed out are virtual
+	 */
+	public static boolean isVirtual() {
+		return true;
+	}
+
+	/**
+	 * Executor running each task on a virtual thread of its own, such as for
+	 * a stack to drain its mailbox on (see {@link StackOfMachinery#setExecutor}),
+	 * so that blocking resolvers hold up only their own stack.
+	 *
+	 * @return shared executor
+	 */
+	public static Executor perTask() {
+		return perTask;
+	}
+
+	/**
+	 * Creates unstarted virtual thread for machinery's own service.
+	 */
+	static Thread newThread(final String name, final Runnable r) {
+		return Thread.ofVirtual().name(name).unstarted(r);
+	}
+
+	private static final Executor perTask = new Executor() {
+		private final ThreadFactory factory = Thread.ofVirtual().name("machinery-stack").factory();
+
+		public void execute(final Runnable r) {
+			this.factory.newThread(r).start();
+		}
+	};
+
+	private MachineryThreads() {
+	}
+
+}
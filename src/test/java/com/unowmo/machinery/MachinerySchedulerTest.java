@@ -0,0 +1,145 @@
+package com.unowmo.machinery;
+
+import java.util.*;
+import org.junit.*;
+import com.google.gson.*;
+
+/**
+ * Multiplexes many stacks' timers on one scheduler. Lives alongside the
+ * scheduler to register and cancel timers directly.
+ */
+public class MachinerySchedulerTest {
+
+	private static final String library
+		= "{ \"machines\":"
+		+ "  [ { \"name\": \"default\", \"states\":"
+		+ "      [ { \"label\": \"start\", \"trans\": [ { \"event\": \"started\", \"state\": \"idle\" } ] }"
+		+ "      , { \"label\": \"idle\", \"trans\": [ { \"event\": \"arm\", \"state\": \"arm\" }, { \"event\": \"tick\", \"state\": \"tick\" } ] }"
+		+ "      , { \"label\": \"arm\", \"entry\": \"timer:expires=50,event=tick\", \"trans\": [ { \"event\": \"\", \"state\": \"idle\" } ] }"
+		+ "      , { \"label\": \"tick\", \"entry\": \"patch:command=tick\", \"trans\": [ { \"event\": \"\", \"state\": \"idle\" } ] }"
+		+ "      ]"
+		+ "    }"
+		+ "  ]"
+		+ "}";
+
+	@Test
+	public void testShared() throws Exception {
+		final MachineryScheduler scheduler = new MachineryScheduler(1, 1);
+		final AxionTaskLibrary machines = mapper.fromJson(library, AxionTaskLibrary.class);
+		final List<String> commands = Collections.synchronizedList(new ArrayList<String>());
+
+		try
+		{
+			final StackOfMachinery first = new StackOfMachinery(machines, scheduler).setResolve(new Recording("first", commands));
+			final StackOfMachinery second = new StackOfMachinery(machines, scheduler).setResolve(new Recording("second", commands));
+
+			first.handleEvents("started", "arm");
+			second.handleEvents("started", "arm");
+
+			final long until = System.currentTimeMillis() + 5000;
+
+			while (commands.size() < 2 && System.currentTimeMillis() < until)
+			{
+				Thread.sleep(5);
+			}
+
+			Assert.assertEquals
+				( "Stacks sharing scheduler didn't each get their timeout"
+				, new HashSet<String>(Arrays.asList("first:tick", "second:tick"))
+				, new HashSet<String>(commands)
+				);
+		}
+		finally
+		{
+			scheduler.shutdown();
+		}
+	}
+
+	@Test
+	public void testCancel() throws Exception {
+		final MachineryScheduler scheduler = new MachineryScheduler(1, 1);
+		final List<String> fired = Collections.synchronizedList(new ArrayList<String>());
+		final Firing timeout = new Firing(scheduler, fired);
+		final long now = new Date().getTime();
+
+		try
+		{
+			timeout.register(1, "a", now + 50);
+			timeout.register(1, "b", now + 50);
+			timeout.register(2, "c", now + 60000);
+
+			// Keyed by target and event ignoring case, so these replace and
+			// cancel the timers above.
+
+			timeout.register(2, "C", now + 60);
+			timeout.cancel(1, "B");
+
+			Thread.sleep(300);
+
+			Assert.assertEquals(Arrays.asList("1:a", "2:C"), fired);
+			Assert.assertEquals(0, scheduler.pending(timeout));
+		}
+		finally
+		{
+			scheduler.shutdown();
+		}
+	}
+
+	@Test
+	public void testShutdown() throws Exception {
+		final MachineryScheduler scheduler = new MachineryScheduler(1, 1);
+		final List<String> fired = Collections.synchronizedList(new ArrayList<String>());
+		final Firing timeout = new Firing(scheduler, fired);
+
+		timeout.register(1, "a", new Date().getTime() + 50);
+
+		scheduler.shutdown();
+
+		Thread.sleep(200);
+
+		Assert.assertTrue("Timer expired after shutdown", fired.isEmpty());
+	}
+
+	private static class Recording extends AxionTaskResolve {
+		private final String name;
+		private final List<String> commands;
+
+		protected String execute(final String axionLabel, final Update axionValue, final LabeledValuePair ... axionPairs) {
+			return "";
+		}
+
+		protected void command(final String eventCommand, final String eventStatus) {
+			this.commands.add(this.name + ":" + eventCommand);
+		}
+
+		protected void log(final String message) {
+		}
+
+		Recording(final String name, final List<String> commands) {
+			this.name = name;
+			this.commands = commands;
+		}
+
+	}
+
+	private static class Firing extends MachineryTimeout {
+		private final List<String> fired;
+
+		protected void onTimeout(final long target, final String event) {
+			this.fired.add(target + ":" + event);
+		}
+
+		protected void onAllDone() {
+		}
+
+		Firing(final MachineryScheduler scheduler, final List<String> fired) {
+			super(scheduler);
+
+			this.fired = fired;
+		}
+
+	}
+
+	private static Gson mapper = new Gson();
+
+}
@@ -0,0 +1,251 @@
+package com.unowmo.machinery;
+
+import java.util.*;
+import org.junit.*;
+
+/**
+ * Expires timers off the hierarchical wheel in order, across cascades, skips
+ * and the overflow list. Lives alongside the wheel to reach it directly.
+ */
+public class TimingWheelTest {
+
+	@Test
+	public void testExpiryOrder() {
+		final TimingWheel wheel = new TimingWheel(0);
+		final List<TimingWheel.Timer> expired = new ArrayList<TimingWheel.Timer>();
+
+		for (final long when : new long [] { 5000, 7, 300000, 64, 4096, 1, 63 })
+		{
+			wheel.add(new TimingWheel.Timer(when, "e", when));
+		}
+
+		wheel.advance(1000000, expired);
+
+		Assert.assertEquals
+			( "Timers didn't expire in order of expiry"
+			, Arrays.asList(1L, 7L, 63L, 64L, 4096L, 5000L, 300000L)
+			, targets(expired)
+			);
+
+		Assert.assertEquals(0, wheel.size());
+	}
+
+	@Test
+	public void testSameTick() {
+		final TimingWheel wheel = new TimingWheel(1000);
+		final List<TimingWheel.Timer> expired = new ArrayList<TimingWheel.Timer>();
+
+		// Placed on different levels as the clock moves, yet expire in the
+		// order added.
+
+		wheel.add(new TimingWheel.Timer(1, "e", 9000));
+		wheel.advance(5000, expired);
+		wheel.add(new TimingWheel.Timer(2, "e", 9000));
+		wheel.advance(8990, expired);
+		wheel.add(new TimingWheel.Timer(3, "e", 9000));
+		wheel.add(new TimingWheel.Timer(4, "e", 9000));
+		wheel.advance(9000, expired);
+
+		Assert.assertEquals(Arrays.asList(1L, 2L, 3L, 4L), targets(expired));
+	}
+
+	@Test
+	public void testCancel() {
+		final TimingWheel wheel = new TimingWheel(0);
+		final List<TimingWheel.Timer> expired = new ArrayList<TimingWheel.Timer>();
+		final TimingWheel.Timer [] timers = new TimingWheel.Timer [6];
+
+		for (int i = 0; i < timers.length; ++i)
+		{
+			wheel.add(timers[i] = new TimingWheel.Timer(i, "e", i * 3000));
+		}
+
+		wheel.remove(timers[1]);
+		wheel.remove(timers[4]);
+		wheel.remove(timers[4]);
+
+		Assert.assertEquals(4, wheel.size());
+
+		wheel.advance(12300, expired);
+
+		// Cancelled after cascading down a level.
+
+		wheel.remove(timers[5]);
+		wheel.advance(100000, expired);
+
+		Assert.assertEquals(Arrays.asList(0L, 2L, 3L), targets(expired));
+		Assert.assertEquals(0, wheel.size());
+		Assert.assertEquals(Long.MAX_VALUE, wheel.next());
+	}
+
+	@Test
+	public void testCascade() {
+		final long [] boundaries = { 63, 64, 65, 4095, 4096, 4097, 262143, 262144, 262145, 16777216, 1073741824 };
+		final TimingWheel wheel = new TimingWheel(0);
+		final List<TimingWheel.Timer> expired = new ArrayList<TimingWheel.Timer>();
+
+		for (final long when : boundaries)
+		{
+			wheel.add(new TimingWheel.Timer(when, "e", when));
+		}
+
+		for (final long when : boundaries)
+		{
+			wheel.advance(when - 1, expired);
+
+			Assert.assertTrue("Timer expired early at " + when, expired.isEmpty());
+
+			wheel.advance(when, expired);
+
+			Assert.assertEquals("Timer didn't expire on time", Arrays.asList(when), targets(expired));
+
+			expired.clear();
+		}
+	}
+
+	@Test
+	public void testOverflow() {
+		final long start = 1500000000000L;
+		final long far = start + (1L << 40) + 12345;
+		final TimingWheel wheel = new TimingWheel(start);
+		final List<TimingWheel.Timer> expired = new ArrayList<TimingWheel.Timer>();
+
+		// Beyond the top level, so waits on the overflow list, as does one
+		// just inside it.
+
+		wheel.add(new TimingWheel.Timer(1, "e", far));
+		wheel.add(new TimingWheel.Timer(2, "e", start + (1L << 36) - 1));
+
+		Assert.assertTrue(wheel.next() > start);
+		Assert.assertTrue(wheel.next() <= start + (1L << 36) - 1);
+
+		wheel.advance(far - 1, expired);
+
+		Assert.assertEquals(Arrays.asList(2L), targets(expired));
+
+		wheel.advance(far, expired);
+
+		Assert.assertEquals(Arrays.asList(2L, 1L), targets(expired));
+	}
+
+	@Test
+	public void testNextAfterIdle() {
+		final TimingWheel wheel = new TimingWheel(0);
+		final List<TimingWheel.Timer> expired = new ArrayList<TimingWheel.Timer>();
+
+		Assert.assertEquals(Long.MAX_VALUE, wheel.next());
+
+		// Clock jumps ahead while idle, then picks up from there.
+
+		wheel.advance(123456789, expired);
+		wheel.add(new TimingWheel.Timer(1, "e", 123456789 + 5000));
+
+		int hops = 0;
+
+		while (expired.isEmpty() == true)
+		{
+			final long next = wheel.next();
+
+			Assert.assertTrue("Next overshot expiry", next <= 123456789 + 5000);
+
+			wheel.advance(next, expired);
+
+			++hops;
+		}
+
+		Assert.assertTrue("Took too many hops to expire: " + hops, hops <= 4);
+
+		// Timers already due expire on the next advance.
+
+		wheel.add(new TimingWheel.Timer(2, "e", 5));
+
+		Assert.assertEquals(123456789 + 5000, wheel.next());
+
+		wheel.advance(123456789 + 5000, expired);
+
+		Assert.assertEquals(Arrays.asList(1L, 2L), targets(expired));
+	}
+
+	@Test
+	public void testRandomized() {
+		final Random random = new Random(20261017);
+		final long start = 1500000000000L;
+		final TimingWheel wheel = new TimingWheel(start);
+		final List<TimingWheel.Timer> expired = new ArrayList<TimingWheel.Timer>();
+		final List<long []> pending = new ArrayList<long []>();
+		final Map<Long, TimingWheel.Timer> placed = new HashMap<Long, TimingWheel.Timer>();
+		long now = start;
+		long added = 0;
+
+		for (int round = 0; round < 20000; ++round)
+		{
+			final int roll = random.nextInt(10);
+
+			if (roll < 5)
+			{
+				// Spread expiries over every level, some already due.
+
+				final long when = now - 10 + (long) Math.pow(2, random.nextDouble() * 40);
+				final long target = ++added;
+
+				placed.put(target, new TimingWheel.Timer(target, "e", when));
+				pending.add(new long [] { Math.max(when, now), target });
+
+				wheel.add(placed.get(target));
+			}
+			else
+			if (roll < 6 && pending.isEmpty() == false)
+			{
+				final long [] cancel = pending.remove(random.nextInt(pending.size()));
+
+				wheel.remove(placed.remove(cancel[1]));
+			}
+			else
+			{
+				final long to = random.nextBoolean() == true ? wheel.next() : now + random.nextInt(100000);
+
+				if (to == Long.MAX_VALUE)
+				{
+					continue;
+				}
+
+				final List<Long> expects = new ArrayList<Long>();
+
+				Collections.sort
+					( pending
+					, new Comparator<long []>() {
+						public int compare(final long [] a, final long [] b) {
+							return a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1]);
+						}
+					});
+
+				while (pending.isEmpty() == false && pending.get(0)[0] <= Math.max(to, now))
+				{
+					expects.add(placed.remove(pending.remove(0)[1]).target);
+				}
+
+				wheel.advance(to, expired);
+
+				Assert.assertEquals("Wrong timers expired advancing to " + to, expects, targets(expired));
+
+				expired.clear();
+
+				now = Math.max(to, now);
+			}
+
+			Assert.assertEquals(pending.size(), wheel.size());
+		}
+	}
+
+	private static List<Long> targets(final List<TimingWheel.Timer> expired) {
+		final List<Long> targets = new ArrayList<Long>();
+
+		for (final TimingWheel.Timer timer : expired)
+		{
+			targets.add(timer.target);
+		}
+
+		return targets;
+	}
+
+}
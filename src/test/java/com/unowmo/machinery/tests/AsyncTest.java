@@ -0,0 +1,272 @@
+package com.unowmo.machinery.tests;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import org.junit.*;
+import org.junit.rules.*;
+import com.google.gson.*;
+import com.unowmo.machinery.*;
+
+/**
+ * Parks layers on axions completing later.
+ */
+public class AsyncTest {
+
+	private static final String library
+		= "{ \"machines\":"
+		+ "  [ { \"name\": \"default\", \"states\":"
+		+ "      [ { \"label\": \"start\", \"trans\": [ { \"event\": \"started\", \"state\": \"idle\" } ] }"
+		+ "      , { \"label\": \"idle\", \"trans\": [ { \"event\": \"fetch\", \"state\": \"fetch\" }, { \"event\": \"ping\", \"state\": \"pinged\" } ] }"
+		+ "      , { \"label\": \"fetch\", \"entry\": \"lookup:key=answer\", \"trans\": [ { \"event\": \"found\", \"state\": \"report\" }, { \"event\": \"ping\", \"state\": \"pinged\" } ] }"
+		+ "      , { \"label\": \"report\", \"entry\": \"patch:command=answer,status=((answer))\", \"trans\": [ { \"event\": \"\", \"state\": \"idle\" } ] }"
+		+ "      , { \"label\": \"pinged\", \"entry\": \"patch:command=pinged\", \"trans\": [ { \"event\": \"\", \"state\": \"idle\" } ] }"
+		+ "      ]"
+		+ "    }"
+		+ "  ]"
+		+ "}";
+
+	private static final String unhandled
+		= "{ \"machines\":"
+		+ "  [ { \"name\": \"default\", \"states\":"
+		+ "      [ { \"label\": \"start\", \"trans\": [ { \"event\": \"started\", \"state\": \"idle\" } ] }"
+		+ "      , { \"label\": \"idle\", \"trans\": [ { \"event\": \"fetch\", \"state\": \"fetch\" }, { \"event\": \"ping\", \"state\": \"pinged\" } ] }"
+		+ "      , { \"label\": \"fetch\", \"entry\": \"lookup:key=answer\", \"trans\": [ { \"event\": \"found\", \"state\": \"report\" } ] }"
+		+ "      , { \"label\": \"report\", \"entry\": \"patch:command=answer,status=((answer))\", \"trans\": [ { \"event\": \"\", \"state\": \"idle\" } ] }"
+		+ "      , { \"label\": \"pinged\", \"entry\": \"patch:command=pinged\", \"trans\": [ { \"event\": \"\", \"state\": \"idle\" } ] }"
+		+ "      ]"
+		+ "    }"
+		+ "  ]"
+		+ "}";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testParked() {
+		final CompletableFuture<String> lookup = new CompletableFuture<String>();
+		final List<String> commands = new ArrayList<String>();
+		final StackOfMachinery stacked = new StackOfMachinery(mapper.fromJson(library, AxionTaskLibrary.class))
+			.setResolve(new Lookup(lookup, commands))
+			;
+
+		stacked.handleEvents("started", "fetch", "ping");
+
+		Assert.assertTrue
+			( "Parked layer followed on before axion completed"
+			, commands.isEmpty()
+			);
+
+		lookup.complete("found");
+
+		Assert.assertEquals
+			( "Parked layer didn't resume with result, then deferred events"
+			, Arrays.asList("answer:42", "pinged:")
+			, commands
+			);
+	}
+
+	@Test
+	public void testDeferredUnhandled() {
+		final CompletableFuture<String> lookup = new CompletableFuture<String>();
+		final List<String> commands = new ArrayList<String>();
+		final StackOfMachinery stacked = new StackOfMachinery(mapper.fromJson(unhandled, AxionTaskLibrary.class))
+			.setResolve(new Lookup(lookup, commands))
+			;
+
+		// The state parked in doesn't follow on ping, but the state resumed
+		// into does, so ping is deferred all the same.
+
+		stacked.handleEvents("started", "fetch", "ping");
+
+		lookup.complete("found");
+
+		Assert.assertEquals
+			( "Parked layer dropped event its parked state doesn't follow on"
+			, Arrays.asList("answer:42", "pinged:")
+			, commands
+			);
+
+		stacked.handleEvent("ping");
+
+		Assert.assertEquals
+			( "Resumed layer didn't go back to following on its state's events"
+			, Arrays.asList("answer:42", "pinged:", "pinged:")
+			, commands
+			);
+	}
+
+	@Test(timeout = 10000)
+	public void testBadUpdate() throws Exception {
+		final CompletableFuture<String> lookup = new CompletableFuture<String>();
+		final List<String> commands = new ArrayList<String>();
+		final StackOfMachinery stacked = new StackOfMachinery(mapper.fromJson(library, AxionTaskLibrary.class))
+			.setResolve
+				( new Lookup(lookup, commands) {
+					protected CompletionStage<String> executeAsync(final String axionLabel, final Update axionValue, final LabeledValuePair ... axionPairs) {
+						axionValue.add(null, "unlabeled");
+
+						return lookup;
+					}
+				})
+			;
+
+		stacked.handleEvents("started", "fetch");
+
+		lookup.complete("found");
+
+		// Fails the axion instead, so the layer is no longer parked.
+
+		stacked.snapshot(new ByteArrayOutputStream());
+		stacked.handleEvent("ping");
+
+		Assert.assertEquals(Arrays.asList("pinged:"), commands);
+	}
+
+	@Test(timeout = 10000)
+	public void testFailingTask() throws Exception {
+		final CompletableFuture<String> lookup = new CompletableFuture<String>();
+		final List<String> commands = new ArrayList<String>();
+		final List<String> logged = new ArrayList<String>();
+		final StackOfMachinery stacked = new StackOfMachinery(mapper.fromJson(library, AxionTaskLibrary.class))
+			.setResolve
+				( new Lookup(lookup, commands) {
+					protected void log(final String message) {
+						if (message.contains("failed completing") == true)
+						{
+							throw new IllegalStateException("unlogged");
+						}
+
+						logged.add(message);
+					}
+				})
+			;
+
+		stacked.handleEvents("started", "fetch");
+
+		lookup.completeExceptionally(new IOException("unreachable"));
+
+		// The hook threw from the mailbox's task, which mustn't stop the
+		// stack draining what's posted next.
+
+		stacked.snapshot(new ByteArrayOutputStream());
+
+		Assert.assertTrue
+			( "Failed task wasn't logged"
+			, logged.contains("Failed running task: java.lang.IllegalStateException: unlogged")
+			);
+	}
+
+	@Test
+	public void testJournaled() throws Exception {
+		final AxionTaskLibrary machines = mapper.fromJson(library, AxionTaskLibrary.class);
+		final File directory = folder.newFolder("journal");
+		final List<String> commands = new ArrayList<String>();
+		final ByteArrayOutputStream live = new ByteArrayOutputStream();
+		final ByteArrayOutputStream recovered = new ByteArrayOutputStream();
+		final MachineryJournal journal = new MachineryJournal(directory, 4096);
+		final StackOfMachinery stacked = new StackOfMachinery(machines)
+			.setResolve(new Lookup(new CompletableFuture<String>(), commands))
+			.setJournal(journal)
+			;
+
+		// Completions aren't journaled, so the lookup runs synchronously and
+		// its result is replayed along with the event leading to it.
+
+		stacked.handleEvents("started", "fetch", "ping");
+
+		Assert.assertEquals
+			( "Journaled layer parked on axion"
+			, Arrays.asList("answer:sync", "pinged:")
+			, commands
+			);
+
+		stacked.snapshot(live);
+		journal.close();
+
+		new StackOfMachinery(machines)
+			.setResolve(new Lookup(new CompletableFuture<String>(), new ArrayList<String>()))
+			.recover(null, new MachineryJournal(directory, 4096))
+			.snapshot(recovered);
+
+		Assert.assertTrue
+			( "Recovered stack doesn't snapshot the same"
+			, Arrays.equals(live.toByteArray(), recovered.toByteArray())
+			);
+	}
+
+	@Test
+	public void testSnapshotParked() throws Exception {
+		final AxionTaskLibrary machines = mapper.fromJson(library, AxionTaskLibrary.class);
+		final CompletableFuture<String> lookup = new CompletableFuture<String>();
+		final List<String> commands = new ArrayList<String>();
+		final ByteArrayOutputStream parked = new ByteArrayOutputStream();
+		final ByteArrayOutputStream again = new ByteArrayOutputStream();
+
+		new StackOfMachinery(machines)
+			.setResolve(new Lookup(new CompletableFuture<String>(), new ArrayList<String>()))
+			.handleEvents("started", "fetch", "ping")
+			.snapshot(parked);
+
+		// Restored stack asks for the lookup again, and stays parked with
+		// ping deferred until it completes.
+
+		final StackOfMachinery restored = new StackOfMachinery(machines)
+			.setResolve(new Lookup(lookup, commands))
+			.restore(new ByteArrayInputStream(parked.toByteArray()))
+			.snapshot(again);
+
+		Assert.assertTrue
+			( "Parked stack doesn't snapshot the same once restored"
+			, Arrays.equals(parked.toByteArray(), again.toByteArray())
+			);
+
+		restored.handleEvent("ping");
+
+		Assert.assertTrue
+			( "Restored layer followed on before axion completed"
+			, commands.isEmpty()
+			);
+
+		lookup.complete("found");
+
+		Assert.assertEquals
+			( "Restored layer didn't resume with result, then deferred events"
+			, Arrays.asList("answer:42", "pinged:", "pinged:")
+			, commands
+			);
+	}
+
+	private static class Lookup extends AxionTaskResolve {
+		private final CompletableFuture<String> lookup;
+		private final List<String> commands;
+
+		protected String execute(final String axionLabel, final Update axionValue, final LabeledValuePair ... axionPairs) {
+			axionValue.add("answer", "sync");
+
+			return "found";
+		}
+
+		protected CompletionStage<String> executeAsync(final String axionLabel, final Update axionValue, final LabeledValuePair ... axionPairs) {
+			axionValue.add("answer", "42");
+
+			return this.lookup;
+		}
+
+		protected void command(final String eventCommand, final String eventStatus) {
+			this.commands.add(eventCommand + ":" + eventStatus);
+		}
+
+		protected void log(final String message) {
+		}
+
+		Lookup(final CompletableFuture<String> lookup, final List<String> commands) {
+			this.lookup = lookup;
+			this.commands = commands;
+		}
+
+	}
+
+	private static Gson mapper = new Gson();
+
+}
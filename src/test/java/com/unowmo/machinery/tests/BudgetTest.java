@@ -0,0 +1,123 @@
+package com.unowmo.machinery.tests;
+
+import java.util.*;
+import org.junit.*;
+import com.google.gson.*;
+import com.unowmo.machinery.*;
+
+/**
+ * Cuts events short once they run over the stack's budgets.
+ */
+public class BudgetTest {
+
+	private static final String spinning
+		= "{ \"machines\":"
+		+ "  [ { \"name\": \"default\", \"states\":"
+		+ "      [ { \"label\": \"start\", \"trans\": [ { \"event\": \"started\", \"state\": \"idle\" } ] }"
+		+ "      , { \"label\": \"idle\", \"trans\": [ { \"event\": \"spin\", \"state\": \"a\" } ] }"
+		+ "      , { \"label\": \"a\", \"entry\": \"inc:label=spun,value=1\", \"trans\": [ { \"event\": \"\", \"state\": \"b\" }, { \"event\": \"reset\", \"state\": \"back\" } ] }"
+		+ "      , { \"label\": \"b\", \"trans\": [ { \"event\": \"\", \"state\": \"a\" }, { \"event\": \"reset\", \"state\": \"back\" } ] }"
+		+ "      , { \"label\": \"back\", \"entry\": \"patch:command=back,status=((spun))\", \"trans\": [ { \"event\": \"\", \"state\": \"idle\" } ] }"
+		+ "      ]"
+		+ "    }"
+		+ "  ]"
+		+ "}";
+
+	private static final String echoing
+		= "{ \"machines\":"
+		+ "  [ { \"name\": \"default\", \"states\":"
+		+ "      [ { \"label\": \"start\", \"trans\": [ { \"event\": \"started\", \"state\": \"spawn\" } ] }"
+		+ "      , { \"label\": \"spawn\", \"entry\": \"start:machine=leaf\", \"trans\": [ { \"event\": \"\", \"state\": \"idle\" } ] }"
+		+ "      , { \"label\": \"idle\", \"trans\": [ { \"event\": \"ping\", \"state\": \"blast\" } ] }"
+		+ "      , { \"label\": \"blast\", \"entry\": \"blast:event=ping\", \"trans\": [ { \"event\": \"\", \"state\": \"idle\" } ] }"
+		+ "      ]"
+		+ "    }"
+		+ "  , { \"name\": \"leaf\", \"states\":"
+		+ "      [ { \"label\": \"start\", \"trans\": [ { \"event\": \"started\", \"state\": \"idle\" } ] }"
+		+ "      , { \"label\": \"idle\", \"trans\": [ { \"event\": \"ping\", \"state\": \"raise\" } ] }"
+		+ "      , { \"label\": \"raise\", \"entry\": \"raise:event=ping\", \"trans\": [ { \"event\": \"\", \"state\": \"idle\" } ] }"
+		+ "      ]"
+		+ "    }"
+		+ "  ]"
+		+ "}";
+
+	@Test
+	public void testSteps() {
+		final List<AxionTaskResolve.Runaway> runaways = new ArrayList<AxionTaskResolve.Runaway>();
+		final List<String> commands = new ArrayList<String>();
+		final StackOfMachinery stacked = new StackOfMachinery(mapper.fromJson(spinning, AxionTaskLibrary.class))
+			.setResolve(new Reporting(runaways, commands))
+			.setBudgets(1000, 0)
+			;
+
+		stacked.handleEvents("started", "spin");
+
+		Assert.assertEquals(1, runaways.size());
+		Assert.assertEquals(AxionTaskResolve.Runaway.Budget.STEPS, runaways.get(0).budget);
+		Assert.assertEquals("default", runaways.get(0).machine);
+		Assert.assertEquals("spin", runaways.get(0).event);
+
+		Assert.assertTrue
+			( "Runaway didn't report state layer spun in"
+			, Arrays.asList("a", "b").contains(runaways.get(0).state)
+			);
+
+		stacked.handleEvent("reset");
+
+		Assert.assertEquals
+			( "Stack didn't carry on after runaway"
+			, Arrays.asList("back:500")
+			, commands
+			);
+	}
+
+	@Test
+	public void testQueued() {
+		final List<AxionTaskResolve.Runaway> runaways = new ArrayList<AxionTaskResolve.Runaway>();
+		final List<String> commands = new ArrayList<String>();
+		final StackOfMachinery stacked = new StackOfMachinery(mapper.fromJson(echoing, AxionTaskLibrary.class))
+			.setResolve(new Reporting(runaways, commands))
+			.setBudgets(0, 1000)
+			;
+
+		stacked.handleEvents("started", "ping", "ping");
+
+		Assert.assertEquals
+			( "Each echoing event wasn't cut short"
+			, 2
+			, runaways.size()
+			);
+
+		Assert.assertEquals(AxionTaskResolve.Runaway.Budget.QUEUED, runaways.get(0).budget);
+		Assert.assertEquals(1001, runaways.get(0).queued);
+	}
+
+	private static class Reporting extends AxionTaskResolve {
+		private final List<Runaway> runaways;
+		private final List<String> commands;
+
+		protected String execute(final String axionLabel, final Update axionValue, final LabeledValuePair ... axionPairs) {
+			return "";
+		}
+
+		protected void command(final String eventCommand, final String eventStatus) {
+			this.commands.add(eventCommand + ":" + eventStatus);
+		}
+
+		protected void log(final String message) {
+		}
+
+		protected void onRunaway(final Runaway runaway) {
+			this.runaways.add(runaway);
+		}
+
+		Reporting(final List<Runaway> runaways, final List<String> commands) {
+			this.runaways = runaways;
+			this.commands = commands;
+		}
+
+	}
+
+	private static Gson mapper = new Gson();
+
+}
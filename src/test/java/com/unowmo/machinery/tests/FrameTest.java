@@ -0,0 +1,82 @@
+package com.unowmo.machinery.tests;
+
+import java.util.*;
+import org.junit.*;
+import com.google.gson.*;
+import com.unowmo.machinery.*;
+
+/**
+ * Looks up values through stacked frames, inner frames shadowing outer ones
+ * and duplicates chaining behind the first added.
+ */
+public class FrameTest {
+
+	private static final String library
+		= "{ \"machines\":"
+		+ "  [ { \"name\": \"default\", \"states\":"
+		+ "      [ { \"label\": \"start\", \"trans\": [ { \"event\": \"started\", \"state\": \"outer\" } ] }"
+		+ "      , { \"label\": \"outer\", \"entry\": \"set:label=Who,value=outer\", \"trans\": [ { \"event\": \"\", \"state\": \"push\" } ] }"
+		+ "      , { \"label\": \"push\", \"entry\": \"new\", \"trans\": [ { \"event\": \"\", \"state\": \"shadow\" } ] }"
+		+ "      , { \"label\": \"shadow\", \"entry\": \"fill:label=who,value=inner\", \"trans\": [ { \"event\": \"\", \"state\": \"shadowed\" } ] }"
+		+ "      , { \"label\": \"shadowed\", \"entry\": \"patch:command=shadowed,status=((WHO))\", \"trans\": [ { \"event\": \"\", \"state\": \"dupe\" } ] }"
+		+ "      , { \"label\": \"dupe\", \"entry\": \"fill:label=WHO,value=again\", \"trans\": [ { \"event\": \"\", \"state\": \"duped\" } ] }"
+		+ "      , { \"label\": \"duped\", \"entry\": \"patch:command=duped,status=((who))\", \"trans\": [ { \"event\": \"\", \"state\": \"evict\" } ] }"
+		+ "      , { \"label\": \"evict\", \"entry\": \"nix:label=who\", \"trans\": [ { \"event\": \"\", \"state\": \"evicted\" } ] }"
+		+ "      , { \"label\": \"evicted\", \"entry\": \"patch:command=evicted,status=((who))\", \"trans\": [ { \"event\": \"\", \"state\": \"unshadow\" } ] }"
+		+ "      , { \"label\": \"unshadow\", \"entry\": \"nix:label=Who\", \"trans\": [ { \"event\": \"\", \"state\": \"unshadowed\" } ] }"
+		+ "      , { \"label\": \"unshadowed\", \"entry\": \"patch:command=unshadowed,status=((who))\", \"trans\": [ { \"event\": \"\", \"state\": \"has\" } ] }"
+		+ "      , { \"label\": \"has\", \"entry\": \"has:label=who\", \"trans\": [ { \"event\": \"missing\", \"state\": \"missing\" }, { \"event\": \"\", \"state\": \"refill\" } ] }"
+		+ "      , { \"label\": \"missing\", \"entry\": \"patch:command=missing,status=((who))\", \"trans\": [ { \"event\": \"\", \"state\": \"refill\" } ] }"
+		+ "      , { \"label\": \"refill\", \"entry\": \"fill:label=who,value=third\", \"trans\": [ { \"event\": \"\", \"state\": \"refilled\" } ] }"
+		+ "      , { \"label\": \"refilled\", \"entry\": \"patch:command=refilled,status=((who))\", \"trans\": [ { \"event\": \"\", \"state\": \"pop\" } ] }"
+		+ "      , { \"label\": \"pop\", \"entry\": \"pop\", \"trans\": [ { \"event\": \"\", \"state\": \"popped\" } ] }"
+		+ "      , { \"label\": \"popped\", \"entry\": \"patch:command=popped,status=((who))/((filled))\", \"trans\": [ { \"event\": \"\", \"state\": \"idle\" } ] }"
+		+ "      , { \"label\": \"idle\" }"
+		+ "      ]"
+		+ "    }"
+		+ "  ]"
+		+ "}";
+
+	@Test
+	public void testShadowing() {
+		final List<String> commands = new ArrayList<String>();
+
+		new StackOfMachinery(mapper.fromJson(library, AxionTaskLibrary.class))
+			.setResolve
+				( new AxionTaskResolve() {
+					protected String execute(final String axionLabel, final Update axionValue, final LabeledValuePair ... axionPairs) {
+						// First update replaces wherever found, the rest are
+						// accumulated into the current frame.
+
+						axionValue.add("filled", "yes");
+						axionValue.add(axionPairs[0].value, axionPairs[1].value);
+
+						return "";
+					}
+					protected void command(final String eventCommand, final String eventStatus) {
+						commands.add(eventCommand + ":" + eventStatus);
+					}
+					protected void log(final String message) {
+					}
+				})
+			.handleEvent("started")
+			;
+
+		Assert.assertEquals
+			( "Frames didn't shadow, chain and evict by folded label"
+			, Arrays.asList
+				( "shadowed:inner"
+				, "duped:inner"
+				, "evicted:again"
+				, "unshadowed:outer"
+				, "missing:outer"
+				, "refilled:third"
+				, "popped:outer/"
+				)
+			, commands
+			);
+	}
+
+	private static Gson mapper = new Gson();
+
+}
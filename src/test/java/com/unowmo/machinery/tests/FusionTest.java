@@ -0,0 +1,167 @@
+package com.unowmo.machinery.tests;
+
+import java.io.*;
+import java.util.*;
+import org.junit.*;
+import com.google.gson.*;
+import com.unowmo.machinery.*;
+
+/**
+ * Fuses chains of automatic transitions over built-ins, taking them hop by
+ * hop when debugging.
+ */
+public class FusionTest {
+
+	private static final String library
+		= "{ \"machines\":"
+		+ "  [ { \"name\": \"default\", \"states\":"
+		+ "      [ { \"label\": \"start\", \"trans\": [ { \"event\": \"started\", \"state\": \"a\" } ] }"
+		+ "      , { \"label\": \"a\", \"entry\": \"set:label=n,value=x\", \"trans\": [ { \"event\": \"\", \"state\": \"b\" } ] }"
+		+ "      , { \"label\": \"b\", \"entry\": \"new\", \"leave\": \"set:label=left,value=b\", \"trans\": [ { \"event\": \"\", \"state\": \"c\" } ] }"
+		+ "      , { \"label\": \"c\", \"entry\": \"inc:label=n,value=1\", \"trans\": [ { \"event\": \"failure\", \"state\": \"d\" }, { \"event\": \"\", \"state\": \"e\" } ] }"
+		+ "      , { \"label\": \"d\", \"entry\": \"pop\", \"trans\": [ { \"event\": \"\", \"state\": \"e\" } ] }"
+		+ "      , { \"label\": \"e\", \"entry\": \"dec:label=m,value=2\", \"trans\": [ { \"event\": \"\", \"state\": \"f\" } ] }"
+		+ "      , { \"label\": \"f\", \"entry\": \"nix:label=left\", \"trans\": [ { \"event\": \"\", \"state\": \"g\" } ] }"
+		+ "      , { \"label\": \"g\", \"entry\": \"patch:command=done,status=((n))/((m))/((left))\", \"trans\": [ { \"event\": \"\", \"state\": \"idle\" } ] }"
+		+ "      , { \"label\": \"idle\", \"trans\": [ { \"event\": \"again\", \"state\": \"a\" } ] }"
+		+ "      ]"
+		+ "    }"
+		+ "  ]"
+		+ "}";
+
+	@Test
+	public void testFused() throws Exception {
+		final AxionTaskLibrary machines = mapper.fromJson(library, AxionTaskLibrary.class);
+		final List<String> debugged = new ArrayList<String>();
+		final List<String> fused = new ArrayList<String>();
+		final List<String> hops = new ArrayList<String>();
+		final StackOfMachinery debug = new StackOfMachinery(machines).setResolve(new Recording(debugged, hops, true));
+		final StackOfMachinery quiet = new StackOfMachinery(machines).setResolve(new Recording(fused, hops, false));
+
+		for (final String event : new String [] { "started", "again", "again" })
+		{
+			debug.handleEvent(event);
+			quiet.handleEvent(event);
+
+			Assert.assertTrue
+				( "Fused stack doesn't snapshot the same"
+				, Arrays.equals(snapshot(debug), snapshot(quiet))
+				);
+		}
+
+		Assert.assertEquals
+			( "Fused stack didn't apply built-ins the same"
+			, Arrays.asList("done:0/-2/", "done:0/-4/", "done:0/-6/")
+			, fused
+			);
+
+		Assert.assertEquals(debugged, fused);
+
+		Assert.assertTrue
+			( "Debugging stack didn't log every hop"
+			, hops.containsAll(Arrays.asList("start>a", "a>b", "b>c", "c>d", "d>e", "e>f", "f>g", "g>idle"))
+			);
+	}
+
+	@Test
+	public void testFusionSwitch() throws Exception {
+		final AxionTaskLibrary machines = mapper.fromJson(library, AxionTaskLibrary.class);
+		final List<String> stepped = new ArrayList<String>();
+		final List<String> fused = new ArrayList<String>();
+		final List<String> steppedHops = new ArrayList<String>();
+		final List<String> fusedHops = new ArrayList<String>();
+
+		// Default resolvers log everything, so they only fuse when asked to,
+		// and then don't log the hops along the chain.
+
+		new StackOfMachinery(machines)
+			.setResolve(plain(stepped, steppedHops))
+			.handleEvents("started", "again", "again");
+
+		new StackOfMachinery(machines)
+			.setResolve(plain(fused, fusedHops))
+			.setFusion(true)
+			.handleEvents("started", "again", "again");
+
+		Assert.assertEquals
+			( "Fused stack didn't apply built-ins the same"
+			, Arrays.asList("done:0/-2/", "done:0/-4/", "done:0/-6/")
+			, fused
+			);
+
+		Assert.assertEquals(stepped, fused);
+
+		Assert.assertTrue
+			( "Default resolver's stack didn't log every hop"
+			, steppedHops.contains("state 'a' on 'again' -> 'b'")
+			);
+
+		Assert.assertFalse
+			( "Stack switched to fusing took chain hop by hop"
+			, fusedHops.contains("state 'a' on 'again' -> 'b'")
+			);
+	}
+
+	/**
+	 * Resolver overriding nothing but what it must, keeping hops logged.
+	 */
+	private static AxionTaskResolve plain(final List<String> commands, final List<String> hops) {
+		return new AxionTaskResolve() {
+			protected String execute(final String axionLabel, final Update axionValue, final LabeledValuePair ... axionPairs) {
+				return "";
+			}
+			protected void command(final String eventCommand, final String eventStatus) {
+				commands.add(eventCommand + ":" + eventStatus);
+			}
+			protected void log(final String message) {
+				if (message.contains("' -> '") == true)
+				{
+					hops.add(message.substring(message.indexOf(')') + 2));
+				}
+			}
+		};
+	}
+
+	private static class Recording extends AxionTaskResolve {
+		private final List<String> commands;
+		private final List<String> hops;
+		private final boolean debugging;
+
+		protected String execute(final String axionLabel, final Update axionValue, final LabeledValuePair ... axionPairs) {
+			return "";
+		}
+
+		protected void command(final String eventCommand, final String eventStatus) {
+			this.commands.add(eventCommand + ":" + eventStatus);
+		}
+
+		protected void log(final String message) {
+		}
+
+		protected boolean isLogging(final Level level) {
+			return this.debugging;
+		}
+
+		protected void logTransition(final String layer, final String machine, final String from, final String event, final String to) {
+			this.hops.add(from + ">" + to);
+		}
+
+		Recording(final List<String> commands, final List<String> hops, final boolean debugging) {
+			this.commands = commands;
+			this.hops = hops;
+			this.debugging = debugging;
+		}
+
+	}
+
+	private static byte [] snapshot(final StackOfMachinery stacked) throws IOException {
+		final ByteArrayOutputStream taken = new ByteArrayOutputStream();
+
+		stacked.snapshot(taken);
+
+		return taken.toByteArray();
+	}
+
+	private static Gson mapper = new Gson();
+
+}
@@ -0,0 +1,135 @@
+package com.unowmo.machinery.tests;
+
+import java.io.*;
+import java.util.*;
+import org.junit.*;
+import org.junit.rules.*;
+import com.google.gson.*;
+import com.unowmo.machinery.*;
+
+/**
+ * Recovers stacks from a snapshot and the journal written after it.
+ */
+public class JournalTest {
+
+	private static final String library
+		= "{ \"machines\":"
+		+ "  [ { \"name\": \"default\", \"states\":"
+		+ "      [ { \"label\": \"start\", \"trans\": [ { \"event\": \"started\", \"state\": \"idle\" } ] }"
+		+ "      , { \"label\": \"idle\", \"trans\": [ { \"event\": \"spawn\", \"state\": \"spawn\" }, { \"event\": \"arm\", \"state\": \"arm\" }, { \"event\": \"tick\", \"state\": \"tick\" } ] }"
+		+ "      , { \"label\": \"spawn\", \"entry\": \"start:machine=leaf,kind=spawned\", \"trans\": [ { \"event\": \"\", \"state\": \"idle\" } ] }"
+		+ "      , { \"label\": \"arm\", \"entry\": \"timer:expires=50,event=tick\", \"trans\": [ { \"event\": \"\", \"state\": \"idle\" } ] }"
+		+ "      , { \"label\": \"tick\", \"entry\": \"blast:event=ping\", \"trans\": [ { \"event\": \"\", \"state\": \"idle\" } ] }"
+		+ "      ]"
+		+ "    }"
+		+ "  , { \"name\": \"leaf\", \"states\":"
+		+ "      [ { \"label\": \"start\", \"trans\": [ { \"event\": \"started\", \"state\": \"idle\" } ] }"
+		+ "      , { \"label\": \"idle\", \"trans\": [ { \"event\": \"ping\", \"state\": \"work\" } ] }"
+		+ "      , { \"label\": \"work\", \"entry\": \"inc:label=count,value=1\", \"trans\": [ { \"event\": \"\", \"state\": \"idle\" } ] }"
+		+ "      ]"
+		+ "    }"
+		+ "  ]"
+		+ "}";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testRecover() throws Exception {
+		final AxionTaskLibrary machines = mapper.fromJson(library, AxionTaskLibrary.class);
+		final File directory = folder.newFolder("journal");
+		final ByteArrayOutputStream checkpoint = new ByteArrayOutputStream();
+		final ByteArrayOutputStream crashed = new ByteArrayOutputStream();
+		final ByteArrayOutputStream recovered = new ByteArrayOutputStream();
+		final MachineryJournal journal = new MachineryJournal(directory, 4096);
+		final StackOfMachinery stacked = new StackOfMachinery(machines).setJournal(journal);
+
+		stacked.handleEvents("started", "spawn", "spawn");
+		stacked.snapshot(checkpoint);
+
+		// Enough events to roll over a few segments, then let the timer expire
+		// and be journaled too.
+
+		for (int i = 0; i < 100; ++i)
+		{
+			stacked.handleEvents("spawn", "ping");
+		}
+
+		stacked.handleEvent("arm");
+
+		Thread.sleep(500);
+
+		stacked.snapshot(crashed);
+		journal.close();
+
+		new StackOfMachinery(machines)
+			.recover(new ByteArrayInputStream(checkpoint.toByteArray()), new MachineryJournal(directory, 4096))
+			.snapshot(recovered);
+
+		Assert.assertTrue
+			( "Recovered stack doesn't snapshot the same"
+			, Arrays.equals(crashed.toByteArray(), recovered.toByteArray())
+			);
+	}
+
+	@Test
+	public void testUnjournaled() throws Exception {
+		final AxionTaskLibrary machines = mapper.fromJson(library, AxionTaskLibrary.class);
+		final File directory = folder.newFolder("failing");
+		final List<AxionTaskResolve.Unjournaled> failures = new ArrayList<AxionTaskResolve.Unjournaled>();
+		final ByteArrayOutputStream live = new ByteArrayOutputStream();
+		final ByteArrayOutputStream recovered = new ByteArrayOutputStream();
+		final MachineryJournal journal = new MachineryJournal(directory, 4096);
+		final String [] rolling = new String [301];
+		final char [] huge = new char [5000];
+
+		Arrays.fill(huge, 'x');
+		Arrays.fill(rolling, "ping");
+
+		rolling[300] = new String(huge);
+
+		final StackOfMachinery stacked = new StackOfMachinery(machines)
+			.setJournal(journal)
+			.setResolve
+				( new AxionTaskResolve() {
+					protected String execute(final String axionLabel, final Update axionValue, final LabeledValuePair ... axionPairs) {
+						return "";
+					}
+					protected void command(final String eventCommand, final String eventStatus) {
+					}
+					protected void log(final String message) {
+					}
+					protected void onUnjournaled(final Unjournaled unjournaled) {
+						failures.add(unjournaled);
+					}
+				})
+			;
+
+		// Events too large for a segment fail the whole group, even once the
+		// group's records have rolled over into segments of their own.
+
+		stacked.handleEvents("started", "spawn", "spawn");
+		stacked.handleEvents("spawn", new String(huge), "spawn");
+		stacked.handleEvents(rolling);
+		stacked.handleEvents("spawn", "ping");
+
+		Assert.assertEquals(2, failures.size());
+		Assert.assertEquals(Arrays.asList("spawn", new String(huge), "spawn"), failures.get(0).events);
+		Assert.assertEquals(301, failures.get(1).events.size());
+
+		stacked.snapshot(live);
+		journal.close();
+
+		new StackOfMachinery(machines)
+			.recover(null, new MachineryJournal(directory, 4096))
+			.snapshot(recovered);
+
+		Assert.assertTrue
+			( "Stack ran ahead of its journal"
+			, Arrays.equals(live.toByteArray(), recovered.toByteArray())
+			);
+	}
+
+	private static Gson mapper = new Gson();
+
+}
@@ -0,0 +1,116 @@
+package com.unowmo.machinery.tests;
+
+import java.io.*;
+import java.util.*;
+import org.junit.*;
+import com.google.gson.*;
+import com.unowmo.machinery.*;
+
+/**
+ * Compiles a library once, checked up front, for many stacks to share.
+ */
+public class LibraryTest {
+
+	private static final String library
+		= "{ \"machines\":"
+		+ "  [ { \"name\": \"default\", \"states\":"
+		+ "      [ { \"label\": \"start\", \"trans\": [ { \"event\": \"started\", \"state\": \"idle\" } ] }"
+		+ "      , { \"label\": \"idle\", \"trans\": [ { \"event\": \"ping\", \"state\": \"work\" } ] }"
+		+ "      , { \"label\": \"work\", \"entry\": \"inc:label=count,value=1\", \"trans\": [ { \"event\": \"\", \"state\": \"report\" } ] }"
+		+ "      , { \"label\": \"report\", \"entry\": \"patch:command=count,status=((count))\", \"trans\": [ { \"event\": \"\", \"state\": \"idle\" } ] }"
+		+ "      ]"
+		+ "    }"
+		+ "  ]"
+		+ "}";
+
+	private static final String broken
+		= "{ \"machines\":"
+		+ "  [ { \"name\": \"main\", \"states\":"
+		+ "      [ { \"label\": \"start\", \"trans\": [ { \"event\": \"started\", \"state\": \"idle\" } ] }"
+		+ "      , { \"label\": \"idle\", \"entry\": \"start:machine=missing\", \"trans\": [ { \"event\": \"ping\", \"state\": \"nowhere\" } ] }"
+		+ "      , { \"label\": \"Idle\" }"
+		+ "      ]"
+		+ "    }"
+		+ "  , { \"name\": \"MAIN\" }"
+		+ "  ]"
+		+ "}";
+
+	@Test
+	public void testShared() throws Exception {
+		final CompiledLibrary compiled = CompiledLibrary.compile(mapper.fromJson(library, AxionTaskLibrary.class));
+		final List<String> commands = new ArrayList<String>();
+		final StackOfMachinery [] stacks = new StackOfMachinery [100];
+
+		for (int i = 0; i < stacks.length; ++i)
+		{
+			final int session = i;
+
+			stacks[i] = new StackOfMachinery(compiled).setResolve
+				( new AxionTaskResolve() {
+					protected String execute(final String axionLabel, final Update axionValue, final LabeledValuePair ... axionPairs) {
+						return "";
+					}
+					protected void command(final String eventCommand, final String eventStatus) {
+						commands.add(session + ":" + eventStatus);
+					}
+					protected void log(final String message) {
+					}
+				});
+		}
+
+		for (int i = 0; i < stacks.length; ++i)
+		{
+			stacks[i].handleEvent("started");
+
+			for (int k = 0; k < i % 3; ++k)
+			{
+				stacks[i].handleEvent("ping");
+			}
+		}
+
+		Assert.assertTrue(commands.contains("1:1"));
+		Assert.assertTrue(commands.contains("2:2"));
+		Assert.assertFalse(commands.contains("3:1"));
+
+		// Stacks sharing the library restore each other's snapshots.
+
+		final ByteArrayOutputStream taken = new ByteArrayOutputStream();
+
+		stacks[2].snapshot(taken);
+		stacks[3].restore(new ByteArrayInputStream(taken.toByteArray())).handleEvent("ping");
+
+		Assert.assertTrue
+			( "Stack didn't carry on from snapshot of another"
+			, commands.contains("3:3")
+			);
+	}
+
+	@Test
+	public void testInvalid() {
+		try
+		{
+			CompiledLibrary.compile(mapper.fromJson(broken, AxionTaskLibrary.class));
+
+			Assert.fail("Invalid library compiled");
+		}
+		catch (IllegalArgumentException eX)
+		{
+			for (final String problem : new String []
+				{ "machine 'MAIN' declared twice"
+				, "no default machine declared"
+				, "declares state 'Idle' twice"
+				, "starts undeclared machine 'missing'"
+				, "to undeclared state 'nowhere'"
+				})
+			{
+				Assert.assertTrue
+					( "Problem not reported: " + problem
+					, eX.getMessage().contains(problem)
+					);
+			}
+		}
+	}
+
+	private static Gson mapper = new Gson();
+
+}
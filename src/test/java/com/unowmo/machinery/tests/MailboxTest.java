@@ -0,0 +1,194 @@
+package com.unowmo.machinery.tests;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import org.junit.*;
+import com.google.gson.*;
+import com.unowmo.machinery.*;
+
+/**
+ * Applies events posted from many threads at once one at a time, each
+ * thread's in the order posted.
+ */
+public class MailboxTest {
+
+	private static final String library
+		= "{ \"machines\":"
+		+ "  [ { \"name\": \"default\", \"states\":"
+		+ "      [ { \"label\": \"start\", \"trans\": [ { \"event\": \"started\", \"state\": \"idle\" } ] }"
+		+ "      , { \"label\": \"idle\", \"entry\": \"has:label=n\", \"trans\": [ { \"event\": \"success\", \"state\": \"idle\" }, { \"event\": \"missing\", \"state\": \"idle\" }, { \"event\": \"report\", \"state\": \"report\" }, { \"event\": \"\", \"state\": \"tally\" } ] }"
+		+ "      , { \"label\": \"tally\", \"entry\": \"inc:label=n,value=1\", \"trans\": [ { \"event\": \"\", \"state\": \"idle\" } ] }"
+		+ "      , { \"label\": \"report\", \"entry\": \"patch:command=tally,status=((n))\", \"trans\": [ { \"event\": \"\", \"state\": \"idle\" } ] }"
+		+ "      ]"
+		+ "    }"
+		+ "  ]"
+		+ "}";
+
+	private static final int PRODUCERS = 8;
+	private static final int EVENTS = 3000;
+
+	@Test
+	public void testInline() throws Exception {
+		final Recording recording = new Recording();
+		final StackOfMachinery stacked = new StackOfMachinery(mapper.fromJson(library, AxionTaskLibrary.class)).setResolve(recording);
+
+		stacked.handleEvent("started");
+
+		produce(stacked);
+
+		// Whoever drains runs until the mailbox is empty, so every event has
+		// been applied once the producers are done.
+
+		recording.check();
+
+		stacked.handleEvent("report");
+
+		Assert.assertEquals(Arrays.asList("tally:" + PRODUCERS * EVENTS), recording.commands);
+	}
+
+	@Test
+	public void testExecutor() throws Exception {
+		final ExecutorService executor = Executors.newFixedThreadPool(4);
+		final Recording recording = new Recording();
+		final StackOfMachinery stacked = new StackOfMachinery(mapper.fromJson(library, AxionTaskLibrary.class))
+			.setResolve(recording)
+			.setExecutor(executor)
+			;
+
+		try
+		{
+			stacked.handleEvent("started");
+
+			produce(stacked);
+
+			final long until = System.currentTimeMillis() + 10000;
+
+			while (recording.handled.size() < 1 + PRODUCERS * EVENTS && System.currentTimeMillis() < until)
+			{
+				Thread.sleep(5);
+			}
+
+			recording.check();
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Posts each producer's numbered events from its own thread, singly and
+	 * in batches, all starting together.
+	 */
+	private static void produce(final StackOfMachinery stacked) throws InterruptedException {
+		final CountDownLatch ready = new CountDownLatch(1);
+		final Thread [] producers = new Thread [PRODUCERS];
+
+		for (int p = 0; p < producers.length; ++p)
+		{
+			final int producer = p;
+
+			producers[p] = new Thread(new Runnable() {
+				public void run() {
+					try
+					{
+						ready.await();
+					}
+					catch (InterruptedException eX)
+					{
+						return;
+					}
+
+					for (int i = 0; i < EVENTS; )
+					{
+						if (i % 7 == 0 && i + 3 <= EVENTS)
+						{
+							stacked.handleEvents(producer + ":" + i, producer + ":" + (i + 1), producer + ":" + (i + 2));
+
+							i += 3;
+						}
+						else
+						{
+							stacked.handleEvent(producer + ":" + i);
+
+							i += 1;
+						}
+					}
+				}
+			});
+
+			producers[p].start();
+		}
+
+		ready.countDown();
+
+		for (final Thread producer : producers)
+		{
+			producer.join();
+		}
+	}
+
+	private static class Recording extends AxionTaskResolve {
+		private final List<String> handled = Collections.synchronizedList(new ArrayList<String>());
+		private final List<String> commands = Collections.synchronizedList(new ArrayList<String>());
+		private final AtomicInteger active = new AtomicInteger(0);
+		private volatile int most = 0;
+
+		protected String execute(final String axionLabel, final Update axionValue, final LabeledValuePair ... axionPairs) {
+			return "";
+		}
+
+		protected void command(final String eventCommand, final String eventStatus) {
+			this.commands.add(eventCommand + ":" + eventStatus);
+		}
+
+		protected void log(final String message) {
+		}
+
+		protected boolean isLogging(final Level level) {
+			return level == Level.INFO;
+		}
+
+		protected void logHandling(final String event) {
+			final int drainers = this.active.incrementAndGet();
+
+			if (drainers > this.most)
+			{
+				this.most = drainers;
+			}
+
+			this.handled.add(event);
+
+			Thread.yield();
+
+			this.active.decrementAndGet();
+		}
+
+		/**
+		 * Checks every event was handled, one drainer at a time, each
+		 * producer's in order.
+		 */
+		void check() {
+			final int [] expects = new int [PRODUCERS];
+
+			Assert.assertEquals("More than one drainer was active", 1, this.most);
+			Assert.assertEquals("Events were lost", 1 + PRODUCERS * EVENTS, this.handled.size());
+
+			for (final String event : this.handled.subList(1, this.handled.size()))
+			{
+				final int p = Integer.parseInt(event.substring(0, event.indexOf(':')));
+
+				Assert.assertEquals
+					( "Producer's events applied out of order"
+					, p + ":" + expects[p]++
+					, event
+					);
+			}
+		}
+
+	}
+
+	private static Gson mapper = new Gson();
+
+}
@@ -0,0 +1,153 @@
+package com.unowmo.machinery.tests;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import org.junit.*;
+import org.junit.rules.*;
+import com.google.gson.*;
+import com.unowmo.machinery.*;
+
+/**
+ * Passivates idle layers and brings them back as events reach them.
+ */
+public class PassivationTest {
+
+	private static final String library
+		= "{ \"machines\":"
+		+ "  [ { \"name\": \"default\", \"states\":"
+		+ "      [ { \"label\": \"start\", \"trans\": [ { \"event\": \"started\", \"state\": \"idle\" } ] }"
+		+ "      , { \"label\": \"idle\", \"trans\": [ { \"event\": \"spawn\", \"state\": \"spawn\" }, { \"event\": \"tally\", \"state\": \"tally\" } ] }"
+		+ "      , { \"label\": \"spawn\", \"entry\": \"start:machine=leaf,kind=spawned\", \"trans\": [ { \"event\": \"\", \"state\": \"idle\" } ] }"
+		+ "      , { \"label\": \"tally\", \"entry\": \"count:count=2\", \"trans\": [ { \"event\": \"\", \"state\": \"idle\" } ] }"
+		+ "      ]"
+		+ "    }"
+		+ "  , { \"name\": \"leaf\", \"states\":"
+		+ "      [ { \"label\": \"start\", \"trans\": [ { \"event\": \"started\", \"state\": \"idle\" } ] }"
+		+ "      , { \"label\": \"idle\", \"trans\": [ { \"event\": \"ping\", \"state\": \"work\" } ] }"
+		+ "      , { \"label\": \"work\", \"entry\": \"inc:label=count,value=1\", \"trans\": [ { \"event\": \"\", \"state\": \"idle\" } ] }"
+		+ "      ]"
+		+ "    }"
+		+ "  ]"
+		+ "}";
+
+	private static final String fetching
+		= "{ \"machines\":"
+		+ "  [ { \"name\": \"default\", \"states\":"
+		+ "      [ { \"label\": \"start\", \"trans\": [ { \"event\": \"started\", \"state\": \"idle\" } ] }"
+		+ "      , { \"label\": \"idle\", \"trans\": [ { \"event\": \"fetch\", \"state\": \"fetch\" }, { \"event\": \"ping\", \"state\": \"pinged\" } ] }"
+		+ "      , { \"label\": \"fetch\", \"entry\": \"lookup:key=answer\", \"trans\": [ { \"event\": \"found\", \"state\": \"report\" } ] }"
+		+ "      , { \"label\": \"report\", \"entry\": \"patch:command=answer,status=((answer))\", \"trans\": [ { \"event\": \"\", \"state\": \"idle\" } ] }"
+		+ "      , { \"label\": \"pinged\", \"entry\": \"patch:command=pinged\", \"trans\": [ { \"event\": \"\", \"state\": \"idle\" } ] }"
+		+ "      ]"
+		+ "    }"
+		+ "  ]"
+		+ "}";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testOffHeap() throws Exception {
+		this.compare(null);
+	}
+
+	@Test
+	public void testMapped() throws Exception {
+		this.compare(this.folder.newFile("spill"));
+	}
+
+	@Test
+	public void testMovedWhileParked() throws Exception {
+		final CompletableFuture<String> lookup = new CompletableFuture<String>();
+		final List<String> commands = new ArrayList<String>();
+		final StackOfMachinery passive = new StackOfMachinery(mapper.fromJson(fetching, AxionTaskLibrary.class))
+			.setResolve
+				( new AxionTaskResolve() {
+					protected String execute(final String axionLabel, final Update axionValue, final LabeledValuePair ... axionPairs) {
+						return "";
+					}
+					protected CompletionStage<String> executeAsync(final String axionLabel, final Update axionValue, final LabeledValuePair ... axionPairs) {
+						axionValue.add("answer", "42");
+
+						return lookup;
+					}
+					protected void command(final String eventCommand, final String eventStatus) {
+						commands.add(eventCommand + ":" + eventStatus);
+					}
+					protected void log(final String message) {
+					}
+				})
+			.setPassivation(1)
+			;
+
+		passive.handleEvents("started", "fetch");
+
+		Thread.sleep(20);
+
+		passive.handleEvent("nothing");
+
+		// Moving the store brings passivated layers back, but mustn't lose
+		// track of the axion the layer is parked on.
+
+		passive.setPassivation(1, this.folder.newFile("moved"));
+
+		Thread.sleep(20);
+
+		passive.handleEvent("nothing");
+
+		lookup.complete("found");
+
+		passive.handleEvent("ping");
+
+		Assert.assertEquals
+			( "Parked layer didn't resume once store moved"
+			, Arrays.asList("answer:42", "pinged:")
+			, commands
+			);
+	}
+
+	/**
+	 * Runs the same events through stacks with and without passivation,
+	 * letting layers go idle in between, and checks they end up the same.
+	 */
+	private void compare(final File spill) throws Exception {
+		final AxionTaskLibrary machines = mapper.fromJson(library, AxionTaskLibrary.class);
+		final StackOfMachinery passive = new StackOfMachinery(machines).setPassivation(1, spill);
+		final StackOfMachinery control = new StackOfMachinery(machines);
+
+		for (final String [] events : new String [][]
+			{ { "started", "spawn", "spawn", "spawn", "ping" }
+			, { "ping" }
+			, { "tally" }
+			, { "spawn", "ping" }
+			})
+		{
+			passive.handleEvents(events);
+			control.handleEvents(events);
+
+			Thread.sleep(20);
+
+			// Nothing follows on this, but the stack passivates what's idle
+			// once it's handled.
+
+			passive.handleEvent("nothing");
+
+			Assert.assertTrue
+				( "Passivated stack doesn't snapshot the same"
+				, Arrays.equals(snapshot(control), snapshot(passive))
+				);
+		}
+	}
+
+	private static byte [] snapshot(final StackOfMachinery stacked) throws IOException {
+		final ByteArrayOutputStream taken = new ByteArrayOutputStream();
+
+		stacked.snapshot(taken);
+
+		return taken.toByteArray();
+	}
+
+	private static Gson mapper = new Gson();
+
+}
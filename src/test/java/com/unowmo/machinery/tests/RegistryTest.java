@@ -0,0 +1,154 @@
+package com.unowmo.machinery.tests;
+
+import java.util.*;
+import java.util.concurrent.*;
+import org.junit.*;
+import com.google.gson.*;
+import com.unowmo.machinery.*;
+
+/**
+ * Dispatches application-defined axions to handlers registered for their
+ * label, ahead of the resolver.
+ */
+public class RegistryTest {
+
+	private static final String library
+		= "{ \"machines\":"
+		+ "  [ { \"name\": \"default\", \"states\":"
+		+ "      [ { \"label\": \"start\", \"trans\": [ { \"event\": \"started\", \"state\": \"idle\" } ] }"
+		+ "      , { \"label\": \"idle\", \"trans\": [ { \"event\": \"lookup\", \"state\": \"lookup\" }, { \"event\": \"other\", \"state\": \"other\" } ] }"
+		+ "      , { \"label\": \"lookup\", \"entry\": \"Lookup:key=answer\", \"trans\": [ { \"event\": \"found\", \"state\": \"report\" } ] }"
+		+ "      , { \"label\": \"other\", \"entry\": \"other:key=answer\", \"trans\": [ { \"event\": \"found\", \"state\": \"report\" } ] }"
+		+ "      , { \"label\": \"report\", \"entry\": \"patch:command=answer,status=((answer))\", \"trans\": [ { \"event\": \"\", \"state\": \"idle\" } ] }"
+		+ "      ]"
+		+ "    }"
+		+ "  ]"
+		+ "}";
+
+	@Test
+	public void testDispatch() {
+		final List<String> commands = new ArrayList<String>();
+		final List<String> resolved = new ArrayList<String>();
+		final AxionTaskRegistry registry = new AxionTaskRegistry()
+			.register
+				( "LOOKUP"
+				, new AxionTaskHandler() {
+					protected String execute(final String axionLabel, final AxionTaskResolve.Update axionValue, final LabeledValuePair ... axionPairs) {
+						axionValue.add(axionPairs[0].value, "direct");
+
+						return "found";
+					}
+				})
+			;
+
+		final StackOfMachinery stacked = new StackOfMachinery(mapper.fromJson(library, AxionTaskLibrary.class))
+			.setResolve(new Resolving(commands, resolved))
+			.setRegistry(registry)
+			;
+
+		// Registered by label in another case, but found all the same, while
+		// other axions still fall back on the resolver.
+
+		stacked.handleEvents("started", "lookup", "other");
+
+		Assert.assertEquals
+			( "Axions weren't dispatched by registered label"
+			, Arrays.asList("answer:direct", "answer:resolved")
+			, commands
+			);
+
+		Assert.assertEquals
+			( "Resolver executed axion with a registered handler"
+			, Arrays.asList("other")
+			, resolved
+			);
+
+		registry.unregister("lookup");
+
+		stacked.handleEvent("lookup");
+
+		Assert.assertEquals
+			( "Unregistered axion didn't fall back on the resolver"
+			, Arrays.asList("other", "Lookup")
+			, resolved
+			);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testBuiltIn() {
+		new AxionTaskRegistry()
+			.register
+				( "Set"
+				, new AxionTaskHandler() {
+					protected String execute(final String axionLabel, final AxionTaskResolve.Update axionValue, final LabeledValuePair ... axionPairs) {
+						return "";
+					}
+				});
+	}
+
+	@Test
+	public void testAsync() {
+		final CompletableFuture<String> lookup = new CompletableFuture<String>();
+		final List<String> commands = new ArrayList<String>();
+		final List<String> resolved = new ArrayList<String>();
+		final StackOfMachinery stacked = new StackOfMachinery(mapper.fromJson(library, AxionTaskLibrary.class))
+			.setResolve(new Resolving(commands, resolved))
+			.setRegistry
+				( new AxionTaskRegistry()
+					.register
+						( "lookup"
+						, new AxionTaskHandler() {
+							protected String execute(final String axionLabel, final AxionTaskResolve.Update axionValue, final LabeledValuePair ... axionPairs) {
+								return "";
+							}
+							protected CompletionStage<String> executeAsync(final String axionLabel, final AxionTaskResolve.Update axionValue, final LabeledValuePair ... axionPairs) {
+								axionValue.add(axionPairs[0].value, "later");
+
+								return lookup;
+							}
+						})
+				)
+			;
+
+		stacked.handleEvents("started", "lookup");
+
+		Assert.assertTrue
+			( "Layer followed on before handler's axion completed"
+			, commands.isEmpty()
+			);
+
+		lookup.complete("found");
+
+		Assert.assertEquals(Arrays.asList("answer:later"), commands);
+		Assert.assertTrue(resolved.isEmpty());
+	}
+
+	private static class Resolving extends AxionTaskResolve {
+		private final List<String> commands;
+		private final List<String> resolved;
+
+		protected String execute(final String axionLabel, final Update axionValue, final LabeledValuePair ... axionPairs) {
+			this.resolved.add(axionLabel);
+
+			axionValue.add(axionPairs[0].value, "resolved");
+
+			return "found";
+		}
+
+		protected void command(final String eventCommand, final String eventStatus) {
+			this.commands.add(eventCommand + ":" + eventStatus);
+		}
+
+		protected void log(final String message) {
+		}
+
+		Resolving(final List<String> commands, final List<String> resolved) {
+			this.commands = commands;
+			this.resolved = resolved;
+		}
+
+	}
+
+	private static Gson mapper = new Gson();
+
+}
@@ -0,0 +1,159 @@
+package com.unowmo.machinery.tests;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import org.junit.*;
+import com.google.gson.*;
+import com.unowmo.machinery.*;
+
+/**
+ * Hosts many sessions' stacks on one runtime.
+ */
+public class RuntimeTest {
+
+	private static final String library
+		= "{ \"machines\":"
+		+ "  [ { \"name\": \"default\", \"states\":"
+		+ "      [ { \"label\": \"start\", \"trans\": [ { \"event\": \"started\", \"state\": \"idle\" } ] }"
+		+ "      , { \"label\": \"idle\", \"trans\": [ { \"event\": \"ping\", \"state\": \"work\" } ] }"
+		+ "      , { \"label\": \"work\", \"entry\": \"inc:label=count,value=1\", \"trans\": [ { \"event\": \"\", \"state\": \"report\" } ] }"
+		+ "      , { \"label\": \"report\", \"entry\": \"patch:command=count,status=((count))\", \"trans\": [ { \"event\": \"\", \"state\": \"idle\" } ] }"
+		+ "      ]"
+		+ "    }"
+		+ "  ]"
+		+ "}";
+
+	private static final String spinning
+		= "{ \"machines\":"
+		+ "  [ { \"name\": \"default\", \"states\":"
+		+ "      [ { \"label\": \"start\", \"trans\": [ { \"event\": \"started\", \"state\": \"idle\" } ] }"
+		+ "      , { \"label\": \"idle\", \"trans\": [ { \"event\": \"spin\", \"state\": \"a\" } ] }"
+		+ "      , { \"label\": \"a\", \"entry\": \"inc:label=spun,value=1\", \"trans\": [ { \"event\": \"\", \"state\": \"b\" }, { \"event\": \"reset\", \"state\": \"back\" } ] }"
+		+ "      , { \"label\": \"b\", \"trans\": [ { \"event\": \"\", \"state\": \"a\" }, { \"event\": \"reset\", \"state\": \"back\" } ] }"
+		+ "      , { \"label\": \"back\", \"entry\": \"patch:command=back,status=((spun))\", \"trans\": [ { \"event\": \"\", \"state\": \"idle\" } ] }"
+		+ "      ]"
+		+ "    }"
+		+ "  ]"
+		+ "}";
+
+	@Test
+	public void testSessions() {
+		final MachineryRuntime runtime = new MachineryRuntime(mapper.fromJson(library, AxionTaskLibrary.class), 4);
+		final AtomicInteger reported = new AtomicInteger(0);
+
+		runtime.setResolve
+			( new AxionTaskResolve() {
+				protected String execute(final String axionLabel, final Update axionValue, final LabeledValuePair ... axionPairs) {
+					return "";
+				}
+				protected void command(final String eventCommand, final String eventStatus) {
+					if (eventStatus.equals("3") == true)
+					{
+						reported.incrementAndGet();
+					}
+				}
+				protected void log(final String message) {
+				}
+			});
+
+		try
+		{
+			for (int i = 0; i < 1000; ++i)
+			{
+				runtime.handleEvents("session" + i, "started", "ping");
+			}
+
+			for (int i = 0; i < 1000; ++i)
+			{
+				runtime.handleEvent("session" + i, "ping");
+				runtime.handleEvent("session" + i, "ping");
+			}
+
+			Assert.assertTrue
+				( "Runtime didn't go idle"
+				, runtime.awaitIdle(10, TimeUnit.SECONDS)
+				);
+
+			final MachineryRuntime.Stats stats = runtime.stats();
+
+			Assert.assertEquals(1000, stats.sessions);
+			Assert.assertEquals(4000, stats.handled);
+			Assert.assertEquals(0, stats.queued);
+
+			Assert.assertEquals
+				( "Sessions didn't each count their pings in order"
+				, 1000
+				, reported.get()
+				);
+
+			Assert.assertNotNull(runtime.close("session0"));
+			Assert.assertNull(runtime.find("session0"));
+		}
+		finally
+		{
+			runtime.shutdown();
+		}
+	}
+
+	@Test
+	public void testBudgets() {
+		final MachineryRuntime runtime = new MachineryRuntime(mapper.fromJson(spinning, AxionTaskLibrary.class), 2);
+		final List<AxionTaskResolve.Runaway> runaways = Collections.synchronizedList(new ArrayList<AxionTaskResolve.Runaway>());
+		final List<String> commands = Collections.synchronizedList(new ArrayList<String>());
+
+		runtime
+			.setBudgets(1000, 0)
+			.setResolve
+				( new AxionTaskResolve() {
+					protected String execute(final String axionLabel, final Update axionValue, final LabeledValuePair ... axionPairs) {
+						return "";
+					}
+					protected void command(final String eventCommand, final String eventStatus) {
+						commands.add(eventCommand + ":" + eventStatus);
+					}
+					protected void log(final String message) {
+					}
+					protected void onRunaway(final Runaway runaway) {
+						runaways.add(runaway);
+					}
+				});
+
+		try
+		{
+			// Each session's stack is opened with the runtime's budgets, so
+			// spinning is cut short rather than pinning a drainer.
+
+			for (int i = 0; i < 4; ++i)
+			{
+				runtime.handleEvents("session" + i, "started", "spin", "reset");
+			}
+
+			Assert.assertTrue
+				( "Runtime didn't go idle"
+				, runtime.awaitIdle(10, TimeUnit.SECONDS)
+				);
+
+			Assert.assertEquals
+				( "Sessions didn't each run over the runtime's budget"
+				, 4
+				, runaways.size()
+				);
+
+			Assert.assertEquals(AxionTaskResolve.Runaway.Budget.STEPS, runaways.get(0).budget);
+
+			Assert.assertEquals
+				( "Sessions didn't carry on after runaway"
+				, Arrays.asList("back:500", "back:500", "back:500", "back:500")
+				, commands
+				);
+		}
+		finally
+		{
+			runtime.shutdown();
+		}
+	}
+
+	private static Gson mapper = new Gson();
+
+}
@@ -0,0 +1,98 @@
+package com.unowmo.machinery.tests;
+
+import java.io.*;
+import java.util.*;
+import org.junit.*;
+import com.google.gson.*;
+import com.unowmo.machinery.*;
+
+/**
+ * Round trips running stacks through snapshots.
+ */
+public class SnapshotTest {
+
+	private static final String library
+		= "{ \"machines\":"
+		+ "  [ { \"name\": \"default\", \"states\":"
+		+ "      [ { \"label\": \"start\", \"trans\": [ { \"event\": \"started\", \"state\": \"idle\" } ] }"
+		+ "      , { \"label\": \"idle\", \"trans\": [ { \"event\": \"spawn\", \"state\": \"spawn\" }, { \"event\": \"arm\", \"state\": \"arm\" } ] }"
+		+ "      , { \"label\": \"spawn\", \"entry\": \"start:machine=leaf,kind=spawned\", \"trans\": [ { \"event\": \"\", \"state\": \"idle\" } ] }"
+		+ "      , { \"label\": \"arm\", \"entry\": \"timer:expires=600000,event=tick\", \"trans\": [ { \"event\": \"\", \"state\": \"idle\" } ] }"
+		+ "      ]"
+		+ "    }"
+		+ "  , { \"name\": \"leaf\", \"states\":"
+		+ "      [ { \"label\": \"start\", \"trans\": [ { \"event\": \"started\", \"state\": \"idle\" } ] }"
+		+ "      , { \"label\": \"idle\", \"trans\": [ { \"event\": \"ping\", \"state\": \"work\" } ] }"
+		+ "      , { \"label\": \"work\", \"entry\": \"inc:label=count,value=1\", \"trans\": [ { \"event\": \"\", \"state\": \"idle\" } ] }"
+		+ "      ]"
+		+ "    }"
+		+ "  ]"
+		+ "}";
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		final AxionTaskLibrary machines = mapper.fromJson(library, AxionTaskLibrary.class);
+		final StackOfMachinery stacked = new StackOfMachinery(machines);
+		final ByteArrayOutputStream taken = new ByteArrayOutputStream();
+		final ByteArrayOutputStream again = new ByteArrayOutputStream();
+
+		stacked.handleEvents("started", "spawn", "spawn", "spawn", "ping", "ping", "arm");
+		stacked.snapshot(taken);
+
+		new StackOfMachinery(machines)
+			.restore(new ByteArrayInputStream(taken.toByteArray()))
+			.snapshot(again);
+
+		Assert.assertTrue
+			( "Restored stack doesn't snapshot the same"
+			, Arrays.equals(taken.toByteArray(), again.toByteArray())
+			);
+	}
+
+	@Test
+	public void testOtherLibrary() throws IOException {
+		final ByteArrayOutputStream taken = new ByteArrayOutputStream();
+
+		new StackOfMachinery(mapper.fromJson(library, AxionTaskLibrary.class))
+			.handleEvents("started", "spawn")
+			.snapshot(taken);
+
+		try
+		{
+			new StackOfMachinery(new AxionTaskLibrary()).restore(new ByteArrayInputStream(taken.toByteArray()));
+
+			Assert.fail("Restored snapshot against a different library");
+		}
+		catch (IOException eX)
+		{
+		}
+	}
+
+	@Test
+	public void testOtherVersion() throws IOException {
+		final ByteArrayOutputStream taken = new ByteArrayOutputStream();
+
+		new StackOfMachinery(mapper.fromJson(library, AxionTaskLibrary.class))
+			.handleEvents("started", "spawn")
+			.snapshot(taken);
+
+		final byte [] older = taken.toByteArray();
+
+		// Version follows the leading magic bytes.
+
+		older[7] = 3;
+
+		try
+		{
+			new StackOfMachinery(mapper.fromJson(library, AxionTaskLibrary.class)).restore(new ByteArrayInputStream(older));
+
+			Assert.fail("Restored snapshot of another version");
+		}
+		catch (IOException eX)
+		{
+		}
+	}
+
+	private static Gson mapper = new Gson();
+
+}
@@ -0,0 +1,95 @@
+package com.unowmo.machinery.tests;
+
+import java.util.*;
+import org.junit.*;
+import com.google.gson.*;
+import com.unowmo.machinery.*;
+
+/**
+ * Hands events to layers subscribed by their state's transitions, merged
+ * with layers following on anything, in the order layers were graphed.
+ */
+public class SubscriptionTest {
+
+	private static final String library
+		= "{ \"machines\":"
+		+ "  [ { \"name\": \"default\", \"states\":"
+		+ "      [ { \"label\": \"start\", \"trans\": [ { \"event\": \"started\", \"state\": \"a\" } ] }"
+		+ "      , { \"label\": \"a\", \"entry\": \"start:machine=indexed,name=a\", \"trans\": [ { \"event\": \"\", \"state\": \"b\" } ] }"
+		+ "      , { \"label\": \"b\", \"entry\": \"start:machine=anything,name=b\", \"trans\": [ { \"event\": \"\", \"state\": \"c\" } ] }"
+		+ "      , { \"label\": \"c\", \"entry\": \"start:machine=anything,name=c\", \"trans\": [ { \"event\": \"\", \"state\": \"d\" } ] }"
+		+ "      , { \"label\": \"d\", \"entry\": \"start:machine=indexed,name=d\", \"trans\": [ { \"event\": \"\", \"state\": \"e\" } ] }"
+		+ "      , { \"label\": \"e\", \"entry\": \"start:machine=anything,name=e\", \"trans\": [ { \"event\": \"\", \"state\": \"idle\" } ] }"
+		+ "      , { \"label\": \"idle\", \"trans\": [ { \"event\": \"swap\", \"state\": \"swap\" } ] }"
+		+ "      , { \"label\": \"swap\", \"entry\": \"blast:event=swap\", \"trans\": [ { \"event\": \"\", \"state\": \"idle\" } ] }"
+		+ "      ]"
+		+ "    }"
+		+ "  , { \"name\": \"indexed\", \"states\":"
+		+ "      [ { \"label\": \"start\", \"trans\": [ { \"event\": \"started\", \"state\": \"idle\" } ] }"
+		+ "      , { \"label\": \"idle\", \"trans\": [ { \"event\": \"ping\", \"state\": \"heard\" }, { \"event\": \"swap\", \"state\": \"listen\" } ] }"
+		+ "      , { \"label\": \"heard\", \"entry\": \"patch:command=((name)),status=indexed\", \"trans\": [ { \"event\": \"\", \"state\": \"idle\" } ] }"
+		+ "      , { \"label\": \"listen\", \"entry\": \"has:label=name\", \"trans\": [ { \"event\": \"success\", \"state\": \"listen\" }, { \"event\": \"\", \"state\": \"caught\" } ] }"
+		+ "      , { \"label\": \"caught\", \"entry\": \"patch:command=((name)),status=swapped\", \"trans\": [ { \"event\": \"\", \"state\": \"listen\" } ] }"
+		+ "      ]"
+		+ "    }"
+		+ "  , { \"name\": \"anything\", \"states\":"
+		+ "      [ { \"label\": \"start\", \"trans\": [ { \"event\": \"started\", \"state\": \"listen\" } ] }"
+		+ "      , { \"label\": \"listen\", \"entry\": \"has:label=name\", \"trans\": [ { \"event\": \"success\", \"state\": \"listen\" }, { \"event\": \"swap\", \"state\": \"idle\" }, { \"event\": \"\", \"state\": \"caught\" } ] }"
+		+ "      , { \"label\": \"caught\", \"entry\": \"patch:command=((name)),status=anything\", \"trans\": [ { \"event\": \"\", \"state\": \"listen\" } ] }"
+		+ "      , { \"label\": \"idle\", \"trans\": [ { \"event\": \"ping\", \"state\": \"heard\" } ] }"
+		+ "      , { \"label\": \"heard\", \"entry\": \"patch:command=((name)),status=indexed\", \"trans\": [ { \"event\": \"\", \"state\": \"idle\" } ] }"
+		+ "      ]"
+		+ "    }"
+		+ "  ]"
+		+ "}";
+
+	@Test
+	public void testMerged() {
+		final List<String> commands = new ArrayList<String>();
+		final StackOfMachinery stacked = new StackOfMachinery(mapper.fromJson(library, AxionTaskLibrary.class))
+			.setResolve
+				( new AxionTaskResolve() {
+					protected String execute(final String axionLabel, final Update axionValue, final LabeledValuePair ... axionPairs) {
+						return "";
+					}
+					protected void command(final String eventCommand, final String eventStatus) {
+						commands.add(eventCommand + ":" + eventStatus);
+					}
+					protected void log(final String message) {
+					}
+				})
+			;
+
+		stacked.handleEvents("started", "ping", "other");
+
+		Assert.assertEquals
+			( "Indexed and catch-all layers didn't follow on in the order graphed"
+			, Arrays.asList
+				( "a:indexed", "b:anything", "c:anything", "d:indexed", "e:anything"
+				, "b:anything", "c:anything", "e:anything"
+				)
+			, commands
+			);
+
+		// Each layer moves its subscription along with its state, so the
+		// indexed layers now follow on anything (the blast included) and
+		// the others on ping.
+
+		commands.clear();
+
+		stacked.handleEvents("swap", "ping", "other");
+
+		Assert.assertEquals
+			( "Layers didn't follow on by their new state's subscriptions"
+			, Arrays.asList
+				( "a:swapped", "d:swapped"
+				, "a:swapped", "b:indexed", "c:indexed", "d:swapped", "e:indexed"
+				, "a:swapped", "d:swapped"
+				)
+			, commands
+			);
+	}
+
+	private static Gson mapper = new Gson();
+
+}
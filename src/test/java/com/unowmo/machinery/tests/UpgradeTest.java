@@ -0,0 +1,178 @@
+package com.unowmo.machinery.tests;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import org.junit.*;
+import com.google.gson.*;
+import com.unowmo.machinery.*;
+
+/**
+ * Upgrades running stacks to a new library, carrying layers over by machine
+ * name and state label.
+ */
+public class UpgradeTest {
+
+	private static final String before
+		= "{ \"machines\":"
+		+ "  [ { \"name\": \"default\", \"states\":"
+		+ "      [ { \"label\": \"start\", \"trans\": [ { \"event\": \"started\", \"state\": \"idle\" } ] }"
+		+ "      , { \"label\": \"idle\", \"trans\": [ { \"event\": \"go\", \"state\": \"spawn\" }, { \"event\": \"old\", \"state\": \"obsolete\" }, { \"event\": \"nap\", \"state\": \"sleeper\" } ] }"
+		+ "      , { \"label\": \"spawn\", \"entry\": \"start:machine=worker\", \"trans\": [ { \"event\": \"\", \"state\": \"idle\" } ] }"
+		+ "      , { \"label\": \"obsolete\", \"entry\": \"start:machine=obsolete\", \"trans\": [ { \"event\": \"\", \"state\": \"idle\" } ] }"
+		+ "      , { \"label\": \"sleeper\", \"entry\": \"start:machine=sleeper\", \"trans\": [ { \"event\": \"\", \"state\": \"idle\" } ] }"
+		+ "      ]"
+		+ "    }"
+		+ "  , { \"name\": \"worker\", \"states\":"
+		+ "      [ { \"label\": \"start\", \"trans\": [ { \"event\": \"started\", \"state\": \"wait\" } ] }"
+		+ "      , { \"label\": \"wait\", \"trans\": [ { \"event\": \"tick\", \"state\": \"work\" } ] }"
+		+ "      , { \"label\": \"work\", \"entry\": \"inc:label=ticks,value=1\", \"trans\": [ { \"event\": \"\", \"state\": \"wait\" } ] }"
+		+ "      ]"
+		+ "    }"
+		+ "  , { \"name\": \"obsolete\", \"states\":"
+		+ "      [ { \"label\": \"start\", \"trans\": [ { \"event\": \"started\", \"state\": \"idle\" } ] }"
+		+ "      , { \"label\": \"idle\" }"
+		+ "      ]"
+		+ "    }"
+		+ "  , { \"name\": \"sleeper\", \"states\":"
+		+ "      [ { \"label\": \"start\", \"trans\": [ { \"event\": \"started\", \"state\": \"asleep\" } ] }"
+		+ "      , { \"label\": \"asleep\" }"
+		+ "      ]"
+		+ "    }"
+		+ "  ]"
+		+ "}";
+
+	private static final String after
+		= "{ \"machines\":"
+		+ "  [ { \"name\": \"sleeper\", \"states\":"
+		+ "      [ { \"label\": \"start\", \"trans\": [ { \"event\": \"started\", \"state\": \"awake\" } ] }"
+		+ "      , { \"label\": \"awake\" }"
+		+ "      ]"
+		+ "    }"
+		+ "  , { \"name\": \"worker\", \"states\":"
+		+ "      [ { \"label\": \"start\", \"trans\": [ { \"event\": \"started\", \"state\": \"wait\" } ] }"
+		+ "      , { \"label\": \"report\", \"entry\": \"patch:command=ticks,status=((ticks))\", \"trans\": [ { \"event\": \"\", \"state\": \"wait\" } ] }"
+		+ "      , { \"label\": \"wait\", \"trans\": [ { \"event\": \"tick\", \"state\": \"work\" }, { \"event\": \"report\", \"state\": \"report\" } ] }"
+		+ "      , { \"label\": \"work\", \"entry\": \"inc:label=ticks,value=1\", \"trans\": [ { \"event\": \"\", \"state\": \"wait\" } ] }"
+		+ "      ]"
+		+ "    }"
+		+ "  , { \"name\": \"default\", \"states\":"
+		+ "      [ { \"label\": \"start\", \"trans\": [ { \"event\": \"started\", \"state\": \"idle\" } ] }"
+		+ "      , { \"label\": \"idle\", \"trans\": [ { \"event\": \"go\", \"state\": \"spawn\" }, { \"event\": \"tell\", \"state\": \"tell\" } ] }"
+		+ "      , { \"label\": \"spawn\", \"entry\": \"start:machine=worker\", \"trans\": [ { \"event\": \"\", \"state\": \"idle\" } ] }"
+		+ "      , { \"label\": \"tell\", \"entry\": \"blast:event=report\", \"trans\": [ { \"event\": \"\", \"state\": \"idle\" } ] }"
+		+ "      ]"
+		+ "    }"
+		+ "  ]"
+		+ "}";
+
+	@Test
+	public void testStack() throws Exception {
+		final List<String> commands = new ArrayList<String>();
+		final StackOfMachinery stacked = new StackOfMachinery(CompiledLibrary.compile(mapper.fromJson(before, AxionTaskLibrary.class)))
+			.setResolve(new Recording(commands))
+			;
+
+		stacked.handleEvents("started", "go", "tick", "go", "tick", "old", "nap");
+
+		final CompiledLibrary upgraded = CompiledLibrary.compile(mapper.fromJson(after, AxionTaskLibrary.class));
+		final StackOfMachinery.Migration migration = stacked.upgrade(upgraded);
+
+		Assert.assertEquals(3, migration.migrated);
+		Assert.assertEquals(2, migration.lost.size());
+		Assert.assertEquals("obsolete", migration.lost.get(0).machine);
+		Assert.assertEquals(StackOfMachinery.Migration.Cause.MACHINE, migration.lost.get(0).cause);
+		Assert.assertEquals("asleep", migration.lost.get(1).state);
+		Assert.assertEquals(StackOfMachinery.Migration.Cause.STATE, migration.lost.get(1).cause);
+
+		stacked.handleEvents("tell", "tick", "tell");
+
+		Assert.assertEquals
+			( "Workers didn't carry on with their frames under new library"
+			, Arrays.asList("ticks:2", "ticks:1", "ticks:3", "ticks:2")
+			, commands
+			);
+
+		// Snapshots now belong to the new library.
+
+		final ByteArrayOutputStream taken = new ByteArrayOutputStream();
+
+		stacked.snapshot(taken);
+
+		new StackOfMachinery(upgraded)
+			.setResolve(new Recording(commands))
+			.restore(new ByteArrayInputStream(taken.toByteArray()))
+			.handleEvent("tell")
+			;
+
+		Assert.assertEquals(Arrays.asList("ticks:3", "ticks:2"), commands.subList(4, 6));
+	}
+
+	@Test
+	public void testRuntime() throws Exception {
+		final MachineryRuntime runtime = new MachineryRuntime(CompiledLibrary.compile(mapper.fromJson(before, AxionTaskLibrary.class)), 4);
+		final List<String> commands = Collections.synchronizedList(new ArrayList<String>());
+
+		runtime.setResolve(new Recording(commands));
+
+		try
+		{
+			for (int i = 0; i < 100; ++i)
+			{
+				runtime.handleEvents("session" + i, "started", "go", "tick");
+			}
+
+			final Map<String, StackOfMachinery.Migration> migrated = runtime
+				.upgrade(CompiledLibrary.compile(mapper.fromJson(after, AxionTaskLibrary.class)))
+				.toCompletableFuture()
+				.get(10, TimeUnit.SECONDS)
+				;
+
+			Assert.assertEquals(100, migrated.size());
+			Assert.assertEquals(2, migrated.get("session0").migrated);
+
+			for (int i = 0; i < 110; ++i)
+			{
+				runtime.handleEvents("session" + i, "started", "go", "tell");
+			}
+
+			Assert.assertTrue(runtime.awaitIdle(10, TimeUnit.SECONDS));
+
+			// Sessions already open report on the worker they had before and
+			// the one just started, those opened since on just the one.
+
+			Assert.assertEquals
+				( "Sessions didn't all run on upgraded library"
+				, 210
+				, commands.size()
+				);
+		}
+		finally
+		{
+			runtime.shutdown();
+		}
+	}
+
+	private static class Recording extends AxionTaskResolve {
+		private final List<String> commands;
+
+		protected String execute(final String axionLabel, final Update axionValue, final LabeledValuePair ... axionPairs) {
+			return "";
+		}
+
+		protected void command(final String eventCommand, final String eventStatus) {
+			this.commands.add(eventCommand + ":" + eventStatus);
+		}
+
+		protected void log(final String message) {
+		}
+
+		Recording(final List<String> commands) {
+			this.commands = commands;
+		}
+
+	}
+
+	private static Gson mapper = new Gson();
+
+}